@@ -0,0 +1,93 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.core.AbstractAwsIotClient;
+import com.amazonaws.services.iot.client.core.AwsIotConnectionType;
+import com.amazonaws.services.iot.client.mqtt.AwsIotMqttConnection;
+
+import org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Clients built per second by {@link AwsIotMqttClientBuilder}, compared with the previous implementation that looked up
+ * and opened the SDK's private fields, and built a Paho {@link SSLSocketFactoryFactory} context, for every client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AwsIotMqttClientBuilderBenchmark {
+    @Param({"a1b2c3d4e5f6g7.iot.us-west-2.amazonaws.com", "wss://localhost:8883"})
+    public String endpoint;
+
+    // Paho only hands out the socket factory of the context it builds.
+    private static final Method PAHO_SSL_CONTEXT = pahoSslContext();
+
+    private long nextClientId;
+
+    @Benchmark
+    public AWSIotMqttClient cachedFields() {
+        return AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(endpoint)
+                .clientId(Long.toString(nextClientId++))
+                .awsAccessKeyId("AccessKeyId")
+                .awsSecretAccessKey("SecretAccessKey")
+                .build();
+    }
+
+    @Benchmark
+    public AWSIotMqttClient perClientReflection() throws Exception {
+        final ProxyAwareSSLSocketFactory socketFactory = new ProxyAwareSSLSocketFactory((SSLContext) PAHO_SSL_CONTEXT.invoke(new SSLSocketFactoryFactory(), (String) null));
+        final boolean awsIotEndpoint = !endpoint.contains("://");
+        final String clientEndpointToUse = awsIotEndpoint ? endpoint : "foobar.iot.us-west-2.amazonaws.com";
+
+        final AWSIotMqttClient client = new AWSIotMqttClient(clientEndpointToUse, Long.toString(nextClientId++), "AccessKeyId", "SecretAccessKey", null);
+        final AwsIotMqttConnection connection;
+        if (awsIotEndpoint) {
+            Field field = AbstractAwsIotClient.class.getDeclaredField("connection");
+            field.setAccessible(true);
+            connection = (AwsIotMqttConnection) field.get(client);
+            field = AwsIotMqttConnection.class.getDeclaredField("socketFactory");
+            field.setAccessible(true);
+            field.set(connection, socketFactory);
+        } else {
+            connection = new AwsIotMqttConnection(client, socketFactory, endpoint);
+        }
+        Field field = AbstractAwsIotClient.class.getDeclaredField("connection");
+        field.setAccessible(true);
+        field.set(client, connection);
+
+        final AwsIotConnectionType connectionType = endpoint.startsWith("wss") ? AwsIotConnectionType.MQTT_OVER_TLS : AwsIotConnectionType.MQTT_OVER_WEBSOCKET;
+        field = AbstractAwsIotClient.class.getDeclaredField("connectionType");
+        field.setAccessible(true);
+        field.set(client, connectionType);
+        return client;
+    }
+
+    private static Method pahoSslContext() {
+        try {
+            final Method method = SSLSocketFactoryFactory.class.getDeclaredMethod("getSSLContext", String.class);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
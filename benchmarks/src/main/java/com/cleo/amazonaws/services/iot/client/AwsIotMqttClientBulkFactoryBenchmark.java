@@ -0,0 +1,67 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Time to build a fleet of clients with {@link AwsIotMqttClientBulkFactory}, serially and on a thread pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AwsIotMqttClientBulkFactoryBenchmark {
+    @Param({"10000"})
+    public int clients;
+
+    @Param({"a1b2c3d4e5f6g7.iot.us-west-2.amazonaws.com", "wss://localhost:8883"})
+    public String endpoint;
+
+    private AwsIotMqttClientBulkFactory factory;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        factory = AwsIotMqttClientBulkFactory.builder()
+                .clientEndpoint(endpoint)
+                .awsAccessKeyId("AccessKeyId")
+                .awsSecretAccessKey("SecretAccessKey")
+                .build();
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public List<AWSIotMqttClient> serial() {
+        return factory.newClients(IntStream.range(0, clients).mapToObj(Integer::toString));
+    }
+
+    @Benchmark
+    public List<AWSIotMqttClient> parallel() {
+        return factory.newClients(IntStream.range(0, clients).mapToObj(Integer::toString), executor);
+    }
+}
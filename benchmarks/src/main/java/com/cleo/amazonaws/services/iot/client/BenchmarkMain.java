@@ -0,0 +1,27 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH, writing the results as JSON to {@code jmh-result.json} unless a result format or file is given, so that
+ * runs can be compared by tooling.
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.addAll(Arrays.asList("-rf", "json"));
+        }
+        if (!arguments.contains("-rff")) {
+            arguments.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        }
+        Main.main(arguments.toArray(new String[0]));
+    }
+}
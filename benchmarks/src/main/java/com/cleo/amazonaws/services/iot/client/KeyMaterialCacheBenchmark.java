@@ -0,0 +1,97 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load the key managers of a fleet of device identities: cold, reading and parsing every PEM file, and warm,
+ * from a {@link KeyMaterialCache} that already holds them. Every identity's files differ by a leading comment line, so
+ * the cold load parses each one as it would distinct keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class KeyMaterialCacheBenchmark {
+    @Param({"5000"})
+    public int identities;
+
+    private Path directory;
+    private KeyMaterialCache warmCache;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("key-material-benchmark");
+        final Path certificate = directory.resolve("template.crt");
+        final Path privateKey = directory.resolve("template.key");
+        LocalTlsServer.writeIdentity("/localhost.jks", "localhost", certificate, privateKey);
+        final byte[] certificatePem = Files.readAllBytes(certificate);
+        final byte[] privateKeyPem = Files.readAllBytes(privateKey);
+        for (int i = 0; i < identities; i++) {
+            Files.write(directory.resolve(i + ".crt"), concat(("device " + i + "\n").getBytes(StandardCharsets.US_ASCII), certificatePem));
+            Files.write(directory.resolve(i + ".key"), concat(("device " + i + "\n").getBytes(StandardCharsets.US_ASCII), privateKeyPem));
+        }
+        warmCache = new KeyMaterialCache();
+        load(warmCache, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        warmCache.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void cold(Blackhole blackhole) throws Exception {
+        try (KeyMaterialCache cache = new KeyMaterialCache()) {
+            load(cache, blackhole);
+        }
+    }
+
+    @Benchmark
+    public void warm(Blackhole blackhole) throws Exception {
+        load(warmCache, blackhole);
+    }
+
+    private void load(KeyMaterialCache cache, Blackhole blackhole) throws IOException, GeneralSecurityException {
+        for (int i = 0; i < identities; i++) {
+            final Object keyManager = cache.getKeyManager(directory.resolve(i + ".crt"), directory.resolve(i + ".key"));
+            if (blackhole != null) {
+                blackhole.consume(keyManager);
+            }
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        final byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+}
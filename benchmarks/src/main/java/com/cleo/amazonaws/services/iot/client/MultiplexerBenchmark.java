@@ -0,0 +1,161 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTimeoutException;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts per second to a fleet of clients, each subscribed to a shared topic and its own, served either by one
+ * dedicated connection per client or by {@link AwsIotMqttClientMultiplexer} logical clients over a few connections.
+ * The {@code connections} and {@code retainedHeapKilobytes} counters report what standing up the fleet cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiplexerBenchmark {
+    private static final String BROADCAST_TOPIC = "benchmark/broadcast";
+
+    @Param({"dedicated", "multiplexed"})
+    public String mode;
+
+    @Param({"50", "500"})
+    public int clients;
+
+    @Param({"4"})
+    public int connections;
+
+    private LocalMqttBroker broker;
+    private final List<AWSIotMqttClient> dedicated = new ArrayList<>();
+    private AwsIotMqttClientMultiplexer multiplexer;
+    private AWSIotMqttClient publisher;
+    private volatile CountDownLatch delivered;
+    private long retainedHeapBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long connections;
+        public long retainedHeapKilobytes;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new LocalMqttBroker();
+        final long heapBefore = usedHeap();
+        final Consumer<AWSIotMessage> handler = message -> delivered.countDown();
+        if ("multiplexed".equals(mode)) {
+            multiplexer = AwsIotMqttClientMultiplexer.builder()
+                    .clientEndpoint(broker.getEndpoint())
+                    .clientIdPrefix("multiplexer-benchmark")
+                    .connections(connections)
+                    .awsAccessKeyId("AccessKeyId")
+                    .awsSecretAccessKey("SecretAccessKey")
+                    .sslContext(LocalMqttBroker.clientContext())
+                    .build();
+            multiplexer.connect();
+            for (int i = 0; i < clients; i++) {
+                final AwsIotMqttClientMultiplexer.LogicalClient client = multiplexer.newLogicalClient("device-" + i);
+                client.subscribe(BROADCAST_TOPIC, AWSIotQos.QOS0, handler);
+                client.subscribe("benchmark/devices/" + i, AWSIotQos.QOS0, handler);
+            }
+        } else {
+            final AwsIotMqttClientBulkFactory factory = AwsIotMqttClientBulkFactory.builder()
+                    .clientEndpoint(broker.getEndpoint())
+                    .awsAccessKeyId("AccessKeyId")
+                    .awsSecretAccessKey("SecretAccessKey")
+                    .sslContext(LocalMqttBroker.clientContext())
+                    .build();
+            for (int i = 0; i < clients; i++) {
+                final AWSIotMqttClient client = factory.newClient("device-" + i);
+                client.connect(10000);
+                client.subscribe(new HandlerTopic(BROADCAST_TOPIC, handler), 10000, true);
+                client.subscribe(new HandlerTopic("benchmark/devices/" + i, handler), 10000, true);
+                dedicated.add(client);
+            }
+        }
+        retainedHeapBytes = usedHeap() - heapBefore;
+
+        publisher = AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(broker.getEndpoint())
+                .clientId("multiplexer-benchmark-publisher")
+                .awsAccessKeyId("AccessKeyId")
+                .awsSecretAccessKey("SecretAccessKey")
+                .sslContext(LocalMqttBroker.clientContext())
+                .build();
+        publisher.connect(10000);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        publisher.disconnect();
+        if (multiplexer != null) {
+            multiplexer.disconnect();
+        }
+        for (AWSIotMqttClient client : dedicated) {
+            client.disconnect();
+        }
+        broker.close();
+    }
+
+    @Benchmark
+    public void broadcast(Footprint footprint) throws AWSIotException, AWSIotTimeoutException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(clients);
+        delivered = latch;
+        publisher.publish(BROADCAST_TOPIC, AWSIotQos.QOS0, new byte[0], 10000);
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(latch.getCount() + " of " + clients + " clients missed the broadcast.");
+        }
+        // Less the publisher.
+        footprint.connections = broker.getConnects() - 1;
+        footprint.retainedHeapKilobytes = retainedHeapBytes / 1024;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class HandlerTopic extends AWSIotTopic {
+        private final Consumer<AWSIotMessage> handler;
+
+        HandlerTopic(String topic, Consumer<AWSIotMessage> handler) {
+            super(topic, AWSIotQos.QOS0);
+            this.handler = handler;
+        }
+
+        @Override
+        public void onMessage(AWSIotMessage message) {
+            handler.accept(message);
+        }
+    }
+}
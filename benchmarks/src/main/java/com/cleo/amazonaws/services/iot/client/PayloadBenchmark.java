@@ -0,0 +1,100 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Allocation per QoS 1 publish of a serialized payload: as a fresh {@code byte[]} through the SDK, which copies it
+ * twice, and from a pooled direct {@link ByteBuffer} through a {@link PublishPipeline}, which copies it once. Run with
+ * {@code -prof gc} and compare {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"256", "16384"})
+    public int payloadSize;
+
+    private LocalMqttBroker broker;
+    private AWSIotMqttClient client;
+    private PublishPipeline pipeline;
+    private ByteBufferPool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new LocalMqttBroker();
+        client = AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(broker.getEndpoint())
+                .clientId("payload-benchmark")
+                .awsAccessKeyId("AccessKeyId")
+                .awsSecretAccessKey("SecretAccessKey")
+                .sslContext(LocalMqttBroker.clientContext())
+                // Without TCP_NODELAY large blocking publishes wait on delayed ACKs.
+                .socketProfile(SocketProfile.LOW_LATENCY)
+                .build();
+        client.connect(10000);
+        pipeline = PublishPipeline.builder().client(client).build();
+        pool = new ByteBufferPool(true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pipeline.close();
+        client.disconnect();
+        broker.close();
+    }
+
+    @Benchmark
+    public void byteArray() throws AWSIotException, AWSIotTimeoutException {
+        final ByteBuffer serialized = ByteBuffer.allocate(payloadSize);
+        serialize(serialized);
+        client.publish("benchmark/payload", AWSIotQos.QOS1, serialized.array(), 10000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pooledBuffer() throws InterruptedException, ExecutionException, TimeoutException {
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            final ByteBuffer serialized = pool.acquire(payloadSize);
+            serialize(serialized);
+            serialized.flip();
+            futures[i] = pipeline.publish("benchmark/payload", AWSIotQos.QOS1, serialized, pool);
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+    }
+
+    // Stands in for a serializer writing a record.
+    private static void serialize(ByteBuffer buffer) {
+        while (buffer.remaining() >= Long.BYTES) {
+            buffer.putLong(buffer.position());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of {@link DeferredSSLSocket#getProxies(SocketAddress)} with a selector that behaves like a PAC script, with and
+ * without the factory's {@link ProxyLookupCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxySelectionBenchmark {
+    @Param({"true", "false"})
+    public boolean lookupCache;
+
+    private DeferredSSLSocket socket;
+    private InetSocketAddress endpoint;
+
+    @Setup
+    public void setUp() throws Exception {
+        final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory();
+        factory.setProxySelector(new PacStyleProxySelector());
+        if (!lookupCache) {
+            factory.setProxyLookupCache(null);
+        }
+        socket = (DeferredSSLSocket) factory.createSocket();
+        endpoint = InetSocketAddress.createUnresolved("a1b2c3d4e5f6g7.iot.us-west-2.amazonaws.com", 443);
+    }
+
+    @Benchmark
+    public List<Proxy> getProxies() {
+        return socket.getProxies(endpoint);
+    }
+
+    /**
+     * Evaluates rules the way a PAC interpreter runs {@code FindProxyForURL}: shell expression patterns are compiled
+     * on every call and the result string is parsed into proxies.
+     */
+    private static class PacStyleProxySelector extends ProxySelector {
+        private static final String[] BYPASS = {"*.internal.example.com", "*.corp.example.com", "10.*", "192.168.*", "localhost"};
+        private static final String[] DOMAINS = {".amazonaws.com", ".example.com", ".example.net", ".example.org"};
+
+        @Override
+        public List<Proxy> select(URI uri) {
+            final String host = uri.getHost();
+            if (host.indexOf('.') == -1) {
+                return Collections.singletonList(Proxy.NO_PROXY);
+            }
+            for (String pattern : BYPASS) {
+                if (shExpMatch(host, pattern)) {
+                    return Collections.singletonList(Proxy.NO_PROXY);
+                }
+            }
+            for (String domain : DOMAINS) {
+                if (host.endsWith(domain)) {
+                    return parse("PROXY proxy1.example.com:3128; PROXY proxy2.example.com:3128; DIRECT");
+                }
+            }
+            return parse("DIRECT");
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+        }
+
+        private static boolean shExpMatch(String host, String pattern) {
+            return Pattern.compile(pattern.replace(".", "\\.").replace("*", ".*")).matcher(host).matches();
+        }
+
+        private static List<Proxy> parse(String result) {
+            final List<Proxy> proxies = new ArrayList<>();
+            for (String entry : result.split(";")) {
+                final String[] parts = entry.trim().split("\\s+");
+                if (parts[0].equals("PROXY")) {
+                    final int colon = parts[1].lastIndexOf(':');
+                    proxies.add(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(parts[1].substring(0, colon), Integer.parseInt(parts[1].substring(colon + 1)))));
+                } else {
+                    proxies.add(Proxy.NO_PROXY);
+                }
+            }
+            return proxies;
+        }
+    }
+}
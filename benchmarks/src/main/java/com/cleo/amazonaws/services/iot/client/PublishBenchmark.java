@@ -0,0 +1,88 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Round trips per second of QoS 1 publishes, each waiting for its PUBACK, from a client built by
+ * {@link AwsIotMqttClientBuilder} to an in-process {@link LocalMqttBroker}, over each of the broker's transports. The
+ * pipelined variant sends the same publishes through a {@link PublishPipeline}, which keeps the in-flight window full.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+    private static final int PIPELINED_BATCH = 1000;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    @Param({"ssl", "wss", "tcp", "ws"})
+    public String transport;
+
+    private LocalMqttBroker broker;
+    private AWSIotMqttClient client;
+    private PublishPipeline pipeline;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new LocalMqttBroker();
+        client = AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(broker.getEndpoint(transport))
+                .clientId("publish-benchmark")
+                .awsAccessKeyId("AccessKeyId")
+                .awsSecretAccessKey("SecretAccessKey")
+                .sslContext(LocalMqttBroker.clientContext())
+                .build();
+        client.connect(10000);
+        pipeline = PublishPipeline.builder().client(client).build();
+        payload = new byte[payloadSize];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pipeline.close();
+        client.disconnect();
+        broker.close();
+    }
+
+    @Benchmark
+    public void publishQos1() throws AWSIotException, AWSIotTimeoutException {
+        client.publish("benchmark/publish", AWSIotQos.QOS1, payload, 10000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED_BATCH)
+    public void publishQos1Pipelined() throws InterruptedException, ExecutionException, TimeoutException {
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[PIPELINED_BATCH];
+        for (int i = 0; i < PIPELINED_BATCH; i++) {
+            futures[i] = pipeline.publish("benchmark/publish", AWSIotQos.QOS1, payload);
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,58 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.util.AwsIotWebSocketUrlSigner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of signing a reconnect: the SDK's signer derives the signing key on every call, {@link WebSocketUrlSigner}
+ * once a day.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SigningBenchmark {
+    private static final String ENDPOINT = "example.iot.us-east-1.amazonaws.com:443";
+    private static final String ACCESS_KEY_ID = "AKIDEXAMPLE";
+    private static final String SECRET_ACCESS_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    private static final String SESSION_TOKEN = "SessionToken";
+
+    private AwsIotWebSocketUrlSigner sdkSigner;
+    private WebSocketUrlSigner signer;
+    private AwsCredentials credentials;
+
+    @Setup
+    public void setUp() {
+        sdkSigner = new AwsIotWebSocketUrlSigner(ENDPOINT);
+        sdkSigner.updateCredentials(ACCESS_KEY_ID, SECRET_ACCESS_KEY, SESSION_TOKEN);
+        signer = new WebSocketUrlSigner(ENDPOINT, new SigningMetrics());
+        credentials = new AwsCredentials(ACCESS_KEY_ID, SECRET_ACCESS_KEY, SESSION_TOKEN, null);
+    }
+
+    @Benchmark
+    public String sdkSigner() throws AWSIotException {
+        return sdkSigner.getSignedUrl(new Date());
+    }
+
+    @Benchmark
+    public String cachedSigningKey() {
+        return signer.getSignedUrl(credentials, Instant.now());
+    }
+}
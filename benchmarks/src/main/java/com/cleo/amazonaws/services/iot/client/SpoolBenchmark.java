@@ -0,0 +1,73 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Appends per second to an {@link OutboundSpool} whose messages are acknowledged as soon as they are published, so
+ * segments are recycled as they would be while connected. Run with {@code -prof gc}: appends should allocate nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpoolBenchmark {
+
+    @Param({"256", "4096"})
+    public int payloadSize;
+
+    private Path directory;
+    private OutboundSpool spool;
+    private ByteBuffer payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool-benchmark");
+        spool = OutboundSpool.builder()
+                .directory(directory)
+                .maxInFlight(100)
+                .publisher(message -> message.onSuccess())
+                .build();
+        payload = ByteBuffer.allocateDirect(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        spool.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * @return false when the drainer has fallen a whole spool behind
+     */
+    @Benchmark
+    public boolean append() throws IOException {
+        return spool.append("benchmark/spool", AWSIotQos.QOS1, payload);
+    }
+}
@@ -0,0 +1,78 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Latency of connecting a {@link DeferredSSLSocket} and completing the TLS handshake against an in-process TLS server,
+ * with full handshakes and with resumed sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsConnectBenchmark {
+    @Param({"true", "false"})
+    public boolean resumeSessions;
+
+    private LocalTlsServer server;
+    private ProxyAwareSSLSocketFactory factory;
+    private InetSocketAddress endpoint;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LocalTlsServer();
+        factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+        factory.setProxySelector(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(Proxy.NO_PROXY);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+            }
+        });
+        endpoint = new InetSocketAddress("localhost", server.getPort());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public void connectAndHandshake() throws IOException {
+        try (SSLSocket socket = (SSLSocket) factory.createSocket()) {
+            socket.connect(endpoint, 10000);
+            socket.startHandshake();
+            if (!resumeSessions) {
+                socket.getSession().invalidate();
+            }
+        }
+    }
+}
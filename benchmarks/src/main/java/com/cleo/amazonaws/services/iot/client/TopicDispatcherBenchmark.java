@@ -0,0 +1,95 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to find the filters matching an inbound topic among many overlapping wildcard subscriptions: with the SDK's
+ * check of every subscribed filter, and with the {@link TopicTrie} behind {@link TopicDispatcher}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicDispatcherBenchmark {
+    private static final int TOPICS = 1024;
+
+    @Param({"100", "10000"})
+    public int filters;
+
+    private final List<String> filterList = new ArrayList<>();
+    private final TopicTrie<String> trie = new TopicTrie<>();
+    private final String[] topics = new String[TOPICS];
+    private AWSIotMqttClient client;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // Per-device filters, per-device command wildcards and fleet-wide catch-alls, as a gateway would subscribe.
+        for (int i = 0; i < filters; i++) {
+            final String filter;
+            switch (i % 3) {
+                case 0:
+                    filter = "devices/" + i + "/telemetry";
+                    break;
+                case 1:
+                    filter = "devices/" + i + "/commands/#";
+                    break;
+                default:
+                    filter = "fleet/" + (i % 100) + "/+/status";
+                    break;
+            }
+            filterList.add(filter);
+            trie.add(filter, filter);
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < TOPICS; i++) {
+            final int device = random.nextInt(filters);
+            topics[i] = random.nextBoolean()
+                    ? "devices/" + device + (device % 3 == 0 ? "/telemetry" : "/commands/reboot")
+                    : "fleet/" + (device % 100) + "/" + device + "/status";
+        }
+        // Only used for the SDK's matching; never connected.
+        client = new AWSIotMqttClient("example.iot.us-east-1.amazonaws.com", "topic-dispatcher-benchmark", "AccessKeyId", "SecretAccessKey");
+    }
+
+    @Benchmark
+    public void sdkLinearScan(Blackhole blackhole) {
+        final String topic = nextTopic();
+        for (String filter : filterList) {
+            if (client.topicFilterMatch(filter, topic)) {
+                blackhole.consume(filter);
+            }
+        }
+    }
+
+    @Benchmark
+    public void trie(Blackhole blackhole) {
+        for (String filter : trie.match(nextTopic())) {
+            blackhole.consume(filter);
+        }
+    }
+
+    private String nextTopic() {
+        return topics[next++ & (TOPICS - 1)];
+    }
+}
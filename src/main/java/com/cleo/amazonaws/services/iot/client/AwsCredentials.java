@@ -0,0 +1,37 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.time.Instant;
+
+import lombok.Value;
+
+/**
+ * AWS credentials to sign WebSocket connections with: long-term access keys, or temporary ones with a session token
+ * and an expiration.
+ */
+@Value
+public class AwsCredentials {
+    String accessKeyId;
+    String secretAccessKey;
+    /**
+     * {@code null} for long-term access keys.
+     */
+    String sessionToken;
+    /**
+     * {@code null} if the credentials do not expire.
+     */
+    Instant expiration;
+
+    public AwsCredentials(String accessKeyId, String secretAccessKey, String sessionToken, Instant expiration) {
+        if (accessKeyId == null || secretAccessKey == null) {
+            throw new IllegalArgumentException("An access key ID and a secret access key are required.");
+        }
+        this.accessKeyId = accessKeyId;
+        this.secretAccessKey = secretAccessKey;
+        this.sessionToken = sessionToken;
+        this.expiration = expiration;
+    }
+
+    public boolean isExpiredAt(Instant instant) {
+        return expiration != null && !instant.isBefore(expiration);
+    }
+}
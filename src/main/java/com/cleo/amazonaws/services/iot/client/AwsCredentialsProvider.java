@@ -0,0 +1,29 @@
+package com.cleo.amazonaws.services.iot.client;
+
+/**
+ * Supplies the credentials each WebSocket connect is signed with. It is asked on every connect and reconnect, so it
+ * should answer from memory; {@link RefreshingCredentialsProvider} makes a slow source, such as STS, do so.
+ *
+ * <pre>
+ * AWSSecurityTokenService sts = AWSSecurityTokenServiceClientBuilder.defaultClient();
+ * AwsCredentialsProvider provider = () -&gt; {
+ *     Credentials c = sts.getSessionToken().getCredentials();
+ *     return new AwsCredentials(c.getAccessKeyId(), c.getSecretAccessKey(), c.getSessionToken(), c.getExpiration().toInstant());
+ * };
+ * </pre>
+ */
+@FunctionalInterface
+public interface AwsCredentialsProvider {
+
+    AwsCredentials getCredentials();
+
+    /**
+     * Called when a connect signed with this provider's credentials was refused, in case they are no longer good.
+     */
+    default void refresh() {
+    }
+
+    static AwsCredentialsProvider of(AwsCredentials credentials) {
+        return () -> credentials;
+    }
+}
@@ -2,57 +2,182 @@ package com.cleo.amazonaws.services.iot.client;
 
 import com.amazonaws.services.iot.client.AWSIotMqttClient;
 import com.amazonaws.services.iot.client.core.AbstractAwsIotClient;
+import com.amazonaws.services.iot.client.core.AwsIotConnection;
 import com.amazonaws.services.iot.client.core.AwsIotConnectionType;
 import com.amazonaws.services.iot.client.core.AwsIotRuntimeException;
 import com.amazonaws.services.iot.client.mqtt.AwsIotMqttConnection;
 
+import org.eclipse.paho.client.mqttv3.MqttSecurityException;
+
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
 
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class AwsIotMqttClientBuilder {
+    // The SDK offers no way to plug in a socket factory or a custom endpoint, so the client is rewired through these
+    // private fields. They are looked up once; a changed SDK fails here, on first use of the builder.
+    private static final Field CLIENT_CONNECTION = sdkField(AbstractAwsIotClient.class, "connection", AwsIotConnection.class);
+    private static final Field CLIENT_CONNECTION_TYPE = sdkField(AbstractAwsIotClient.class, "connectionType", AwsIotConnectionType.class);
+    private static final Field CONNECTION_SOCKET_FACTORY = sdkField(AwsIotMqttConnection.class, "socketFactory", SocketFactory.class);
+    private static final String UNUSED_CREDENTIAL = "unused";
+    private static final int AWS_IOT_MQTT_TLS_PORT = 8883;
 
     // No instances allowed.
     private AwsIotMqttClientBuilder() {
     }
 
+    /**
+     * @param credentialsProvider supplies the credentials each connect to an AWS IoT endpoint is signed with, in place
+     *                            of the access keys and session token
+     * @param signingMetrics      counts signatures and connects refused for their credentials
+     * @param certificate         the PEM file of the client certificate to connect to an AWS IoT endpoint with over
+     *                            mutual TLS, in place of credentials; rotated files are picked up by later connects
+     * @param privateKey          the PEM file of the certificate's private key
+     * @param socketProfile       the TCP options of the client's sockets, {@code null} for the platform defaults
+     * @param socketOptions       TCP options that replace those of the profile
+     */
     @Builder
     private static AWSIotMqttClient newAWSIotMqttClient(String clientEndpoint,
                                                        String clientId,
                                                        String awsAccessKeyId,
                                                        String awsSecretAccessKey,
-                                                       String sessionToken) {
+                                                       String sessionToken,
+                                                       AwsCredentialsProvider credentialsProvider,
+                                                       SigningMetrics signingMetrics,
+                                                       Path certificate,
+                                                       Path privateKey,
+                                                       SSLContext sslContext,
+                                                       SocketProfile socketProfile,
+                                                       SocketOptions socketOptions) {
+        final ProxyAwareSSLSocketFactory socketFactory = socketFactory(sslContext, certificate, privateKey);
+        socketFactory.setSocketOptions(SocketOptions.of(socketProfile, socketOptions));
+        return newClient(new ClientEndpoint(clientEndpoint), socketFactory, clientId,
+                credentialsProvider(credentialsProvider, awsAccessKeyId, awsSecretAccessKey, sessionToken), signingMetrics, mutualTls(sslContext, certificate));
+    }
 
-        final boolean awsIotEndpoint = !clientEndpoint.contains("://");
-        final String clientEndpointToUse = awsIotEndpoint ? clientEndpoint : "foobar.iot.us-west-2.amazonaws.com";
+    /**
+     * @return whether the socket factory may present a client certificate: one in files, one in the given context,
+     * whose key managers cannot be inspected, or one in the {@code javax.net.ssl.keyStore} of the default context
+     */
+    static boolean mutualTls(SSLContext sslContext, Path certificate) {
+        return certificate != null || sslContext != null || SharedSSLContext.hasSystemKeyStore();
+    }
 
-        final AWSIotMqttClient client = new AWSIotMqttClient(clientEndpointToUse, clientId, awsAccessKeyId, awsSecretAccessKey, sessionToken);
+    /**
+     * @return a factory for the client identity in the files if there is one, else for the context
+     */
+    static ProxyAwareSSLSocketFactory socketFactory(SSLContext sslContext, Path certificate, Path privateKey) {
+        try {
+            if (certificate == null && privateKey == null) {
+                return sslContext == null ? new ProxyAwareSSLSocketFactory() : new ProxyAwareSSLSocketFactory(sslContext);
+            }
+            if (certificate == null || privateKey == null || sslContext != null) {
+                throw new IllegalArgumentException("A certificate needs its private key, and replaces the SSL context.");
+            }
+            return new ProxyAwareSSLSocketFactory(SharedSSLContext.forIdentity(certificate, privateKey));
+        } catch (MqttSecurityException e) {
+            throw new AwsIotRuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the provider if there is one, else one for the access keys, or {@code null} if there are none
+     */
+    static AwsCredentialsProvider credentialsProvider(AwsCredentialsProvider credentialsProvider,
+                                                      String awsAccessKeyId,
+                                                      String awsSecretAccessKey,
+                                                      String sessionToken) {
+        if (credentialsProvider != null || awsAccessKeyId == null || awsSecretAccessKey == null) {
+            return credentialsProvider;
+        }
+        return AwsCredentialsProvider.of(new AwsCredentials(awsAccessKeyId, awsSecretAccessKey, sessionToken, null));
+    }
+
+    /**
+     * Builds a client. The socket factory is used for TLS transports only; {@code tcp://} and {@code ws://} endpoints
+     * connect with plain sockets, which Paho insists on. Connects to AWS IoT endpoints are signed when there is a
+     * credentials provider, and otherwise use MQTT over mutual TLS with the client certificate of the socket factory.
+     *
+     * @param mutualTls whether the socket factory may present a client certificate, see {@link #mutualTls}
+     * @throws IllegalArgumentException if an AWS IoT endpoint is given neither credentials nor a client certificate
+     */
+    static AWSIotMqttClient newClient(ClientEndpoint endpoint,
+                                      ProxyAwareSSLSocketFactory socketFactory,
+                                      String clientId,
+                                      AwsCredentialsProvider credentialsProvider,
+                                      SigningMetrics signingMetrics,
+                                      boolean mutualTls) {
+        if (endpoint.isAwsIotEndpoint() && credentialsProvider == null && !mutualTls) {
+            throw new IllegalArgumentException("Access keys, a credentials provider, or a client certificate (certificate and private key files, "
+                    + "an SSL context, or the javax.net.ssl.keyStore property) are required to connect to " + endpoint.getClientEndpoint());
+        }
+        // The SDK signs with these only until its connection is replaced, but will not build a client without them.
+        final AWSIotMqttClient client = new AWSIotMqttClient(endpoint.getSdkEndpoint(), clientId, UNUSED_CREDENTIAL, UNUSED_CREDENTIAL, null);
         final AwsIotMqttConnection connection;
         try {
-            if (awsIotEndpoint) {
-                Field field = AbstractAwsIotClient.class.getDeclaredField("connection");
-                field.setAccessible(true);
-                connection = (AwsIotMqttConnection) field.get(client);
-                field = AwsIotMqttConnection.class.getDeclaredField("socketFactory");
-                field.setAccessible(true);
-                field.set(connection, new ProxyAwareSSLSocketFactory());
+            if (endpoint.isAwsIotEndpoint()) {
+                if (credentialsProvider == null) {
+                    // As the SDK's own certificate-based connection does.
+                    connection = new AwsIotMqttConnection(client, socketFactory, "ssl://" + endpoint.getClientEndpoint() + ":" + AWS_IOT_MQTT_TLS_PORT);
+                    CLIENT_CONNECTION_TYPE.set(client, AwsIotConnectionType.MQTT_OVER_TLS);
+                } else {
+                    connection = new SigningWebsocketConnection(client, credentialsProvider, signingMetrics == null ? new SigningMetrics() : signingMetrics);
+                    CONNECTION_SOCKET_FACTORY.set(connection, socketFactory);
+                    CLIENT_CONNECTION_TYPE.set(client, endpoint.getConnectionType());
+                }
             } else {
-                connection = new AwsIotMqttConnection(client, new ProxyAwareSSLSocketFactory(), clientEndpoint);
+                connection = new AwsIotMqttConnection(client, endpoint.isSecure() ? socketFactory : SocketFactory.getDefault(), endpoint.getClientEndpoint());
+                CLIENT_CONNECTION_TYPE.set(client, endpoint.getConnectionType());
             }
-            Field field = AbstractAwsIotClient.class.getDeclaredField("connection");
-            field.setAccessible(true);
-            field.set(client, connection);
-
-            final AwsIotConnectionType connectionType = clientEndpoint.startsWith("wss") ? AwsIotConnectionType.MQTT_OVER_TLS : AwsIotConnectionType.MQTT_OVER_WEBSOCKET;
-            field = AbstractAwsIotClient.class.getDeclaredField("connectionType");
-            field.setAccessible(true);
-            field.set(client, connectionType);
+            CLIENT_CONNECTION.set(client, connection);
         } catch (Exception e) {
             throw new AwsIotRuntimeException(e);
         }
 
         return client;
     }
+
+    /**
+     * The client's connection, whose {@code publish} hands a message to Paho as is; the client's own
+     * {@code publish(AWSIotMessage)} wraps it in a completion that copies the payload twice.
+     */
+    static AwsIotConnection connectionOf(AWSIotMqttClient client) {
+        try {
+            return (AwsIotConnection) CLIENT_CONNECTION.get(client);
+        } catch (IllegalAccessException e) {
+            throw new AwsIotRuntimeException(e);
+        }
+    }
+
+    static Field sdkField(Class<?> owner, String name, Class<?> type) {
+        final Field field;
+        try {
+            field = owner.getDeclaredField(name);
+            field.setAccessible(true);
+        } catch (NoSuchFieldException | SecurityException e) {
+            throw new IllegalStateException(String.format("Unsupported aws-iot-device-sdk-java version: cannot access field %s.%s.", owner.getName(), name), e);
+        }
+        if (field.getType() != type) {
+            throw new IllegalStateException(String.format("Unsupported aws-iot-device-sdk-java version: field %s.%s is a %s, expected a %s.",
+                    owner.getName(), name, field.getType().getName(), type.getName()));
+        }
+        return field;
+    }
+
+    static Method sdkMethod(Class<?> owner, String name, Class<?>... parameterTypes) {
+        try {
+            final Method method = owner.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException | SecurityException e) {
+            throw new IllegalStateException(String.format("Unsupported aws-iot-device-sdk-java version: cannot access method %s.%s.", owner.getName(), name), e);
+        }
+    }
 }
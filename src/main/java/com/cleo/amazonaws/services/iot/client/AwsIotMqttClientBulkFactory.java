@@ -0,0 +1,109 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.core.AwsIotRuntimeException;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Builds many {@link AWSIotMqttClient}s for the same endpoint and credentials, for example one per device of a fleet.
+ * The endpoint is parsed once and every client shares one {@link ProxyAwareSSLSocketFactory}, and with it the TLS
+ * session cache and the memoized proxy selection.
+ *
+ * <pre>
+ * AwsIotMqttClientBulkFactory factory = AwsIotMqttClientBulkFactory.builder()
+ *         .clientEndpoint(endpoint)
+ *         .awsAccessKeyId(accessKeyId)
+ *         .awsSecretAccessKey(secretAccessKey)
+ *         .build();
+ * List&lt;AWSIotMqttClient&gt; clients = factory.newClients(deviceIds.stream(), executor);
+ * </pre>
+ */
+public class AwsIotMqttClientBulkFactory {
+    // Client IDs handed to each task when building in parallel.
+    private static final int PARALLEL_BATCH_SIZE = 256;
+
+    private final ClientEndpoint endpoint;
+    private final AwsCredentialsProvider credentialsProvider;
+    private final SigningMetrics signingMetrics;
+    private final boolean mutualTls;
+
+    @Getter
+    private final ProxyAwareSSLSocketFactory socketFactory;
+
+    /**
+     * @param credentialsProvider shared by every client, in place of the access keys and session token
+     * @param signingMetrics      shared by every client
+     * @param certificate         the PEM file of a client certificate shared by every client, in place of credentials
+     * @param privateKey          the PEM file of the certificate's private key
+     */
+    @Builder
+    private AwsIotMqttClientBulkFactory(String clientEndpoint,
+                                        String awsAccessKeyId,
+                                        String awsSecretAccessKey,
+                                        String sessionToken,
+                                        AwsCredentialsProvider credentialsProvider,
+                                        SigningMetrics signingMetrics,
+                                        Path certificate,
+                                        Path privateKey,
+                                        SSLContext sslContext,
+                                        SocketProfile socketProfile,
+                                        SocketOptions socketOptions) {
+        this.endpoint = new ClientEndpoint(clientEndpoint);
+        this.credentialsProvider = AwsIotMqttClientBuilder.credentialsProvider(credentialsProvider, awsAccessKeyId, awsSecretAccessKey, sessionToken);
+        this.signingMetrics = signingMetrics == null ? new SigningMetrics() : signingMetrics;
+        this.socketFactory = AwsIotMqttClientBuilder.socketFactory(sslContext, certificate, privateKey);
+        this.mutualTls = AwsIotMqttClientBuilder.mutualTls(sslContext, certificate);
+        this.socketFactory.setSocketOptions(SocketOptions.of(socketProfile, socketOptions));
+    }
+
+    public AWSIotMqttClient newClient(String clientId) {
+        return AwsIotMqttClientBuilder.newClient(endpoint, socketFactory, clientId, credentialsProvider, signingMetrics, mutualTls);
+    }
+
+    /**
+     * Builds one client per client ID on the calling thread.
+     *
+     * @param clientIds the client IDs
+     * @return the clients, in client ID order
+     */
+    public List<AWSIotMqttClient> newClients(Stream<String> clientIds) {
+        return clientIds.map(this::newClient).collect(Collectors.toList());
+    }
+
+    /**
+     * Builds one client per client ID, in batches run on the given executor. Blocks until every client is built.
+     *
+     * @param clientIds the client IDs
+     * @param executor  runs the batches
+     * @return the clients, in client ID order
+     */
+    public List<AWSIotMqttClient> newClients(Stream<String> clientIds, Executor executor) {
+        final List<String> ids = clientIds.collect(Collectors.toList());
+        final List<CompletableFuture<List<AWSIotMqttClient>>> batches = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += PARALLEL_BATCH_SIZE) {
+            final List<String> batch = ids.subList(from, Math.min(from + PARALLEL_BATCH_SIZE, ids.size()));
+            batches.add(CompletableFuture.supplyAsync(() -> newClients(batch.stream()), executor));
+        }
+
+        final List<AWSIotMqttClient> clients = new ArrayList<>(ids.size());
+        try {
+            batches.forEach(batch -> clients.addAll(batch.join()));
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new AwsIotRuntimeException(e.getCause());
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,395 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTimeoutException;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Serves many lightweight {@link LogicalClient}s from a few physical MQTT connections, for when a process acts for more
+ * devices or tenants than it should hold connections for. Each connection costs a socket, a TLS session, Paho's
+ * buffers and threads, and a slot in AWS IoT's per-account connection limit; a logical client costs a few objects.
+ *
+ * <p>Logical clients are spread over the connections by how many each already serves, and publish on their own
+ * connection. Subscriptions are shared: every topic filter is subscribed once, on one connection picked by the filter,
+ * however many logical clients subscribe to it, and is unsubscribed when the last of them unsubscribes. Inbound
+ * messages are dispatched to the handlers of the logical clients subscribed to the filter they matched.
+ *
+ * <p>Logical clients have no MQTT identity of their own: they share the client ID, session, keep-alive and last will
+ * of their connection, and AWS IoT policies see only the connection's client ID.
+ *
+ * <pre>
+ * AwsIotMqttClientMultiplexer multiplexer = AwsIotMqttClientMultiplexer.builder()
+ *         .clientEndpoint(endpoint)
+ *         .clientIdPrefix("gateway-1")
+ *         .connections(4)
+ *         .awsAccessKeyId(accessKeyId)
+ *         .awsSecretAccessKey(secretAccessKey)
+ *         .build();
+ * multiplexer.connect();
+ * AwsIotMqttClientMultiplexer.LogicalClient device = multiplexer.newLogicalClient(deviceId);
+ * device.subscribe("devices/" + deviceId + "/commands", AWSIotQos.QOS1, message -&gt; handle(deviceId, message));
+ * device.publish("devices/" + deviceId + "/telemetry", AWSIotQos.QOS0, payload);
+ * </pre>
+ */
+@Slf4j
+public class AwsIotMqttClientMultiplexer {
+    public static final int DEFAULT_CONNECTIONS = 2;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private final List<Connection> connections;
+    private final Map<String, SharedSubscription> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicInteger logicalClients = new AtomicInteger();
+    private final long timeoutMillis;
+
+    @Getter
+    private final ProxyAwareSSLSocketFactory socketFactory;
+
+    /**
+     * @param clientIdPrefix      the connections' client IDs are the prefix followed by {@code -0}, {@code -1} and so on
+     * @param credentialsProvider shared by every connection, in place of the access keys and session token
+     * @param signingMetrics      shared by every connection
+     * @param certificate         the PEM file of a client certificate shared by every connection, in place of credentials
+     * @param privateKey          the PEM file of the certificate's private key
+     * @param connections         the number of physical connections, {@link #DEFAULT_CONNECTIONS} if {@code null}
+     * @param timeoutMillis       how long connects, subscribes and unsubscribes may take,
+     *                            {@link #DEFAULT_TIMEOUT_MILLIS} if {@code null}
+     */
+    @Builder
+    private AwsIotMqttClientMultiplexer(String clientEndpoint,
+                                        String clientIdPrefix,
+                                        String awsAccessKeyId,
+                                        String awsSecretAccessKey,
+                                        String sessionToken,
+                                        AwsCredentialsProvider credentialsProvider,
+                                        SigningMetrics signingMetrics,
+                                        Path certificate,
+                                        Path privateKey,
+                                        SSLContext sslContext,
+                                        SocketProfile socketProfile,
+                                        SocketOptions socketOptions,
+                                        Integer connections,
+                                        Long timeoutMillis) {
+        final int count = connections == null ? DEFAULT_CONNECTIONS : connections;
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one connection is needed, not " + count);
+        }
+        if (clientIdPrefix == null) {
+            throw new IllegalArgumentException("A client ID prefix is required.");
+        }
+        this.timeoutMillis = timeoutMillis == null ? DEFAULT_TIMEOUT_MILLIS : timeoutMillis;
+
+        final AwsIotMqttClientBulkFactory factory = AwsIotMqttClientBulkFactory.builder()
+                .clientEndpoint(clientEndpoint)
+                .awsAccessKeyId(awsAccessKeyId)
+                .awsSecretAccessKey(awsSecretAccessKey)
+                .sessionToken(sessionToken)
+                .credentialsProvider(credentialsProvider)
+                .signingMetrics(signingMetrics)
+                .certificate(certificate)
+                .privateKey(privateKey)
+                .sslContext(sslContext)
+                .socketProfile(socketProfile)
+                .socketOptions(socketOptions)
+                .build();
+        this.socketFactory = factory.getSocketFactory();
+        final List<Connection> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new Connection(factory.newClient(clientIdPrefix + "-" + i)));
+        }
+        this.connections = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Connects every physical connection, one after the other, then subscribes the shared topic filters again: the SDK
+     * forgets its subscriptions when disconnected, and when it gives up reconnecting.
+     */
+    public void connect() throws AWSIotException, AWSIotTimeoutException {
+        for (Connection connection : connections) {
+            final ScheduledExecutorService executor = connection.client.getExecutionService();
+            if (executor != null && executor.isShutdown()) {
+                // The SDK shuts its executor down on disconnect, but only creates one when it has none.
+                connection.client.setExecutionService(null);
+            }
+            connection.client.connect(timeoutMillis);
+        }
+        Exception failure = null;
+        for (SharedSubscription subscription : subscriptions.values()) {
+            synchronized (subscription) {
+                try {
+                    subscription.resubscribe();
+                } catch (AWSIotException | AWSIotTimeoutException e) {
+                    // Left unsubscribed; the next connect, or logical client subscribing to the filter, tries again.
+                    log.warn("Could not subscribe {} again", subscription.getTopic(), e);
+                    failure = e;
+                }
+            }
+        }
+        if (failure instanceof AWSIotTimeoutException) {
+            throw (AWSIotTimeoutException) failure;
+        }
+        if (failure != null) {
+            throw (AWSIotException) failure;
+        }
+    }
+
+    /**
+     * Disconnects every physical connection. Logical clients and their subscriptions are kept, and the shared topic
+     * filters are subscribed again by {@link #connect()}.
+     */
+    public void disconnect() throws AWSIotException {
+        AWSIotException failure = null;
+        for (Connection connection : connections) {
+            try {
+                connection.client.disconnect();
+            } catch (AWSIotException e) {
+                log.warn("Could not disconnect {}", connection.client.getClientId(), e);
+                failure = e;
+            }
+        }
+        for (SharedSubscription subscription : subscriptions.values()) {
+            synchronized (subscription) {
+                subscription.subscribed = false;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param name identifies the logical client in logs; it need not be unique
+     * @return a logical client on the connection that serves the fewest
+     */
+    public LogicalClient newLogicalClient(String name) {
+        final Connection connection = connections.stream()
+                .min(Comparator.comparingInt(c -> c.logicalClients.get()))
+                .orElseThrow(IllegalStateException::new);
+        connection.logicalClients.incrementAndGet();
+        logicalClients.incrementAndGet();
+        return new LogicalClient(name, connection);
+    }
+
+    public List<AWSIotMqttClient> getConnections() {
+        final List<AWSIotMqttClient> clients = new ArrayList<>(connections.size());
+        connections.forEach(c -> clients.add(c.client));
+        return clients;
+    }
+
+    public int getLogicalClientCount() {
+        return logicalClients.get();
+    }
+
+    /**
+     * @return the number of topic filters subscribed on the physical connections
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    private Connection connectionFor(String topicFilter) {
+        return connections.get(Math.floorMod(topicFilter.hashCode(), connections.size()));
+    }
+
+    /**
+     * One tenant of the multiplexer. Publishes go out on the connection the logical client was placed on; inbound
+     * messages reach the handlers it subscribed with, on the SDK's callback threads.
+     */
+    public class LogicalClient implements Closeable {
+        @Getter
+        private final String name;
+        private final Connection connection;
+        private final Map<String, SharedSubscription> subscribed = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        private LogicalClient(String name, Connection connection) {
+            this.name = name;
+            this.connection = connection;
+        }
+
+        public void publish(String topic, AWSIotQos qos, byte[] payload) throws AWSIotException, AWSIotTimeoutException {
+            checkOpen();
+            connection.client.publish(topic, qos, payload, timeoutMillis);
+        }
+
+        /**
+         * Publishes without blocking; the message's callbacks report the outcome.
+         */
+        public void publish(AWSIotMessage message) throws AWSIotException {
+            checkOpen();
+            connection.client.publish(message);
+        }
+
+        /**
+         * Subscribes the handler to the topic filter, replacing this logical client's earlier handler for the same
+         * filter. Only the first subscriber to a filter, or one asking for a higher QoS, subscribes on the connection.
+         */
+        public void subscribe(String topicFilter, AWSIotQos qos, Consumer<AWSIotMessage> handler) throws AWSIotException, AWSIotTimeoutException {
+            checkOpen();
+            while (true) {
+                final SharedSubscription subscription = subscriptions.computeIfAbsent(topicFilter,
+                        f -> new SharedSubscription(f, qos, connectionFor(f)));
+                synchronized (subscription) {
+                    if (subscription.removed) {
+                        // Lost a race with the last unsubscribe; start over with a fresh subscription.
+                        continue;
+                    }
+                    final Consumer<AWSIotMessage> previousHandler = subscription.handlers.put(this, handler);
+                    try {
+                        subscription.subscribe(qos);
+                    } catch (AWSIotException | AWSIotTimeoutException | RuntimeException e) {
+                        if (previousHandler == null) {
+                            subscription.handlers.remove(this);
+                            subscription.removeIfUnused();
+                        } else {
+                            subscription.handlers.put(this, previousHandler);
+                        }
+                        throw e;
+                    }
+                    subscribed.put(topicFilter, subscription);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Removes this logical client's handler for the topic filter. The filter is unsubscribed on the connection
+         * once no logical client is subscribed to it.
+         */
+        public void unsubscribe(String topicFilter) throws AWSIotException, AWSIotTimeoutException {
+            final SharedSubscription subscription = subscribed.remove(topicFilter);
+            if (subscription == null) {
+                return;
+            }
+            synchronized (subscription) {
+                subscription.handlers.remove(this);
+                subscription.unsubscribeIfUnused();
+            }
+        }
+
+        /**
+         * Unsubscribes every topic filter and releases the logical client's place on its connection.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (String topicFilter : new ArrayList<>(subscribed.keySet())) {
+                try {
+                    unsubscribe(topicFilter);
+                } catch (AWSIotException | AWSIotTimeoutException e) {
+                    log.warn("Could not unsubscribe {} for {}", topicFilter, name, e);
+                }
+            }
+            connection.logicalClients.decrementAndGet();
+            logicalClients.decrementAndGet();
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Logical client " + name + " is closed.");
+            }
+        }
+    }
+
+    private static class Connection {
+        private final AWSIotMqttClient client;
+        private final AtomicInteger logicalClients = new AtomicInteger();
+
+        Connection(AWSIotMqttClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * A topic filter subscribed once on one connection, and the handlers of the logical clients sharing it. Changes are
+     * made while holding its monitor; dispatch reads the handlers without it.
+     */
+    private class SharedSubscription extends AWSIotTopic {
+        private final Connection connection;
+        private final Map<LogicalClient, Consumer<AWSIotMessage>> handlers = new ConcurrentHashMap<>();
+        private boolean subscribed;
+        private boolean removed;
+
+        SharedSubscription(String topicFilter, AWSIotQos qos, Connection connection) {
+            super(topicFilter, qos);
+            this.connection = connection;
+        }
+
+        void subscribe(AWSIotQos requested) throws AWSIotException, AWSIotTimeoutException {
+            if (subscribed && requested.getValue() <= getQos().getValue()) {
+                return;
+            }
+            final AWSIotQos previous = getQos();
+            if (requested.getValue() > previous.getValue()) {
+                setQos(requested);
+            }
+            try {
+                connection.client.subscribe(this, timeoutMillis, true);
+                subscribed = true;
+            } catch (AWSIotException | AWSIotTimeoutException | RuntimeException e) {
+                setQos(previous);
+                throw e;
+            }
+        }
+
+        void resubscribe() throws AWSIotException, AWSIotTimeoutException {
+            if (removed || connection.client.getSubscriptions().containsKey(getTopic())) {
+                return;
+            }
+            subscribed = false;
+            subscribe(getQos());
+        }
+
+        void removeIfUnused() {
+            if (handlers.isEmpty() && !subscribed) {
+                removed = true;
+                subscriptions.remove(getTopic(), this);
+            }
+        }
+
+        void unsubscribeIfUnused() throws AWSIotException, AWSIotTimeoutException {
+            if (!handlers.isEmpty() || removed) {
+                return;
+            }
+            removed = true;
+            subscriptions.remove(getTopic(), this);
+            if (subscribed) {
+                connection.client.unsubscribe(getTopic(), timeoutMillis);
+            }
+        }
+
+        @Override
+        public void onMessage(AWSIotMessage message) {
+            for (Map.Entry<LogicalClient, Consumer<AWSIotMessage>> entry : handlers.entrySet()) {
+                try {
+                    entry.getValue().accept(message);
+                } catch (RuntimeException e) {
+                    log.warn("Handler of {} failed on a message for {}", entry.getKey().getName(), message.getTopic(), e);
+                }
+            }
+        }
+    }
+}
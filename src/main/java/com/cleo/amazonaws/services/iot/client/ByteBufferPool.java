@@ -0,0 +1,138 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free pool of heap or direct buffers, so that serializing payloads does not allocate a buffer per message.
+ * Capacities are rounded up to a power of two, from {@value #MIN_CAPACITY} bytes up to {@value #MAX_POOLED_CAPACITY};
+ * larger buffers are allocated on demand and not kept. The pool keeps a number of released buffers per capacity and,
+ * across all capacities, no more than a number of bytes, so that a few large payloads do not pin large buffers.
+ *
+ * <p>Since capacities are rounded up, a buffer rarely has its whole array filled, so
+ * {@link PublishPipeline#publish(String, com.amazonaws.services.iot.client.AWSIotQos, ByteBuffer, ByteBufferPool)}
+ * copies its bytes once and returns it to the pool right away, before the publish completes.
+ *
+ * <pre>
+ * ByteBuffer buffer = pool.acquire(estimatedSize);
+ * serializer.write(reading, buffer);
+ * buffer.flip();
+ * pipeline.publish(topic, AWSIotQos.QOS1, buffer, pool);
+ * </pre>
+ */
+public class ByteBufferPool {
+    public static final int MIN_CAPACITY = 64;
+    public static final int MAX_POOLED_CAPACITY = 1 << 24;
+    public static final int DEFAULT_MAX_POOLED_PER_SIZE = 256;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L << 20;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    private static final int SIZES = Integer.numberOfTrailingZeros(MAX_POOLED_CAPACITY) - MIN_SHIFT + 1;
+
+    private final boolean direct;
+    private final int maxPooledPerSize;
+    private final long maxPooledBytes;
+    private final List<Queue<ByteBuffer>> pooled;
+    private final AtomicInteger[] pooledCounts;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    public ByteBufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_POOLED_PER_SIZE);
+    }
+
+    /**
+     * @param direct           whether to pool direct buffers rather than heap buffers
+     * @param maxPooledPerSize how many released buffers of each capacity are kept
+     */
+    public ByteBufferPool(boolean direct, int maxPooledPerSize) {
+        this(direct, maxPooledPerSize, DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * @param direct           whether to pool direct buffers rather than heap buffers
+     * @param maxPooledPerSize how many released buffers of each capacity are kept
+     * @param maxPooledBytes   how many bytes of released buffers are kept in all
+     */
+    public ByteBufferPool(boolean direct, int maxPooledPerSize, long maxPooledBytes) {
+        this.direct = direct;
+        this.maxPooledPerSize = maxPooledPerSize;
+        this.maxPooledBytes = maxPooledBytes;
+        this.pooled = new ArrayList<>(SIZES);
+        this.pooledCounts = new AtomicInteger[SIZES];
+        for (int i = 0; i < SIZES; i++) {
+            pooled.add(new ConcurrentLinkedQueue<>());
+            pooledCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param capacity the least capacity needed
+     * @return a cleared buffer, limited to the requested capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        final int size = sizeIndex(capacity);
+        ByteBuffer buffer = size < 0 ? null : pooled.get(size).poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            final int allocate = size < 0 ? capacity : MIN_CAPACITY << size;
+            buffer = direct ? ByteBuffer.allocateDirect(allocate) : ByteBuffer.allocate(allocate);
+        } else {
+            pooledCounts[size].decrementAndGet();
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer for reuse. Buffers this pool did not hand out, or that exceed what is kept, are left to the
+     * garbage collector. The caller must not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        final int size = sizeIndex(buffer.capacity());
+        if (size < 0 || buffer.isDirect() != direct || MIN_CAPACITY << size != buffer.capacity() || buffer.isReadOnly()) {
+            return;
+        }
+        if (pooledCounts[size].incrementAndGet() > maxPooledPerSize) {
+            pooledCounts[size].decrementAndGet();
+            return;
+        }
+        if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            pooledCounts[size].decrementAndGet();
+            return;
+        }
+        pooled.get(size).add(buffer);
+    }
+
+    /**
+     * @return the capacity of the released buffers kept, in bytes
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return how many buffers the pool has had to allocate
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    // The index of the smallest pooled capacity holding the given capacity, or -1 if it is too large to pool.
+    private static int sizeIndex(int capacity) {
+        if (capacity > MAX_POOLED_CAPACITY) {
+            return -1;
+        }
+        if (capacity <= MIN_CAPACITY) {
+            return 0;
+        }
+        return Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,34 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A topic whose messages are delivered as read-only {@link ByteBuffer}s over the message's own payload array, saving
+ * the copy {@link AWSIotMessage#getPayload()} makes.
+ *
+ * <pre>
+ * client.subscribe(new ByteBufferTopic("devices/+/telemetry", AWSIotQos.QOS1) {
+ *     &#64;Override
+ *     public void onMessage(String topic, ByteBuffer payload) {
+ *         decoder.decode(payload);
+ *     }
+ * }, true);
+ * </pre>
+ */
+public abstract class ByteBufferTopic extends AWSIotTopic {
+
+    public ByteBufferTopic(String topic, AWSIotQos qos) {
+        super(topic, qos);
+    }
+
+    @Override
+    public void onMessage(AWSIotMessage message) {
+        onMessage(message.getTopic(), Payloads.asByteBuffer(message));
+    }
+
+    public abstract void onMessage(String topic, ByteBuffer payload);
+}
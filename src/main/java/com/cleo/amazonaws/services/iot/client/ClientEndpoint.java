@@ -0,0 +1,55 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.core.AwsIotConnectionType;
+
+import java.util.Locale;
+
+import lombok.Getter;
+
+/**
+ * A parsed client endpoint: either an AWS IoT endpoint host name, or the URI of some other MQTT broker. The URI scheme
+ * selects the transport, as it does for Paho: {@code ssl://} is MQTT over TLS, {@code tcp://} plain MQTT,
+ * {@code wss://} MQTT over secure WebSocket and {@code ws://} MQTT over plain WebSocket.
+ */
+@Getter
+class ClientEndpoint {
+    // The SDK insists on an AWS IoT endpoint (to derive the signing region) even when the connection is replaced.
+    private static final String PLACEHOLDER_AWS_IOT_ENDPOINT = "foobar.iot.us-west-2.amazonaws.com";
+
+    private final String clientEndpoint;
+    private final boolean awsIotEndpoint;
+    private final String sdkEndpoint;
+    private final AwsIotConnectionType connectionType;
+    /**
+     * Whether the transport is TLS, and so uses the builder's {@link ProxyAwareSSLSocketFactory}.
+     */
+    private final boolean secure;
+
+    ClientEndpoint(String clientEndpoint) {
+        this.clientEndpoint = clientEndpoint;
+        final int schemeEnd = clientEndpoint.indexOf("://");
+        this.awsIotEndpoint = schemeEnd == -1;
+        this.sdkEndpoint = awsIotEndpoint ? clientEndpoint : PLACEHOLDER_AWS_IOT_ENDPOINT;
+        if (awsIotEndpoint) {
+            // The SDK connects to AWS IoT over secure WebSocket when it signs with access keys.
+            this.connectionType = AwsIotConnectionType.MQTT_OVER_WEBSOCKET;
+            this.secure = true;
+            return;
+        }
+
+        final String scheme = clientEndpoint.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+        switch (scheme) {
+            case "ssl":
+            case "tcp":
+                this.connectionType = AwsIotConnectionType.MQTT_OVER_TLS;
+                break;
+            case "wss":
+            case "ws":
+                this.connectionType = AwsIotConnectionType.MQTT_OVER_WEBSOCKET;
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported endpoint scheme %s in %s, expected ssl, tcp, wss or ws.", scheme, clientEndpoint));
+        }
+        this.secure = scheme.equals("ssl") || scheme.equals("wss");
+    }
+}
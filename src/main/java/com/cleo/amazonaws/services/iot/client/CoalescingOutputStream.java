@@ -0,0 +1,153 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects small writes into one buffer and hands them to the TLS socket stream in a single write, so that they leave as
+ * one TLS record (up to a little under 16 KB of plaintext) rather than one record per write. Large writes, such as
+ * big payloads, bypass the buffer a whole buffer's worth at a time.
+ *
+ * <p>With {@link ProxyAwareSSLSocketFactory.FlushPolicy#ON_FLUSH} the buffer is sent when the caller flushes or the
+ * buffer is full. With {@link ProxyAwareSSLSocketFactory.FlushPolicy#ON_PACKET_BOUNDARY} the stream follows the MQTT
+ * fixed header framing and sends the buffer as soon as a packet is complete, ignoring flushes in the middle of a packet.
+ * That only makes sense for raw MQTT ({@code ssl://}): a stream that does not start with a CONNECT, such as the HTTP
+ * upgrade request of a WebSocket ({@code wss://}) connection, is sent on flush instead.
+ */
+class CoalescingOutputStream extends OutputStream {
+    private static final int MQTT_CONNECT = 0x10;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private boolean packetBoundary;
+    private boolean started;
+    private int count;
+
+    private final MqttFraming framing = new MqttFraming();
+
+    CoalescingOutputStream(OutputStream out, int bufferSize, ProxyAwareSSLSocketFactory.FlushPolicy flushPolicy) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+        this.packetBoundary = flushPolicy == ProxyAwareSSLSocketFactory.FlushPolicy.ON_PACKET_BOUNDARY;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (!started && len > 0) {
+            started = true;
+            // Not MQTT framing, so packet boundaries cannot be found and the caller's flushes must be honoured.
+            packetBoundary &= (b[off] & 0xF0) == MQTT_CONNECT;
+        }
+        while (len > 0) {
+            // Never copy past the end of the current packet, so that its end can be sent on its own.
+            int n = packetBoundary ? framing.consumable(b, off, len) : len;
+            if (count == 0 && n >= buffer.length) {
+                // Whole buffers' worth fill whole records anyway, so they skip the copy into the buffer.
+                n -= n % buffer.length;
+                out.write(b, off, n);
+                if (packetBoundary) {
+                    framing.advance(b, off, n);
+                }
+            } else {
+                n = Math.min(n, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                if (packetBoundary && framing.advance(buffer, count - n, n) || count == buffer.length) {
+                    send();
+                }
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!packetBoundary || framing.isBetweenPackets()) {
+            send();
+            out.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            send();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void send() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Tracks where MQTT packets end: a type byte, a variable length "remaining length", then that many bytes.
+     */
+    private static class MqttFraming {
+        private static final int TYPE = 0;
+        private static final int LENGTH = 1;
+        private static final int BODY = 2;
+
+        private int state = TYPE;
+        private int length;
+        private int shift;
+        private int remaining;
+
+        boolean isBetweenPackets() {
+            return state == TYPE;
+        }
+
+        // How many of the given bytes belong to the current packet.
+        int consumable(byte[] b, int off, int len) {
+            if (state == BODY) {
+                return Math.min(len, remaining);
+            }
+            // Header bytes are taken one at a time.
+            return 1;
+        }
+
+        // Advances over bytes just buffered, returning whether they completed a packet.
+        boolean advance(byte[] b, int off, int len) {
+            if (state == BODY) {
+                remaining -= len;
+                return completeIfEmpty();
+            }
+            int value = b[off] & 0xFF;
+            if (state == TYPE) {
+                state = LENGTH;
+                length = 0;
+                shift = 0;
+                return false;
+            }
+            length |= (value & 0x7F) << shift;
+            shift += 7;
+            if ((value & 0x80) == 0) {
+                state = BODY;
+                remaining = length;
+                return completeIfEmpty();
+            }
+            return false;
+        }
+
+        private boolean completeIfEmpty() {
+            if (remaining == 0) {
+                state = TYPE;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotTimeoutException;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads out the connects of many clients, for example when a whole fleet reconnects after a broker outage, so that
+ * the TLS handshakes do not overwhelm the proxy or trip AWS IoT's connect rate limits.
+ *
+ * <p>Each connect first waits a random jitter, then queues for admission. Admission takes a token from a token bucket
+ * (the connect rate) and a slot from the in-flight limit (concurrent handshakes). A failed connect is retried after an
+ * exponential, jittered backoff until the attempts are used up.
+ *
+ * <p>Clients connected through the orchestrator should not also retry on their own, so consider
+ * {@link AWSIotMqttClient#setMaxConnectionRetries(int) disabling} the SDK's connection retries and calling
+ * {@link #connect(AWSIotMqttClient)} again when a connection is lost.
+ */
+@Slf4j
+public class ConnectOrchestrator implements Closeable {
+
+    /**
+     * Connects a client, blocking until it is connected or the attempt failed.
+     */
+    @FunctionalInterface
+    public interface Connector {
+        void connect(AWSIotMqttClient client) throws AWSIotException, AWSIotTimeoutException;
+    }
+
+    private final TokenBucket tokenBucket;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final long maxJitterMillis;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxAttempts;
+    private final Connector connector;
+
+    private final BlockingQueue<Request> ready = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    // Connects waiting for their jitter, backoff or admission.
+    private final Set<Request> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong admissionNanos = new AtomicLong();
+    private final AtomicLong maxAdmissionNanos = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param connectsPerSecond    the sustained connect admission rate
+     * @param burst                how many connects may be admitted at once after a quiet period, defaults to 1
+     * @param maxInFlight          the maximum number of concurrent connects, defaults to 10
+     * @param maxJitterMillis      each connect first waits a random delay up to this long
+     * @param baseBackoffMillis    the delay before the first retry, doubled for each further retry, defaults to 1000
+     * @param maxBackoffMillis     the upper limit of the retry delay, defaults to 60000
+     * @param maxAttempts          the number of connect attempts per client, defaults to 5
+     * @param connectTimeoutMillis the timeout of each connect attempt, defaults to 30000
+     * @param connector            connects a client, by default with {@code client.connect(connectTimeoutMillis, true)}
+     */
+    @Builder
+    private ConnectOrchestrator(double connectsPerSecond,
+                                Integer burst,
+                                Integer maxInFlight,
+                                long maxJitterMillis,
+                                Long baseBackoffMillis,
+                                Long maxBackoffMillis,
+                                Integer maxAttempts,
+                                Long connectTimeoutMillis,
+                                Connector connector) {
+        final long timeout = connectTimeoutMillis == null ? 30000 : connectTimeoutMillis;
+        this.tokenBucket = new TokenBucket(connectsPerSecond, burst == null ? 1 : burst);
+        this.maxInFlight = maxInFlight == null ? 10 : maxInFlight;
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.maxJitterMillis = maxJitterMillis;
+        this.baseBackoffMillis = baseBackoffMillis == null ? 1000 : baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis == null ? 60000 : maxBackoffMillis;
+        this.maxAttempts = maxAttempts == null ? 5 : maxAttempts;
+        this.connector = connector == null ? client -> client.connect(timeout, true) : connector;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("connect-orchestrator-scheduler"));
+        this.workers = Executors.newFixedThreadPool(this.maxInFlight, daemonThreads("connect-orchestrator-worker"));
+        this.dispatcher = daemonThreads("connect-orchestrator-dispatcher").newThread(this::dispatch);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Queues a client for connecting.
+     *
+     * @param client the client
+     * @return completes when the client is connected, or exceptionally with the last failure once the attempts are used
+     * up
+     */
+    public CompletableFuture<AWSIotMqttClient> connect(AWSIotMqttClient client) {
+        if (closed) {
+            throw new RejectedExecutionException("Orchestrator is closed.");
+        }
+        final Request request = new Request(client);
+        pending.add(request);
+        schedule(request, maxJitterMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(maxJitterMillis + 1));
+        return request.future;
+    }
+
+    public List<CompletableFuture<AWSIotMqttClient>> connectAll(Collection<AWSIotMqttClient> clients) {
+        return clients.stream().map(this::connect).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the number of connects waiting for their jitter, backoff or admission
+     */
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the mean time connects waited for admission once their jitter or backoff had passed
+     */
+    public double getMeanAdmissionLatencyMillis() {
+        final long count = admitted.get();
+        return count == 0 ? 0 : admissionNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxAdmissionLatencyMillis() {
+        return maxAdmissionNanos.get() / 1e6;
+    }
+
+    /**
+     * Stops admitting connects. Queued connects complete exceptionally with a {@link CancellationException}; connects
+     * already in flight are left to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        scheduler.shutdownNow();
+        workers.shutdown();
+        for (Request request : pending) {
+            if (pending.remove(request)) {
+                request.future.completeExceptionally(new CancellationException("Orchestrator closed."));
+            }
+        }
+    }
+
+    private void schedule(Request request, long delayMillis) {
+        try {
+            scheduler.schedule(() -> {
+                request.readyAt = System.nanoTime();
+                ready.add(request);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (pending.remove(request)) {
+                request.future.completeExceptionally(new CancellationException("Orchestrator closed."));
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            final Request request;
+            try {
+                request = ready.take();
+                inFlight.acquire();
+                try {
+                    tokenBucket.acquire();
+                } catch (InterruptedException e) {
+                    inFlight.release();
+                    ready.add(request);
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (!pending.remove(request)) {
+                // Cancelled by close().
+                inFlight.release();
+                continue;
+            }
+            final long waited = System.nanoTime() - request.readyAt;
+            admitted.incrementAndGet();
+            admissionNanos.addAndGet(waited);
+            maxAdmissionNanos.accumulateAndGet(waited, Math::max);
+
+            try {
+                workers.execute(() -> attempt(request));
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                request.future.completeExceptionally(new CancellationException("Orchestrator closed."));
+            }
+        }
+    }
+
+    private void attempt(Request request) {
+        request.attempts++;
+        try {
+            connector.connect(request.client);
+            request.future.complete(request.client);
+        } catch (Exception e) {
+            if (request.attempts >= maxAttempts || closed) {
+                log.debug("Connect of client {} failed after {} attempt(s).", request.client.getClientId(), request.attempts, e);
+                failures.incrementAndGet();
+                request.future.completeExceptionally(e);
+            } else {
+                final long backoff = backoffMillis(request.attempts);
+                log.debug("Connect of client {} failed, retrying in {} ms.", request.client.getClientId(), backoff);
+                retries.incrementAndGet();
+                pending.add(request);
+                schedule(request, backoff);
+            }
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    // Exponential backoff with "equal jitter": half the delay is fixed, the other half random.
+    private long backoffMillis(int attempts) {
+        final long exponential = baseBackoffMillis << Math.min(attempts - 1, 30);
+        final long backoff = Math.min(maxBackoffMillis, exponential < 0 ? maxBackoffMillis : exponential);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class Request {
+        private final AWSIotMqttClient client;
+        private final CompletableFuture<AWSIotMqttClient> future = new CompletableFuture<>();
+        private volatile long readyAt;
+        private volatile int attempts;
+
+        Request(AWSIotMqttClient client) {
+            this.client = client;
+        }
+    }
+}
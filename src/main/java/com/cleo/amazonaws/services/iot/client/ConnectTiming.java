@@ -0,0 +1,62 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * How long the phases of one connect attempt took, through one proxy or direct. A phase that did not take place, or
+ * was not reached, is -1.
+ */
+@Value
+@Builder(toBuilder = true)
+public class ConnectTiming {
+    /**
+     * The endpoint, as host:port.
+     */
+    String endpoint;
+    Proxy proxy;
+    /**
+     * Resolving the endpoint, or for HTTP proxies the proxy.
+     */
+    long dnsNanos;
+    /**
+     * The TCP connect to the endpoint, or for HTTP proxies to the proxy.
+     */
+    long tcpConnectNanos;
+    /**
+     * The CONNECT exchange with an HTTP proxy, including any authentication. For other proxies, which the JDK handles,
+     * the TCP connect to the proxy and the tunnel setup together.
+     */
+    long proxyTunnelNanos;
+    long tlsHandshakeNanos;
+    /**
+     * The negotiated TLS protocol, {@code null} unless the handshake completed.
+     */
+    String protocol;
+    /**
+     * The negotiated cipher suite, {@code null} unless the handshake completed.
+     */
+    String cipherSuite;
+    /**
+     * Why the attempt failed, {@code null} if it succeeded.
+     */
+    IOException failure;
+
+    public boolean isSucceeded() {
+        return failure == null;
+    }
+
+    static ConnectTimingBuilder attempt(InetSocketAddress endpoint, Proxy proxy) {
+        return builder()
+                .endpoint(endpoint.getHostString() + ":" + endpoint.getPort())
+                .proxy(proxy)
+                .dnsNanos(-1)
+                .tcpConnectNanos(-1)
+                .proxyTunnelNanos(-1)
+                .tlsHandshakeNanos(-1);
+    }
+}
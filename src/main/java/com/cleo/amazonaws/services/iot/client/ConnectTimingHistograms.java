@@ -0,0 +1,101 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Value;
+
+/**
+ * Records connect attempt timings into a {@link LatencyHistogram} per phase and per combination of endpoint, proxy,
+ * TLS protocol and cipher suite. Recording takes no locks, so it can stay on in production.
+ *
+ * <pre>
+ * ConnectTimingHistograms timings = new ConnectTimingHistograms();
+ * socketFactory.setConnectTimingListener(timings);
+ * ...
+ * for (ConnectTimingHistograms.Tags tags : timings.getTags()) {
+ *     long p99 = timings.getHistogram(tags, ConnectTimingHistograms.Phase.TLS_HANDSHAKE).getPercentileNanos(99);
+ * }
+ * </pre>
+ */
+public class ConnectTimingHistograms implements ConnectTimingListener {
+    public enum Phase {
+        DNS,
+        TCP_CONNECT,
+        PROXY_TUNNEL,
+        TLS_HANDSHAKE
+    }
+
+    /**
+     * What a set of histograms is recorded for. Failed attempts have no protocol and cipher suite.
+     */
+    @Value
+    public static class Tags {
+        String endpoint;
+        /**
+         * The proxy address, {@code DIRECT} for direct attempts.
+         */
+        String proxy;
+        String protocol;
+        String cipherSuite;
+    }
+
+    private final Map<Tags, Series> series = new ConcurrentHashMap<>();
+
+    @Override
+    public void attempted(ConnectTiming timing) {
+        final Proxy proxy = timing.getProxy();
+        final Tags tags = new Tags(timing.getEndpoint(),
+                proxy == null || proxy.type() == Proxy.Type.DIRECT ? "DIRECT" : String.valueOf(proxy.address()),
+                timing.getProtocol(),
+                timing.getCipherSuite());
+        Series s = series.get(tags);
+        if (s == null) {
+            // On Java 8 computeIfAbsent locks the bin even when the key is present, so only call it on a miss.
+            s = series.computeIfAbsent(tags, t -> new Series());
+        }
+        s.histograms.get(Phase.DNS).record(timing.getDnsNanos());
+        s.histograms.get(Phase.TCP_CONNECT).record(timing.getTcpConnectNanos());
+        s.histograms.get(Phase.PROXY_TUNNEL).record(timing.getProxyTunnelNanos());
+        s.histograms.get(Phase.TLS_HANDSHAKE).record(timing.getTlsHandshakeNanos());
+        if (!timing.isSucceeded()) {
+            s.failures.increment();
+        }
+    }
+
+    public Set<Tags> getTags() {
+        return Collections.unmodifiableSet(series.keySet());
+    }
+
+    /**
+     * @return the histogram, empty if nothing was recorded for the tags
+     */
+    public LatencyHistogram getHistogram(Tags tags, Phase phase) {
+        final Series s = series.get(tags);
+        return s == null ? new LatencyHistogram() : s.histograms.get(phase);
+    }
+
+    /**
+     * @return the number of failed attempts recorded for the tags
+     */
+    public long getFailures(Tags tags) {
+        final Series s = series.get(tags);
+        return s == null ? 0 : s.failures.sum();
+    }
+
+    private static class Series {
+        private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+        private final LongAdder failures = new LongAdder();
+
+        Series() {
+            for (Phase phase : Phase.values()) {
+                histograms.put(phase, new LatencyHistogram());
+            }
+        }
+    }
+}
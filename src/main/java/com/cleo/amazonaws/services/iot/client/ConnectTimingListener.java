@@ -0,0 +1,17 @@
+package com.cleo.amazonaws.services.iot.client;
+
+/**
+ * Receives the phase timings of every connect attempt made by the sockets of a {@link ProxyAwareSSLSocketFactory}.
+ *
+ * @see ConnectTimingHistograms
+ */
+public interface ConnectTimingListener {
+    /**
+     * Called once per attempt: when it fails, or, for the attempt that connected, when its TLS handshake completes or
+     * fails. Called from connecting threads and the TLS handshake notification thread, so it must be thread-safe and
+     * must not block.
+     *
+     * @param timing the timings of the attempt
+     */
+    void attempted(ConnectTiming timing);
+}
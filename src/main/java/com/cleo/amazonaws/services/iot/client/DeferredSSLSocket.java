@@ -10,15 +10,23 @@ import java.net.ProxySelector;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
@@ -33,7 +41,13 @@ public class DeferredSSLSocket extends SSLSocket {
 
     private SSLSocketFactory socketFactory;
     private ProxySelector proxySelector;
+    private ProxyAwareSSLSocketFactory owner;
     private SSLSocket delegate;
+    private SocketTracker.Tracked channelTracked;
+    private OutputStream outputStream;
+    // The timings of the attempt that connected, until its TLS handshake completes.
+    private final AtomicReference<ConnectTiming.ConnectTimingBuilder> handshakeTiming = new AtomicReference<>();
+    private volatile long handshakeStart;
 
     private SocketAddress deferredBindpoint;
     private Boolean deferredTcpNoDelay;
@@ -66,6 +80,11 @@ public class DeferredSSLSocket extends SSLSocket {
         this.proxySelector = proxySelector;
     }
 
+    DeferredSSLSocket(ProxyAwareSSLSocketFactory owner, SSLSocketFactory socketFactory) {
+        this(socketFactory, owner.getProxySelector() == null ? ProxySelector.getDefault() : owner.getProxySelector());
+        this.owner = owner;
+    }
+
     @Override
     public void connect(SocketAddress endpoint) throws IOException {
         connectInternal(endpoint, null);
@@ -76,35 +95,201 @@ public class DeferredSSLSocket extends SSLSocket {
         connectInternal(endpoint, timeout);
     }
 
+    /**
+     * Connects and completes the TLS handshake without blocking the calling thread.
+     *
+     * <p>Without a proxy, the TCP connect is driven by a shared NIO selector thread, so pending connects do not hold
+     * threads. The TLS handshake is blocking and runs on the given executor; on Java 21 and later a virtual thread
+     * executor lets thousands of handshakes proceed at once. The proxy lookup, which may evaluate a PAC script, and the
+     * DNS lookup run on the executor as well. Connects through a proxy run entirely on the executor. The timeout bounds
+     * the TLS handshake too, so a server that accepts the connection but never answers does not hold an executor thread.
+     *
+     * @param endpoint the endpoint
+     * @param timeout  the connect timeout in milliseconds, zero for no timeout
+     * @param executor runs the proxy and DNS lookups, the TLS handshake and any proxied connect
+     * @return completes with this socket once it is connected and the handshake is done
+     */
+    public CompletableFuture<SSLSocket> connectAsync(SocketAddress endpoint, int timeout, Executor executor) {
+        if (delegate != null) {
+            CompletableFuture<SSLSocket> future = new CompletableFuture<>();
+            future.completeExceptionally(new SocketException("Already connected."));
+            return future;
+        }
+
+        long deadline = deadline(timeout);
+        return CompletableFuture.supplyAsync(() -> {
+            if (getProxies(endpoint).isEmpty() && (owner == null || owner.getConnectMode() != ProxyAwareSSLSocketFactory.ConnectMode.RACE)) {
+                return connectDirectAsync((InetSocketAddress) endpoint, timeout, deadline, executor);
+            }
+            try {
+                connectInternal(endpoint, timeout);
+                startHandshake(deadline);
+                return CompletableFuture.completedFuture((SSLSocket) this);
+            } catch (IOException e) {
+                if (delegate != null) {
+                    closeQuietly(this);
+                }
+                throw new CompletionException(e);
+            }
+        }, executor).thenCompose(connected -> connected);
+    }
+
+    // Called on the executor, which blocks in the DNS lookup so that the caller does not.
+    private CompletableFuture<SSLSocket> connectDirectAsync(InetSocketAddress address, int timeout, long deadline, Executor executor) {
+        ConnectTiming.ConnectTimingBuilder attempt = ConnectTiming.attempt(address, Proxy.NO_PROXY);
+        InetSocketAddress resolved;
+        long start = System.nanoTime();
+        try {
+            resolved = resolve(address);
+        } catch (UnknownHostException e) {
+            attemptFailed(attempt.dnsNanos(System.nanoTime() - start), e);
+            throw new CompletionException(e);
+        }
+        attempt.dnsNanos(System.nanoTime() - start);
+        long connectStart = System.nanoTime();
+        return NioConnector.getDefault().connect(resolved, timeout).whenComplete((channel, e) -> {
+            attempt.tcpConnectNanos(System.nanoTime() - connectStart);
+            if (e != null) {
+                attemptFailed(attempt, e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }).thenApplyAsync(channel -> {
+            SocketTracker tracker = getSocketTracker();
+            channelTracked = tracker == null ? null : tracker.track(channel);
+            try {
+                delegate = (SSLSocket) socketFactory.createSocket(channel.socket(), address.getHostString(), address.getPort(), true);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                } finally {
+                    channelClosed();
+                }
+                throw new CompletionException(e);
+            }
+            try {
+                setDeferredValues();
+                timeHandshake(attempt);
+                startHandshake(deadline);
+                return this;
+            } catch (IOException e) {
+                try {
+                    delegate.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                } finally {
+                    channelClosed();
+                }
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    // Bounds the handshake by what is left before the deadline, then restores the caller's read timeout as Paho does.
+    private void startHandshake(long deadline) throws IOException {
+        if (deadline == Long.MAX_VALUE) {
+            startHandshake();
+            return;
+        }
+        int soTimeout = delegate.getSoTimeout();
+        delegate.setSoTimeout(remainingMillis(deadline));
+        try {
+            startHandshake();
+        } finally {
+            delegate.setSoTimeout(soTimeout);
+        }
+    }
+
     private void connectInternal(SocketAddress endpoint, Integer timeout) throws IOException {
         if (delegate != null) {
             throw new SocketException("Already connected.");
         }
 
         List<Proxy> proxies = getProxies(endpoint);
-        for (Proxy proxy : proxies) {
+        if (owner != null && owner.getConnectMode() == ProxyAwareSSLSocketFactory.ConnectMode.RACE) {
+            connectRacing(endpoint, proxies, timeout);
+            return;
+        }
+
+        // The proxies and then the direct route share one deadline, so the timeout bounds the whole connect.
+        long deadline = deadline(timeout);
+        List<Proxy> candidates = new ArrayList<>(proxies);
+        candidates.add(Proxy.NO_PROXY);
+        InetSocketAddress address = (InetSocketAddress) endpoint;
+        IOException failure = null;
+        ConnectTiming.ConnectTimingBuilder connected = null;
+        for (Proxy proxy : candidates) {
+            int remaining;
+            try {
+                remaining = remainingMillis(deadline);
+            } catch (SocketTimeoutException e) {
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                throw e;
+            }
+            boolean direct = proxy.type() == Proxy.Type.DIRECT;
             log.debug("Attempting to connect to endpoint {} via proxy: {}.", endpoint, proxy.address());
-            Socket socket = new Socket(proxy);
+            Socket socket = newSocket(proxy);
+            ConnectTiming.ConnectTimingBuilder attempt = ConnectTiming.attempt(address, proxy);
             try {
-                if (timeout == null) {
-                    socket.connect(endpoint);
-                } else {
-                    socket.connect(endpoint, timeout);
+                long start = System.nanoTime();
+                socket = connectVia(socket, proxy, address, remaining, attempt);
+                if (!direct) {
+                    proxySucceeded(endpoint, proxy, System.nanoTime() - start);
                 }
-                InetSocketAddress address = (InetSocketAddress) endpoint;
                 delegate = (SSLSocket) socketFactory.createSocket(socket, address.getHostString(), address.getPort(), true);
                 log.debug("Connection successful to endpoint {} via proxy: {}.", endpoint, proxy.address());
+                connected = attempt;
                 break;
             } catch (IOException e) {
-                log.debug("Connection failed to endpoint {} via proxy: {}, trying additional proxies.", endpoint, proxy.address());
+                log.debug("Connection failed to endpoint {} via proxy: {}.", endpoint, proxy.address());
+                closeQuietly(socket);
+                if (!direct) {
+                    proxyFailed(endpoint, proxy, e);
+                }
+                attemptFailed(attempt, e);
+                failure = e;
             }
         }
         if (delegate == null) {
-            InetSocketAddress address = (InetSocketAddress) endpoint;
-            delegate = (SSLSocket) socketFactory.createSocket(address.getAddress(), address.getPort());
+            throw failure;
         }
 
         setDeferredValues();
+        timeHandshake(connected);
+    }
+
+    private void connectRacing(SocketAddress endpoint, List<Proxy> proxies, Integer timeout) throws IOException {
+        List<Proxy> candidates = new ArrayList<>(proxies);
+        candidates.add(Proxy.NO_PROXY);
+        InetSocketAddress address = (InetSocketAddress) endpoint;
+        ProxyRacer.Attempt winner = new ProxyRacer(address, candidates, owner.getRaceStaggerMillis(), this::newSocket,
+                (candidate, proxy, attemptTimeout, timing) -> connectVia(candidate, proxy, address, attemptTimeout, timing), new ProxyRacer.Listener() {
+            @Override
+            public void succeeded(Proxy proxy, long elapsedNanos) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    proxySucceeded(endpoint, proxy, elapsedNanos);
+                }
+            }
+
+            @Override
+            public void failed(Proxy proxy, ConnectTiming.ConnectTimingBuilder timing, IOException e) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    proxyFailed(endpoint, proxy, e);
+                }
+                attemptFailed(timing, e);
+            }
+        }).connect(timeout);
+        Socket socket = winner.getSocket();
+        try {
+            delegate = (SSLSocket) socketFactory.createSocket(socket, address.getHostString(), address.getPort(), true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        setDeferredValues();
+        timeHandshake(winner.getTiming());
     }
 
     @Override
@@ -158,9 +343,14 @@ public class DeferredSSLSocket extends SSLSocket {
     }
 
     @Override
-    public OutputStream getOutputStream() throws IOException {
+    public synchronized OutputStream getOutputStream() throws IOException {
         checkConnected();
-        return delegate.getOutputStream();
+        if (outputStream == null) {
+            int bufferSize = owner == null ? 0 : owner.getOutputBufferSize();
+            outputStream = bufferSize > 0 ? new CoalescingOutputStream(delegate.getOutputStream(), bufferSize, owner.getOutputFlushPolicy())
+                    : delegate.getOutputStream();
+        }
+        return outputStream;
     }
 
     @Override
@@ -335,7 +525,11 @@ public class DeferredSSLSocket extends SSLSocket {
     @Override
     public void close() throws IOException {
         checkConnected();
-        delegate.close();
+        try {
+            delegate.close();
+        } finally {
+            channelClosed();
+        }
     }
 
     @Override
@@ -450,7 +644,16 @@ public class DeferredSSLSocket extends SSLSocket {
     @Override
     public void startHandshake() throws IOException {
         checkConnected();
-        delegate.startHandshake();
+        handshakeStart = System.nanoTime();
+        try {
+            delegate.startHandshake();
+        } catch (IOException e) {
+            ConnectTiming.ConnectTimingBuilder attempt = handshakeTiming.getAndSet(null);
+            if (attempt != null) {
+                attemptFailed(attempt.tlsHandshakeNanos(System.nanoTime() - handshakeStart), e);
+            }
+            throw e;
+        }
     }
 
     @Override
@@ -525,16 +728,22 @@ public class DeferredSSLSocket extends SSLSocket {
         }
     }
 
-    private List<Proxy> getProxies(SocketAddress endpoint) {
+    // Package-private for the benchmarks.
+    List<Proxy> getProxies(SocketAddress endpoint) {
         if (proxySelector == null) {
             return Collections.emptyList();
         }
 
-        Set<Proxy> candidates = new LinkedHashSet<>();
         InetSocketAddress address = (InetSocketAddress) endpoint;
+        ProxyLookupCache lookupCache = owner == null ? null : owner.getProxyLookupCache();
+        List<Proxy> proxies = lookupCache == null ? selectProxies(address) : lookupCache.get(address, this::selectProxies);
+        return getProxyHealthCache().rank(address, proxies);
+    }
+
+    private List<Proxy> selectProxies(InetSocketAddress address) {
+        Set<Proxy> candidates = new LinkedHashSet<>();
         for (int i = 0; i < PROXY_SCHEMES.length; i++) {
-            URI uri = URI.create(String.format("%s://%s:%s", PROXY_SCHEMES[i], address.getHostString(), address.getPort()));
-            List<Proxy> proxies = proxySelector.select(uri);
+            List<Proxy> proxies = proxySelector.select(proxyUri(PROXY_SCHEMES[i], address));
             if (proxies != null) {
                 candidates.addAll(proxies);
             }
@@ -542,6 +751,180 @@ public class DeferredSSLSocket extends SSLSocket {
         return candidates.stream().filter(p -> p.type() == Proxy.Type.HTTP || p.type() == Proxy.Type.SOCKS).collect(Collectors.toList());
     }
 
+    // Reports the attempt that connected once its TLS handshake completes, whether started explicitly or not.
+    private void timeHandshake(ConnectTiming.ConnectTimingBuilder attempt) {
+        ConnectTimingListener listener = owner == null ? null : owner.getConnectTimingListener();
+        if (listener == null || attempt == null) {
+            return;
+        }
+        handshakeStart = System.nanoTime();
+        handshakeTiming.set(attempt);
+        delegate.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                ConnectTiming.ConnectTimingBuilder completed = handshakeTiming.getAndSet(null);
+                if (completed != null) {
+                    listener.attempted(completed.tlsHandshakeNanos(System.nanoTime() - handshakeStart)
+                            .protocol(event.getSession().getProtocol())
+                            .cipherSuite(event.getCipherSuite())
+                            .build());
+                }
+                event.getSocket().removeHandshakeCompletedListener(this);
+            }
+        });
+    }
+
+    private void attemptFailed(ConnectTiming.ConnectTimingBuilder attempt, IOException e) {
+        ConnectTimingListener listener = owner == null ? null : owner.getConnectTimingListener();
+        if (listener != null) {
+            listener.attempted(attempt.failure(e).build());
+        }
+    }
+
+    private void proxySucceeded(SocketAddress endpoint, Proxy proxy, long elapsedNanos) {
+        getProxyHealthCache().recordSuccess((InetSocketAddress) endpoint, proxy, elapsedNanos);
+    }
+
+    private void proxyFailed(SocketAddress endpoint, Proxy proxy, IOException e) {
+        InetSocketAddress address = (InetSocketAddress) endpoint;
+        getProxyHealthCache().recordFailure(address, proxy);
+        if (proxySelector != null) {
+            for (int i = 0; i < PROXY_SCHEMES.length; i++) {
+                proxySelector.connectFailed(proxyUri(PROXY_SCHEMES[i], address), proxy.address(), e);
+            }
+        }
+    }
+
+    private ProxyHealthCache getProxyHealthCache() {
+        return owner == null || owner.getProxyHealthCache() == null ? ProxyHealthCache.getShared() : owner.getProxyHealthCache();
+    }
+
+    private SocketTracker getSocketTracker() {
+        return owner == null ? null : owner.getSocketTracker();
+    }
+
+    /**
+     * Connects a socket from {@link #newSocket(Proxy)} to the endpoint through the proxy, timing each phase.
+     *
+     * @return the connected socket, a replacement if the HTTP CONNECT tunneler had to reconnect
+     */
+    private Socket connectVia(Socket socket, Proxy proxy, InetSocketAddress address, int timeout, ConnectTiming.ConnectTimingBuilder attempt) throws IOException {
+        if (proxy.type() == Proxy.Type.DIRECT) {
+            long start = System.nanoTime();
+            InetSocketAddress resolved;
+            try {
+                resolved = resolve(address);
+            } finally {
+                attempt.dnsNanos(System.nanoTime() - start);
+            }
+            start = System.nanoTime();
+            try {
+                socket.connect(resolved, timeout);
+            } finally {
+                attempt.tcpConnectNanos(System.nanoTime() - start);
+            }
+            return socket;
+        }
+
+        HttpConnectTunneler tunneler = getHttpConnectTunneler(proxy);
+        if (tunneler == null) {
+            // The JDK connects to the proxy and sets up the tunnel in one go.
+            long start = System.nanoTime();
+            try {
+                socket.connect(address, timeout);
+            } finally {
+                attempt.proxyTunnelNanos(System.nanoTime() - start);
+            }
+            return socket;
+        }
+
+        long deadline = deadline(timeout);
+        InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+        long start = System.nanoTime();
+        try {
+            proxyAddress = resolve(proxyAddress);
+        } finally {
+            attempt.dnsNanos(System.nanoTime() - start);
+        }
+        start = System.nanoTime();
+        try {
+            socket.connect(proxyAddress, timeout);
+        } finally {
+            attempt.tcpConnectNanos(System.nanoTime() - start);
+        }
+        start = System.nanoTime();
+        try {
+            return tunneler.tunnel(socket, proxyAddress, address, remainingMillis(deadline), () -> newSocket(Proxy.NO_PROXY));
+        } finally {
+            attempt.proxyTunnelNanos(System.nanoTime() - start);
+        }
+    }
+
+    // The tunneler for HTTP proxies, null to leave the proxy to the JDK.
+    private HttpConnectTunneler getHttpConnectTunneler(Proxy proxy) {
+        return proxy.type() == Proxy.Type.HTTP && owner != null ? owner.getHttpConnectTunneler() : null;
+    }
+
+    private Socket newSocket(Proxy proxy) {
+        SocketTracker tracker = getSocketTracker();
+        // Sockets tunneled by this package connect to the proxy as plain sockets.
+        Proxy socketProxy = getHttpConnectTunneler(proxy) == null ? proxy : Proxy.NO_PROXY;
+        Socket socket = tracker == null ? new Socket(socketProxy) : tracker.newSocket(socketProxy);
+        // A receive buffer over 64 KB only takes full effect when set before connecting, when TCP picks its window
+        // scale. The options are applied again once connected.
+        SocketOptions options = owner == null ? null : owner.getSocketOptions();
+        if (options != null && options.getReceiveBufferSize() != null) {
+            try {
+                socket.setReceiveBufferSize(options.getReceiveBufferSize());
+            } catch (SocketException e) {
+                log.debug("Could not set the receive buffer size before connecting.", e);
+            }
+        }
+        return socket;
+    }
+
+    private void channelClosed() {
+        if (channelTracked != null) {
+            channelTracked.closed();
+        }
+    }
+
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Failed to close socket.", e);
+        }
+    }
+
+    static long deadline(Integer timeout) {
+        return timeout == null || timeout == 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    // The connect timeout left before the deadline, zero for no timeout.
+    static int remainingMillis(long deadline) throws SocketTimeoutException {
+        if (deadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Connect timed out.");
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    // Proxies resolve the endpoint themselves, a direct connect needs it resolved.
+    static InetSocketAddress resolve(InetSocketAddress address) throws UnknownHostException {
+        if (!address.isUnresolved()) {
+            return address;
+        }
+        return new InetSocketAddress(InetAddress.getByName(address.getHostString()), address.getPort());
+    }
+
+    private static URI proxyUri(String scheme, InetSocketAddress address) {
+        return URI.create(String.format("%s://%s:%s", scheme, address.getHostString(), address.getPort()));
+    }
+
     private void checkConnected() throws SocketException {
         if (delegate == null) {
             throw new SocketException("Not connected.");
@@ -549,6 +932,9 @@ public class DeferredSSLSocket extends SSLSocket {
     }
 
     private void setDeferredValues() throws IOException {
+        SocketOptions options = owner == null ? null : owner.getSocketOptions();
+        if (options != null)
+            options.applyTo(delegate);
         if (deferredBindpoint != null)
             delegate.bind(deferredBindpoint);
         if (deferredTcpNoDelay != null)
@@ -0,0 +1,338 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opens tunnels through HTTP proxies with CONNECT requests, in place of the JDK's built-in HTTP proxy support.
+ *
+ * <p>When a proxy asks for credentials (407), the {@link ProxyAuthenticator} answers the challenge. The
+ * {@code Proxy-Authorization} header that opened the last tunnel through each proxy is cached and sent up front on the
+ * next CONNECT through that proxy, which saves the 407 round trip on every reconnect. A cached header that the proxy
+ * rejects is dropped and the challenge answered afresh.
+ */
+@Slf4j
+public class HttpConnectTunneler {
+    // Rounds of 407 challenges answered before giving up; connection-based schemes such as NTLM take two.
+    private static final int MAX_AUTH_ROUNDS = 3;
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    /**
+     * Answers proxy authentication challenges.
+     */
+    @FunctionalInterface
+    public interface ProxyAuthenticator {
+        /**
+         * @param proxy      the proxy
+         * @param challenges the {@code Proxy-Authenticate} values of the 407 response
+         * @return the {@code Proxy-Authorization} value to send, {@code null} to give up
+         */
+        String authorize(InetSocketAddress proxy, List<String> challenges);
+    }
+
+    @FunctionalInterface
+    public interface CredentialsProvider {
+        /**
+         * @return the credentials, {@code null} if there are none
+         */
+        PasswordAuthentication getCredentials(InetSocketAddress proxy, String realm);
+    }
+
+    /**
+     * Waits at most this long for each read of the proxy's response, in milliseconds.
+     */
+    @Getter
+    @Setter
+    private int responseTimeoutMillis = 10000;
+
+    /**
+     * Reads the proxy's whole response header within this many milliseconds of sending the CONNECT.
+     */
+    @Getter
+    @Setter
+    private int headerTimeoutMillis = 30000;
+
+    @Getter
+    @Setter
+    private ProxyAuthenticator proxyAuthenticator = basic(HttpConnectTunneler::requestCredentials);
+
+    private final Map<InetSocketAddress, String> authorizations = new ConcurrentHashMap<>();
+
+    /**
+     * Answers Basic challenges with the given credentials.
+     *
+     * @param credentials supplies the user name and password for a proxy, or {@code null} to give up
+     */
+    public static ProxyAuthenticator basic(CredentialsProvider credentials) {
+        return (proxy, challenges) -> {
+            for (String challenge : challenges) {
+                if (!challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+                    continue;
+                }
+                final PasswordAuthentication authentication = credentials.getCredentials(proxy, realm(challenge));
+                if (authentication == null) {
+                    return null;
+                }
+                final String userPass = authentication.getUserName() + ":" + new String(authentication.getPassword());
+                return "Basic " + Base64.getEncoder().encodeToString(userPass.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Tunnels to the endpoint through a proxy.
+     *
+     * @param socket    a plain socket connected to the proxy
+     * @param proxy     the proxy address
+     * @param endpoint  the endpoint
+     * @param timeout   bounds the whole exchange, including any reconnect, in milliseconds; zero for no bound
+     * @param reconnect supplies an unconnected plain socket, for when the proxy closes the connection on a 407
+     * @return the tunneled socket, which is a new socket if the proxy closed the one given (which is then closed)
+     * @throws IOException if the proxy refused the tunnel or the exchange failed; a socket this method opened is closed
+     */
+    public Socket tunnel(Socket socket, InetSocketAddress proxy, InetSocketAddress endpoint, int timeout, Supplier<Socket> reconnect) throws IOException {
+        final long deadline = timeout == 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        String authorization = authorizations.get(proxy);
+        final boolean cached = authorization != null;
+        Socket current = socket;
+        try {
+            for (int round = 0; ; round++) {
+                final Response response = exchange(current, endpoint, authorization, deadline);
+                if (response.status / 100 == 2) {
+                    if (authorization != null) {
+                        authorizations.put(proxy, authorization);
+                    }
+                    return current;
+                }
+                if (response.status != 407 || round == MAX_AUTH_ROUNDS) {
+                    throw new IOException(String.format("Unable to tunnel through proxy %s. Proxy returns \"%s\".", proxy, response.statusLine));
+                }
+                if (round == 0 && cached) {
+                    authorizations.remove(proxy, authorization);
+                }
+                authorization = proxyAuthenticator == null ? null : proxyAuthenticator.authorize(proxy, response.headers("proxy-authenticate"));
+                if (authorization == null) {
+                    throw new IOException(String.format("Unable to tunnel through proxy %s. Proxy returns \"%s\" and there are no credentials.", proxy, response.statusLine));
+                }
+                log.debug("Proxy {} asks for credentials, retrying CONNECT to {}.", proxy, endpoint);
+                if (!response.reusable) {
+                    closeQuietly(current);
+                    current = reconnect.get();
+                    current.connect(proxy, remainingMillis(deadline));
+                }
+            }
+        } catch (IOException e) {
+            if (current != socket) {
+                closeQuietly(current);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets the cached {@code Proxy-Authorization} headers, for example after a password change.
+     */
+    public void invalidateAuthorizations() {
+        authorizations.clear();
+    }
+
+    private Response exchange(Socket socket, InetSocketAddress endpoint, String authorization, long deadline) throws IOException {
+        final String authority = hostForRequest(endpoint) + ":" + endpoint.getPort();
+        final StringBuilder request = new StringBuilder()
+                .append("CONNECT ").append(authority).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(authority).append("\r\n")
+                .append("Proxy-Connection: Keep-Alive\r\n");
+        if (authorization != null) {
+            request.append("Proxy-Authorization: ").append(authorization).append("\r\n");
+        }
+        request.append("\r\n");
+        final OutputStream out = socket.getOutputStream();
+        out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        final int soTimeout = socket.getSoTimeout();
+        final long headerDeadline = Math.min(deadline, headerTimeoutMillis == 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(headerTimeoutMillis));
+        try {
+            final Response response = readResponse(socket, headerDeadline);
+            if (response.status == 407 && response.reusable) {
+                response.reusable = skipBody(socket, response, headerDeadline);
+            }
+            return response;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(soTimeout);
+            }
+        }
+    }
+
+    private Response readResponse(Socket socket, long deadline) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final Response response = new Response();
+        int headerBytes = 0;
+        for (String line = readLine(socket, in, deadline); ; line = readLine(socket, in, deadline)) {
+            if (line == null) {
+                throw new IOException("Proxy closed the connection before responding to CONNECT.");
+            }
+            headerBytes += line.length() + 2;
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Proxy response header exceeds " + MAX_HEADER_BYTES + " bytes.");
+            }
+            if (response.statusLine == null) {
+                response.statusLine = line;
+                response.status = parseStatus(line);
+                response.reusable = !line.startsWith("HTTP/1.0");
+            } else if (line.isEmpty()) {
+                return response;
+            } else {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                    final String value = line.substring(colon + 1).trim();
+                    response.headers.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+                    if ((name.equals("connection") || name.equals("proxy-connection")) && value.equalsIgnoreCase("close")) {
+                        response.reusable = false;
+                    }
+                }
+            }
+        }
+    }
+
+    // Discards the body of a 407 so the connection can carry the next CONNECT, returning whether it can.
+    private boolean skipBody(Socket socket, Response response, long deadline) throws IOException {
+        final List<String> contentLength = response.headers("content-length");
+        if (contentLength.size() != 1 || !response.headers("transfer-encoding").isEmpty()) {
+            return false;
+        }
+        long remaining;
+        try {
+            remaining = Long.parseLong(contentLength.get(0));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        final InputStream in = socket.getInputStream();
+        final byte[] buffer = new byte[1024];
+        while (remaining > 0) {
+            socket.setSoTimeout(readTimeout(deadline));
+            final int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n == -1) {
+                return false;
+            }
+            remaining -= n;
+        }
+        return true;
+    }
+
+    // Reads byte by byte, so nothing past the response header is consumed.
+    private String readLine(Socket socket, InputStream in, long deadline) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            socket.setSoTimeout(readTimeout(deadline));
+            final int b = in.read();
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString("ISO-8859-1");
+            }
+            if (b == '\n') {
+                final String s = line.toString("ISO-8859-1");
+                return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+            }
+            if (line.size() > MAX_HEADER_BYTES) {
+                throw new IOException("Proxy response header exceeds " + MAX_HEADER_BYTES + " bytes.");
+            }
+            line.write(b);
+        }
+    }
+
+    private int readTimeout(long deadline) throws SocketTimeoutException {
+        final int remaining = remainingMillis(deadline);
+        if (responseTimeoutMillis == 0) {
+            return remaining;
+        }
+        return remaining == 0 ? responseTimeoutMillis : Math.min(remaining, responseTimeoutMillis);
+    }
+
+    private static int remainingMillis(long deadline) throws SocketTimeoutException {
+        if (deadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Timed out waiting for the proxy to respond to CONNECT.");
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed proxy response to CONNECT: \"" + statusLine + "\".");
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed proxy response to CONNECT: \"" + statusLine + "\".", e);
+        }
+    }
+
+    private static String hostForRequest(InetSocketAddress endpoint) {
+        final String host = endpoint.getHostString();
+        return host.indexOf(':') >= 0 && !host.startsWith("[") ? "[" + host + "]" : host;
+    }
+
+    private static String realm(String challenge) {
+        final int start = challenge.toLowerCase(Locale.ROOT).indexOf("realm=\"");
+        if (start == -1) {
+            return null;
+        }
+        final int end = challenge.indexOf('"', start + 7);
+        return end == -1 ? null : challenge.substring(start + 7, end);
+    }
+
+    // The JDK's default Authenticator, as the JDK's own HTTP proxy support uses.
+    private static PasswordAuthentication requestCredentials(InetSocketAddress proxy, String realm) {
+        return Authenticator.requestPasswordAuthentication(proxy.getHostString(), proxy.getAddress(), proxy.getPort(),
+                "http", realm, "Basic", null, Authenticator.RequestorType.PROXY);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Failed to close socket.", e);
+        }
+    }
+
+    private static class Response {
+        private String statusLine;
+        private int status;
+        private boolean reusable;
+        private final Map<String, List<String>> headers = new HashMap<>();
+
+        List<String> headers(String name) {
+            final List<String> values = headers.get(name);
+            return values == null ? Collections.emptyList() : values;
+        }
+    }
+}
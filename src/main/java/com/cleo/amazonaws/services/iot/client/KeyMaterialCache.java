@@ -0,0 +1,370 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.X509ExtendedKeyManager;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Holds the certificate chains and private keys read from PEM files, so that building many clients for the same or
+ * different devices reads each file once and parses each distinct file content once.
+ *
+ * <p>Identities are kept by file and parsed material by content hash. The directories of the files are watched, and
+ * when a file is rotated only the identities using it are read again, on the watcher thread; connects keep using the
+ * previous material until the new one has been parsed and its key found to match its certificate. The key managers
+ * returned by {@link #getKeyManager(Path, Path)} present the current material at every handshake, so contexts built
+ * with them, and the clients using those, pick up rotated files without being rebuilt. The shared instance returned by
+ * {@link #getShared()} backs {@link X509Identity#load(Path, Path)} and {@link SharedSSLContext#forIdentity(Path, Path)}.
+ */
+@Slf4j
+public class KeyMaterialCache implements Closeable {
+    private static final KeyMaterialCache SHARED = new KeyMaterialCache();
+
+    private final Map<IdentityFiles, Entry> identities = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, X509Certificate[]> chainsByContent = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, PrivateKey> keysByContent = new ConcurrentHashMap<>();
+    // The entries using a file in each watched directory.
+    private final Map<Path, Set<Entry>> watched = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong reloadFailures = new AtomicLong();
+
+    // Guarded by this.
+    private WatchService watchService;
+    private Thread watcher;
+    private boolean closed;
+
+    public static KeyMaterialCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the identity in the files, reading them unless already cached.
+     *
+     * @param certificate the PEM file of the device certificate, optionally followed by its intermediates
+     * @param privateKey  the PEM file of the private key, PKCS#1 or PKCS#8 and not encrypted
+     * @return the current identity
+     * @throws IOException              if a file cannot be read
+     * @throws GeneralSecurityException if a file holds no certificate or no valid key
+     */
+    public X509Identity getIdentity(Path certificate, Path privateKey) throws IOException, GeneralSecurityException {
+        return entry(certificate, privateKey).current.getIdentity();
+    }
+
+    /**
+     * Returns a key manager presenting the identity in the files, as it is at each handshake.
+     *
+     * @param certificate the PEM file of the device certificate, optionally followed by its intermediates
+     * @param privateKey  the PEM file of the private key, PKCS#1 or PKCS#8 and not encrypted
+     * @return the key manager shared by every caller for the same files
+     * @throws IOException              if a file cannot be read
+     * @throws GeneralSecurityException if a file holds no certificate or no valid key
+     */
+    public X509ExtendedKeyManager getKeyManager(Path certificate, Path privateKey) throws IOException, GeneralSecurityException {
+        return entry(certificate, privateKey).keyManager;
+    }
+
+    /**
+     * Runs the listener on the watcher thread each time the identity in the files is replaced. A listener equal to one
+     * already added is not added again.
+     */
+    void addReloadListener(Path certificate, Path privateKey, Runnable listener) throws IOException, GeneralSecurityException {
+        entry(certificate, privateKey).listeners.add(listener);
+    }
+
+    /**
+     * Stops watching files. Cached material is still returned, but no longer reloaded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * @return the identities returned without reading their files
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the certificate and key files parsed, not counting those whose content was already parsed
+     */
+    public long getParses() {
+        return parses.get();
+    }
+
+    /**
+     * @return the identities replaced after their files changed, counted once the reload listeners have run
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * @return the changed files that could not be read, or held a key not matching the certificate
+     */
+    public long getReloadFailures() {
+        return reloadFailures.get();
+    }
+
+    /**
+     * @return the distinct certificate and key file contents held parsed
+     */
+    int getParsedContents() {
+        return chainsByContent.size() + keysByContent.size();
+    }
+
+    private Entry entry(Path certificate, Path privateKey) throws IOException, GeneralSecurityException {
+        final IdentityFiles files = new IdentityFiles(certificate.toAbsolutePath().normalize(), privateKey.toAbsolutePath().normalize());
+        final Entry cached = identities.get(files);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        final Entry entry = new Entry(files, read(files, false));
+        final Entry raced = identities.putIfAbsent(files, entry);
+        if (raced != null) {
+            return raced;
+        }
+        watch(files.getCertificate().getParent(), entry);
+        watch(files.getPrivateKey().getParent(), entry);
+        return entry;
+    }
+
+    private Material read(IdentityFiles files, boolean verifyKey) throws IOException, GeneralSecurityException {
+        final byte[] certificatePem = Files.readAllBytes(files.getCertificate());
+        final byte[] privateKeyPem = Files.readAllBytes(files.getPrivateKey());
+        final ByteBuffer certificateHash = hash(certificatePem);
+        final ByteBuffer privateKeyHash = hash(privateKeyPem);
+        X509Certificate[] chain = chainsByContent.get(certificateHash);
+        final boolean parsedChain = chain == null;
+        if (parsedChain) {
+            chain = parseChain(certificatePem, files.getCertificate());
+            parses.incrementAndGet();
+        }
+        // The certificate tells which kind of key to expect; PKCS#8 PEM files do not.
+        final String algorithm = chain[0].getPublicKey().getAlgorithm();
+        PrivateKey key = keysByContent.get(privateKeyHash);
+        final boolean parsedKey = key == null || !key.getAlgorithm().equals(algorithm);
+        if (parsedKey) {
+            key = PrivateKeyReader.getPrivateKey(new ByteArrayInputStream(privateKeyPem), algorithm);
+            parses.incrementAndGet();
+        }
+        if (verifyKey) {
+            verifyKeyPair(chain[0], key);
+        }
+        // Only kept once the pair is usable, so half a rotation leaves nothing behind.
+        if (parsedChain) {
+            chainsByContent.put(certificateHash, chain);
+        }
+        if (parsedKey) {
+            keysByContent.put(privateKeyHash, key);
+        }
+        return new Material(certificateHash, privateKeyHash, new X509Identity(chain, key));
+    }
+
+    private synchronized void watch(Path directory, Entry entry) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            watcher = new Thread(this::watchLoop, "key-material-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        if (!watched.containsKey(directory)) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        watched.computeIfAbsent(directory, d -> ConcurrentHashMap.newKeySet()).add(entry);
+    }
+
+    private void watchLoop() {
+        final WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                final Path directory = (Path) key.watchable();
+                final List<Path> changed = new ArrayList<>();
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else {
+                        changed.add(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    // The directory is gone, and with it the files of its identities.
+                    watched.remove(directory);
+                    continue;
+                }
+                reload(directory, changed, overflow);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reloads the identities using a changed file. A change to a file nobody uses, such as the symbolic link swapped by
+     * a Kubernetes secret update, may have changed what the files point to, so every identity in the directory is
+     * checked; unchanged content costs a read and a hash, not a parse.
+     */
+    private void reload(Path directory, List<Path> changed, boolean overflow) {
+        final Set<Entry> entries = watched.get(directory);
+        if (entries == null) {
+            return;
+        }
+        final List<Entry> affected = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (changed.contains(entry.files.getCertificate()) || changed.contains(entry.files.getPrivateKey())) {
+                affected.add(entry);
+            }
+        }
+        if (overflow || affected.isEmpty()) {
+            affected.addAll(entries);
+        }
+        for (Entry entry : affected) {
+            final Material material;
+            try {
+                material = read(entry.files, true);
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                // Likely mid-rotation, with one file replaced and not the other; the next event tries again.
+                reloadFailures.incrementAndGet();
+                log.debug("Keeping the current identity of {}: {}", entry.files, e.toString());
+                continue;
+            }
+            if (material.getCertificateHash().equals(entry.current.getCertificateHash())
+                    && material.getPrivateKeyHash().equals(entry.current.getPrivateKeyHash())) {
+                continue;
+            }
+            release(entry.replace(material));
+            log.info("Reloaded the identity of {}: {}", entry.files, material.getIdentity());
+            for (Runnable listener : entry.listeners) {
+                listener.run();
+            }
+            // Counted once the listeners have run, so that a reload seen here has also invalidated the sessions.
+            reloads.incrementAndGet();
+        }
+    }
+
+    // Drops the parsed content of replaced material that no identity uses any more.
+    private void release(Material replaced) {
+        boolean certificateUsed = false;
+        boolean privateKeyUsed = false;
+        for (Entry entry : identities.values()) {
+            final Material current = entry.current;
+            certificateUsed |= current.getCertificateHash().equals(replaced.getCertificateHash());
+            privateKeyUsed |= current.getPrivateKeyHash().equals(replaced.getPrivateKeyHash());
+        }
+        if (!certificateUsed) {
+            chainsByContent.remove(replaced.getCertificateHash());
+        }
+        if (!privateKeyUsed) {
+            keysByContent.remove(replaced.getPrivateKeyHash());
+        }
+    }
+
+    private static X509Certificate[] parseChain(byte[] pem, Path file) throws GeneralSecurityException {
+        final Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509").generateCertificates(new ByteArrayInputStream(pem));
+        if (certificates.isEmpty()) {
+            throw new GeneralSecurityException("No certificate in " + file);
+        }
+        return certificates.toArray(new X509Certificate[0]);
+    }
+
+    private static void verifyKeyPair(X509Certificate certificate, PrivateKey key) throws GeneralSecurityException {
+        final String algorithm = "SHA256with" + (key.getAlgorithm().equals("EC") ? "ECDSA" : key.getAlgorithm());
+        final byte[] data = certificate.getSerialNumber().toByteArray();
+        final Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(key);
+        signer.update(data);
+        final byte[] signature = signer.sign();
+        final Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify(certificate.getPublicKey());
+        verifier.update(data);
+        if (!verifier.verify(signature)) {
+            throw new GeneralSecurityException("The private key does not match the certificate " + certificate.getSubjectX500Principal());
+        }
+    }
+
+    private static ByteBuffer hash(byte[] content) throws GeneralSecurityException {
+        return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    @Value
+    private static class IdentityFiles {
+        Path certificate;
+        Path privateKey;
+    }
+
+    @Value
+    private static class Material {
+        ByteBuffer certificateHash;
+        ByteBuffer privateKeyHash;
+        X509Identity identity;
+    }
+
+    private static class Entry {
+        final IdentityFiles files;
+        final ReloadingKeyManager keyManager = new ReloadingKeyManager();
+        final Set<Runnable> listeners = new CopyOnWriteArraySet<>();
+        volatile Material current;
+
+        Entry(IdentityFiles files, Material material) {
+            this.files = files;
+            this.current = material;
+            keyManager.setIdentity(material.getIdentity());
+        }
+
+        /**
+         * @return the material replaced
+         */
+        Material replace(Material material) {
+            final Material replaced = current;
+            current = material;
+            keyManager.setIdentity(material.getIdentity());
+            return replaced;
+        }
+    }
+}
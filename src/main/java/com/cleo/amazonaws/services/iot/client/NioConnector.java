@@ -0,0 +1,177 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opens TCP connections without blocking a thread per connection: every pending connect is driven by a single selector
+ * thread. Completed channels are handed back in blocking mode, ready to be wrapped in a TLS socket.
+ */
+@Slf4j
+class NioConnector {
+    // How often pending connects are checked for their deadline.
+    private static final long TIMEOUT_CHECK_MILLIS = 100;
+
+    private static volatile NioConnector defaultConnector;
+
+    private final Selector selector;
+    private final Queue<Pending> registrations = new ConcurrentLinkedQueue<>();
+
+    private NioConnector() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this::selectLoop, "nio-connector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static NioConnector getDefault() {
+        NioConnector connector = defaultConnector;
+        if (connector == null) {
+            synchronized (NioConnector.class) {
+                connector = defaultConnector;
+                if (connector == null) {
+                    try {
+                        connector = new NioConnector();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    defaultConnector = connector;
+                }
+            }
+        }
+        return connector;
+    }
+
+    /**
+     * Starts connecting to an endpoint.
+     *
+     * @param endpoint the resolved endpoint
+     * @param timeout  the connect timeout in milliseconds, zero for no timeout
+     * @return completes with the connected channel, in blocking mode, or exceptionally with the connect failure
+     */
+    CompletableFuture<SocketChannel> connect(InetSocketAddress endpoint, int timeout) {
+        final CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(endpoint)) {
+                channel.configureBlocking(true);
+                future.complete(channel);
+            } else {
+                long deadline = timeout == 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                registrations.add(new Pending(channel, future, deadline));
+                selector.wakeup();
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void selectLoop() {
+        final List<Pending> done = new ArrayList<>();
+        try {
+            while (true) {
+                selector.select(TIMEOUT_CHECK_MILLIS);
+
+                for (Pending pending = registrations.poll(); pending != null; pending = registrations.poll()) {
+                    try {
+                        pending.channel.register(selector, SelectionKey.OP_CONNECT, pending);
+                    } catch (IOException e) {
+                        pending.failure = e;
+                        done.add(pending);
+                    }
+                }
+
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Pending pending = (Pending) key.attachment();
+                    try {
+                        if (pending.channel.finishConnect()) {
+                            key.cancel();
+                            done.add(pending);
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        pending.failure = e;
+                        done.add(pending);
+                    }
+                }
+
+                final long now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    Pending pending = (Pending) key.attachment();
+                    if (key.isValid() && pending.deadline != Long.MAX_VALUE && now - pending.deadline > 0) {
+                        key.cancel();
+                        pending.failure = new SocketTimeoutException("Connect timed out.");
+                        done.add(pending);
+                    }
+                }
+
+                if (!done.isEmpty()) {
+                    // Flush the cancelled keys so that the channels can be switched back to blocking mode.
+                    selector.selectNow();
+                    done.forEach(NioConnector::complete);
+                    done.clear();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("NIO connector stopped.", e);
+        }
+    }
+
+    private static void complete(Pending pending) {
+        if (pending.failure == null) {
+            try {
+                pending.channel.configureBlocking(true);
+                pending.future.complete(pending.channel);
+                return;
+            } catch (IOException e) {
+                pending.failure = e;
+            }
+        }
+        closeQuietly(pending.channel);
+        pending.future.completeExceptionally(pending.failure);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close channel.", e);
+            }
+        }
+    }
+
+    private static class Pending {
+        private final SocketChannel channel;
+        private final CompletableFuture<SocketChannel> future;
+        private final long deadline;
+        private IOException failure;
+
+        Pending(SocketChannel channel, CompletableFuture<SocketChannel> future, long deadline) {
+            this.channel = channel;
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotConnectionStatus;
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A durable outbound queue for a client, kept on disk rather than on the heap, for gateways that must not lose
+ * messages to a long outage or a restart. Messages are appended to a log of fixed-size memory-mapped segment files and
+ * published from it in order, at an optional rate, whenever the client is connected.
+ *
+ * <p>The position of the first message not yet acknowledged is kept in a cursor file; QoS 0 messages count as
+ * acknowledged once sent. A failed publish, or a restart, resumes from that position, so every message is delivered
+ * at least once. Segments are deleted once all their messages are acknowledged, and appends are refused once the spool
+ * holds its maximum number of segments.
+ *
+ * <pre>
+ * OutboundSpool spool = OutboundSpool.builder()
+ *         .client(client)
+ *         .directory(Paths.get("/var/spool/gateway"))
+ *         .maxSegments(256)
+ *         .drainRatePerSecond(500)
+ *         .build();
+ * if (!spool.append("devices/" + deviceId + "/telemetry", AWSIotQos.QOS1, serialized)) {
+ *     // The spool is full.
+ * }
+ * </pre>
+ *
+ * <p>Appends write straight into the mapped segment without allocating. Mapped writes survive the process ending; call
+ * {@link #force()} to have them survive the machine ending too.
+ */
+@Slf4j
+public class OutboundSpool implements Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    // Each record is its length and a CRC32 of the rest: QoS, topic length, topic and payload.
+    private static final int HEADER_BYTES = 8;
+    private static final int BODY_HEADER_BYTES = 3;
+    // Every record is followed by room for one more length, which is zero or marks the end of the segment.
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "spool.cursor";
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final PublishPipeline.Publisher publisher;
+    private final BooleanSupplier connected;
+    private final long drainIntervalNanos;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final MappedByteBuffer cursor;
+
+    // Guarded by this.
+    private Segment writeSegment;
+    private int writeOffset;
+    private final CRC32 crc = new CRC32();
+    // Everything before it has been appended.
+    private volatile long written;
+
+    // Guarded by window. Messages handed to the publisher, oldest first.
+    private final SpoolMessage[] window;
+    private int windowHead;
+    private int windowCount;
+    private boolean rewind;
+    // Everything before it has been acknowledged; mirrored in the cursor file.
+    private volatile long acknowledged;
+
+    // Drainer thread only.
+    private long readPosition;
+    private byte[] topicScratch = new byte[256];
+
+    private final Thread drainer;
+    private volatile boolean drainerParked;
+    private volatile boolean closed;
+
+    private volatile long appended;
+    private volatile long drained;
+    private volatile long failed;
+    private volatile long rejected;
+
+    /**
+     * @param client             publishes the messages whenever it is connected, unless a publisher is given
+     * @param publisher          publishes each message, without waiting, by default straight to the client's
+     *                           connection
+     * @param directory          holds the segments and the cursor; created if missing, and reopened where it left off
+     * @param segmentBytes       the size of each segment file, {@link #DEFAULT_SEGMENT_BYTES} if {@code null}; bounds
+     *                           the size of a message
+     * @param maxSegments        how many segments may exist at once, {@link #DEFAULT_MAX_SEGMENTS} if {@code null}
+     * @param maxInFlight        how many messages may be published but not yet acknowledged, defaults to
+     *                           {@link PublishPipeline#DEFAULT_MAX_IN_FLIGHT}
+     * @param drainRatePerSecond the most messages to publish per second, unlimited if {@code null}
+     */
+    @Builder
+    private OutboundSpool(AWSIotMqttClient client,
+                          PublishPipeline.Publisher publisher,
+                          Path directory,
+                          Integer segmentBytes,
+                          Integer maxSegments,
+                          Integer maxInFlight,
+                          Integer drainRatePerSecond) throws IOException {
+        if (publisher == null && client == null) {
+            throw new IllegalArgumentException("A client or a publisher is required.");
+        }
+        if (directory == null) {
+            throw new IllegalArgumentException("A directory is required.");
+        }
+        this.publisher = publisher != null ? publisher : AwsIotMqttClientBuilder.connectionOf(client)::publish;
+        this.connected = client == null ? () -> true : () -> client.getConnectionStatus() == AWSIotConnectionStatus.CONNECTED;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes == null ? DEFAULT_SEGMENT_BYTES : segmentBytes;
+        this.maxSegments = maxSegments == null ? DEFAULT_MAX_SEGMENTS : maxSegments;
+        if (this.maxSegments < 1) {
+            throw new IllegalArgumentException("At least one segment is needed, not " + this.maxSegments);
+        }
+        if (drainRatePerSecond != null && drainRatePerSecond < 1) {
+            throw new IllegalArgumentException("The drain rate must be at least one message per second, not " + drainRatePerSecond);
+        }
+        if (maxInFlight != null && maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one message must be allowed in flight, not " + maxInFlight);
+        }
+        this.drainIntervalNanos = drainRatePerSecond == null ? 0 : TimeUnit.SECONDS.toNanos(1) / drainRatePerSecond;
+        this.window = new SpoolMessage[maxInFlight == null ? PublishPipeline.DEFAULT_MAX_IN_FLIGHT : maxInFlight];
+        for (int i = 0; i < window.length; i++) {
+            window[i] = new SpoolMessage();
+        }
+
+        Files.createDirectories(directory);
+        this.cursor = map(directory.resolve(CURSOR_FILE), Long.BYTES);
+        recover();
+
+        this.drainer = new Thread(this::drain, "outbound-spool-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * Appends the buffer's remaining bytes, leaving its position alone.
+     *
+     * @return false if the spool is full
+     * @throws IllegalArgumentException if the message does not fit in a segment
+     */
+    public synchronized boolean append(String topic, AWSIotQos qos, ByteBuffer payload) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The spool is closed.");
+        }
+        final boolean ascii = isAscii(topic);
+        final byte[] topicBytes = ascii ? null : topic.getBytes(StandardCharsets.UTF_8);
+        final int topicLength = ascii ? topic.length() : topicBytes.length;
+        final int length = BODY_HEADER_BYTES + topicLength + payload.remaining();
+        if (topicLength > 0xFFFF || HEADER_BYTES + length + Integer.BYTES > segmentBytes) {
+            throw new IllegalArgumentException("A message of " + length + " bytes does not fit in a segment of " + segmentBytes);
+        }
+        if (writeOffset + HEADER_BYTES + length + Integer.BYTES > segmentBytes) {
+            if (segments.size() >= maxSegments) {
+                rejected++;
+                return false;
+            }
+            final Segment next = openSegment(writeSegment.sequence + 1);
+            segments.put(next.sequence, next);
+            writeSegment.buffer.putInt(writeOffset, END_OF_SEGMENT);
+            writeSegment = next;
+            writeOffset = 0;
+        }
+
+        final MappedByteBuffer buffer = writeSegment.buffer;
+        final int body = writeOffset + HEADER_BYTES;
+        buffer.position(body);
+        buffer.put((byte) qos.getValue());
+        buffer.putShort((short) topicLength);
+        if (ascii) {
+            for (int i = 0; i < topicLength; i++) {
+                buffer.put((byte) topic.charAt(i));
+            }
+        } else {
+            buffer.put(topicBytes);
+        }
+        final int payloadPosition = payload.position();
+        buffer.put(payload);
+        payload.position(payloadPosition);
+        final int end = buffer.position();
+        buffer.putInt(end, 0);
+
+        buffer.limit(end).position(body);
+        crc.reset();
+        crc.update(buffer);
+        buffer.limit(buffer.capacity());
+        buffer.putInt(writeOffset + Integer.BYTES, (int) crc.getValue());
+        // The length goes last: a record without one was never appended.
+        buffer.putInt(writeOffset, length);
+
+        writeOffset = end;
+        written = position(writeSegment.sequence, end);
+        appended++;
+        if (drainerParked) {
+            LockSupport.unpark(drainer);
+        }
+        return true;
+    }
+
+    /**
+     * Writes appended messages and the cursor through to the disk.
+     */
+    public void force() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        }
+        synchronized (window) {
+            if (!closed) {
+                cursor.force();
+            }
+        }
+    }
+
+    public long getAppended() {
+        return appended;
+    }
+
+    /**
+     * @return the number of messages acknowledged, or sent for QoS 0, since the spool was opened
+     */
+    public long getDrained() {
+        return drained;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the number of appends refused because the spool was full
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Stops draining and unmaps the files. Messages not yet acknowledged are published again when the directory is
+     * next opened.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        drainer.interrupt();
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (window) {
+            // Late acknowledgements check closed before touching the cursor.
+            cursor.force();
+            unmap(cursor);
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                unmap(segment.buffer);
+            }
+            segments.clear();
+        }
+    }
+
+    // Finds the cursor and the end of the last segment left by an earlier run.
+    private void recover() throws IOException {
+        long position = cursor.getLong(0);
+        final List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(sequences);
+        for (long sequence : sequences) {
+            if (sequence < sequence(position)) {
+                Files.deleteIfExists(segmentFile(sequence));
+            } else {
+                segments.put(sequence, openSegment(sequence));
+            }
+        }
+        if (segments.isEmpty()) {
+            // A new spool, or the cursor's segment is gone; either way there is nothing to publish.
+            final long first = sequence(position) + (offset(position) == 0 ? 0 : 1);
+            segments.put(first, openSegment(first));
+        }
+        if (segments.firstKey() != sequence(position)) {
+            position = position(segments.firstKey(), 0);
+            cursor.putLong(0, position);
+        }
+
+        writeSegment = segments.lastEntry().getValue();
+        writeOffset = writeSegment.sequence == sequence(position) ? offset(position) : 0;
+        final MappedByteBuffer buffer = writeSegment.buffer;
+        while (true) {
+            final int length = buffer.getInt(writeOffset);
+            if (length == END_OF_SEGMENT) {
+                writeSegment = openSegment(writeSegment.sequence + 1);
+                segments.put(writeSegment.sequence, writeSegment);
+                writeOffset = 0;
+                break;
+            }
+            if (length < BODY_HEADER_BYTES || writeOffset + HEADER_BYTES + length + Integer.BYTES > segmentBytes
+                    || !checksumMatches(buffer, writeOffset, length)) {
+                break;
+            }
+            writeOffset += HEADER_BYTES + length;
+        }
+        // Whatever a crash left past the last whole record must not be taken for a record later.
+        writeSegment.buffer.putInt(writeOffset, 0);
+        written = position(writeSegment.sequence, writeOffset);
+        acknowledged = position;
+        readPosition = position;
+    }
+
+    private boolean checksumMatches(MappedByteBuffer buffer, int offset, int length) {
+        final ByteBuffer body = buffer.duplicate();
+        body.limit(offset + HEADER_BYTES + length).position(offset + HEADER_BYTES);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(offset + Integer.BYTES);
+    }
+
+    private void drain() {
+        long nextSendNanos = 0;
+        while (!closed) {
+            deleteAcknowledgedSegments();
+            if (!connected.getAsBoolean() || !windowHasRoom() || readPosition >= written) {
+                park();
+                continue;
+            }
+            if (drainIntervalNanos > 0) {
+                final long now = System.nanoTime();
+                if (now < nextSendNanos) {
+                    LockSupport.parkNanos(this, nextSendNanos - now);
+                    continue;
+                }
+                nextSendNanos = Math.max(now, nextSendNanos) + drainIntervalNanos;
+            }
+
+            final SpoolMessage message;
+            synchronized (window) {
+                message = window[(windowHead + windowCount) % window.length];
+                windowCount++;
+            }
+            if (!read(message)) {
+                synchronized (window) {
+                    windowCount--;
+                }
+                continue;
+            }
+            try {
+                publisher.publish(message);
+            } catch (AWSIotException | RuntimeException e) {
+                log.debug("Publish to {} failed.", message.getTopic(), e);
+                message.complete(false);
+            }
+        }
+    }
+
+    // Whether another message may be published. After a failure, once everything in flight has finished, starts over
+    // from the first message not acknowledged.
+    private boolean windowHasRoom() {
+        synchronized (window) {
+            if (rewind) {
+                for (int i = 0; i < windowCount; i++) {
+                    if (!window[(windowHead + i) % window.length].done) {
+                        return false;
+                    }
+                }
+                windowCount = 0;
+                rewind = false;
+                readPosition = acknowledged;
+            }
+            return windowCount < window.length;
+        }
+    }
+
+    private void park() {
+        drainerParked = true;
+        if (!closed) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        drainerParked = false;
+    }
+
+    // Reads the record at the read position into the message; false if there was none, only a segment's end.
+    private boolean read(SpoolMessage message) {
+        final Segment segment = segments.get(sequence(readPosition));
+        final int offset = offset(readPosition);
+        if (segment == null) {
+            log.warn("Spool segment {} is missing; skipping it.", sequence(readPosition));
+            readPosition = position(sequence(readPosition) + 1, 0);
+            return false;
+        }
+        final int length = segment.buffer.getInt(offset);
+        if (length == END_OF_SEGMENT || length < BODY_HEADER_BYTES || offset + HEADER_BYTES + length > segmentBytes) {
+            // A zero length is a segment whose end marker a crash kept from being written.
+            if (length != END_OF_SEGMENT && length != 0) {
+                log.warn("Spool segment {} is damaged at {}; skipping the rest of it.", segment.sequence, offset);
+            }
+            readPosition = position(segment.sequence + 1, 0);
+            return false;
+        }
+        if (segment.readView == null) {
+            // The appender may be mid-record; its position and limit mean nothing here.
+            segment.readView = segment.buffer.duplicate();
+            segment.readView.clear();
+        }
+        final ByteBuffer view = segment.readView;
+        view.position(offset + HEADER_BYTES);
+        final AWSIotQos qos = AWSIotQos.valueOf(view.get());
+        final int topicLength = view.getShort() & 0xFFFF;
+        if (topicScratch.length < topicLength) {
+            topicScratch = new byte[topicLength];
+        }
+        view.get(topicScratch, 0, topicLength);
+        final byte[] payload = new byte[length - BODY_HEADER_BYTES - topicLength];
+        view.get(payload);
+
+        readPosition = position(segment.sequence, offset + HEADER_BYTES + length);
+        message.reset(new String(topicScratch, 0, topicLength, StandardCharsets.UTF_8), qos, payload, readPosition);
+        return true;
+    }
+
+    private void deleteAcknowledgedSegments() {
+        final long acknowledgedSequence = sequence(acknowledged);
+        for (Segment segment : segments.values()) {
+            if (segment.sequence >= acknowledgedSequence) {
+                return;
+            }
+            // Under the lock force() holds while it walks the segments, so it never forces an unmapped buffer.
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                segments.remove(segment.sequence);
+                unmap(segment.buffer);
+            }
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                log.warn("Could not delete spool segment {}", segment.file, e);
+            }
+        }
+    }
+
+    private Segment openSegment(long sequence) throws IOException {
+        final Path file = segmentFile(sequence);
+        return new Segment(sequence, file, map(file, segmentBytes));
+    }
+
+    private Path segmentFile(long sequence) {
+        return directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // Releases the mapping now rather than when the buffer is collected, so deleted segments free their disk space.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Could not unmap a spool file; it is released when collected.", e);
+        }
+    }
+
+    private static boolean isAscii(String topic) {
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A position in the log is a segment's sequence number in the high half and an offset in it in the low half.
+    private static long position(long sequence, int offset) {
+        return sequence << 32 | offset;
+    }
+
+    private static long sequence(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    private static class Segment {
+        private final long sequence;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        // The drainer's own view, so its reads do not move the appender's position.
+        private ByteBuffer readView;
+
+        Segment(long sequence, Path file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * One place in the in-flight window, reused for every message published from it.
+     */
+    private class SpoolMessage extends AWSIotMessage {
+        // The position just past this message's record.
+        private long end;
+        private boolean done;
+        private boolean succeeded;
+
+        SpoolMessage() {
+            super(null, null);
+        }
+
+        void reset(String topic, AWSIotQos qos, byte[] payload, long end) {
+            this.topic = topic;
+            this.qos = qos;
+            this.payload = payload;
+            this.end = end;
+            this.done = false;
+        }
+
+        // The SDK hands this to Paho; the array is not copied as the SDK's own getter would.
+        @Override
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        @Override
+        public void onSuccess() {
+            complete(true);
+        }
+
+        @Override
+        public void onFailure() {
+            log.debug("Publish to {} failed: {}", getTopic(), getErrorMessage());
+            complete(false);
+        }
+
+        @Override
+        public void onTimeout() {
+            complete(false);
+        }
+
+        void complete(boolean success) {
+            synchronized (window) {
+                if (done || closed) {
+                    return;
+                }
+                done = true;
+                succeeded = success;
+                if (!success) {
+                    failed++;
+                    rewind = true;
+                }
+                // Only a run of acknowledged messages at the head of the window moves the cursor.
+                while (windowCount > 0) {
+                    final SpoolMessage head = window[windowHead];
+                    if (!head.done || !head.succeeded) {
+                        break;
+                    }
+                    acknowledged = head.end;
+                    cursor.putLong(0, head.end);
+                    windowHead = (windowHead + 1) % window.length;
+                    windowCount--;
+                    drained++;
+                }
+            }
+            LockSupport.unpark(drainer);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves payloads between {@link ByteBuffer}s and the SDK's messages with as few copies as the SDK allows. The SDK
+ * copies a message's payload array whenever it is set or read; Paho needs an array of exactly the payload's length.
+ */
+public final class Payloads {
+    private static final Field MESSAGE_PAYLOAD = AwsIotMqttClientBuilder.sdkField(AWSIotMessage.class, "payload", byte[].class);
+
+    private Payloads() {
+    }
+
+    /**
+     * @return a read-only view of the message's payload, without the copy {@link AWSIotMessage#getPayload()} makes
+     */
+    public static ByteBuffer asByteBuffer(AWSIotMessage message) {
+        final byte[] payload;
+        try {
+            payload = (byte[]) MESSAGE_PAYLOAD.get(message);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return payload == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    /**
+     * The buffer's remaining bytes as an array: the buffer's own array if it is a heap buffer whose remaining bytes are
+     * the whole array, otherwise a copy. The buffer's position is left alone.
+     */
+    public static byte[] toArray(ByteBuffer buffer) {
+        if (isWholeArray(buffer)) {
+            return buffer.array();
+        }
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    /**
+     * @return whether {@link #toArray(ByteBuffer)} returns the buffer's own array rather than a copy
+     */
+    public static boolean isWholeArray(ByteBuffer buffer) {
+        return buffer.hasArray()
+                && buffer.arrayOffset() == 0
+                && buffer.position() == 0
+                && buffer.limit() == buffer.array().length;
+    }
+}
@@ -34,8 +34,7 @@ import java.security.PrivateKey;
 import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.RSAPrivateCrtKeySpec;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.Base64;
 
 /**
  * Class for reading RSA or ECC private key from PEM file.
@@ -116,7 +115,7 @@ public class PrivateKeyReader {
             }
         }
         KeySpec keySpec = null;
-        byte[] encoded = DatatypeConverter.parseBase64Binary(builder.toString());
+        byte[] encoded = Base64.getMimeDecoder().decode(builder.toString());
         if (isRSAKey) {
             keySpec = getRSAKeySpec(encoded);
         } else {
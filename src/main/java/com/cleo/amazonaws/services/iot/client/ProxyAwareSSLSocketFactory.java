@@ -1,38 +1,193 @@
 package com.cleo.amazonaws.services.iot.client;
 
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
-import org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProxySelector;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import lombok.Getter;
+import lombok.Setter;
+
 public class ProxyAwareSSLSocketFactory extends SSLSocketFactory {
+    public enum ConnectMode {
+        /**
+         * Try each proxy in turn, then fall back to a direct connection. The attempts share the connect timeout.
+         */
+        SEQUENTIAL,
+        /**
+         * Race the proxies and the direct route against each other, keeping the first to connect.
+         */
+        RACE
+    }
+
+    public enum FlushPolicy {
+        /**
+         * Send the buffered bytes when the caller flushes, or when the buffer is full.
+         */
+        ON_FLUSH,
+        /**
+         * Send the buffered bytes as soon as an MQTT packet is complete, or when the buffer is full. Only for raw MQTT
+         * over TLS ({@code ssl://}) endpoints; streams that do not start with an MQTT CONNECT, such as WebSocket
+         * ({@code wss://}) ones, fall back to {@link #ON_FLUSH}.
+         */
+        ON_PACKET_BOUNDARY
+    }
+
     private SSLSocketFactory delegate;
 
+    /**
+     * The proxy selector used by sockets created from now on, {@code null} for {@link ProxySelector#getDefault()}.
+     */
+    @Getter
+    private ProxySelector proxySelector;
+
+    /**
+     * Memoizes proxy selection per endpoint for sockets created by this factory, {@code null} to disable.
+     */
+    @Getter
+    @Setter
+    private ProxyLookupCache proxyLookupCache = new ProxyLookupCache();
+
+    /**
+     * Where sockets created by this factory record and look up proxy health, {@link ProxyHealthCache#getShared()}
+     * unless set.
+     */
+    @Getter
+    @Setter
+    private ProxyHealthCache proxyHealthCache = ProxyHealthCache.getShared();
+
+    /**
+     * Counts the sockets opened, closed and leaked by sockets created by this factory, {@code null} to disable.
+     */
+    @Getter
+    @Setter
+    private SocketTracker socketTracker = new SocketTracker();
+
+    /**
+     * Receives the DNS, TCP, proxy tunnel and TLS handshake timings of every connect attempt by sockets created by this
+     * factory, {@code null} to disable. See {@link ConnectTimingHistograms}.
+     */
+    @Getter
+    @Setter
+    private ConnectTimingListener connectTimingListener;
+
+    /**
+     * Sets up the tunnels through HTTP proxies for sockets created by this factory, and caches their proxy credentials.
+     * {@code null} leaves HTTP proxies to the JDK.
+     */
+    @Getter
+    @Setter
+    private HttpConnectTunneler httpConnectTunneler = new HttpConnectTunneler();
+
+    @Getter
+    @Setter
+    private ConnectMode connectMode = ConnectMode.SEQUENTIAL;
+
+    /**
+     * The TCP options of sockets created by this factory, {@code null} for the platform defaults.
+     */
+    @Getter
+    @Setter
+    private SocketOptions socketOptions;
+
+    /**
+     * When positive, sockets buffer their output up to this many bytes so that small writes leave as one TLS record.
+     * A TLS record carries at most 16 KB less the cipher overhead, so 16000 fills records without spilling a small
+     * second one. Zero, the default, writes straight through.
+     */
+    @Getter
+    @Setter
+    private int outputBufferSize;
+
+    /**
+     * When the buffered output of {@link #getOutputBufferSize()} is sent.
+     */
+    @Getter
+    @Setter
+    private FlushPolicy outputFlushPolicy = FlushPolicy.ON_FLUSH;
+
+    /**
+     * In {@link ConnectMode#RACE} mode, how long to wait for an attempt before starting the next candidate route.
+     */
+    @Getter
+    @Setter
+    private long raceStaggerMillis = 250;
+
+    /**
+     * Creates a factory whose sockets share the process-wide {@link SharedSSLContext#getDefault()} context, and with it
+     * the TLS session cache. As with Paho's factory, the client certificate comes from the {@code javax.net.ssl.keyStore}
+     * system properties, if set.
+     *
+     * @throws MqttSecurityException if the shared context cannot be created
+     */
     public ProxyAwareSSLSocketFactory() throws MqttSecurityException {
-        SSLSocketFactoryFactory wSSFactoryFactory = new SSLSocketFactoryFactory();
-        delegate = wSSFactoryFactory.createSocketFactory(null);
+        this(SharedSSLContext.getDefault());
+    }
+
+    /**
+     * Creates a factory whose sockets come from the given context. Share the context between factories to let their
+     * sockets resume each other's TLS sessions.
+     *
+     * @param sslContext the initialized context
+     */
+    public ProxyAwareSSLSocketFactory(SSLContext sslContext) {
+        delegate = sslContext.getSocketFactory();
+    }
+
+    public void setProxySelector(ProxySelector proxySelector) {
+        this.proxySelector = proxySelector;
+        invalidateProxyLookups();
+    }
+
+    /**
+     * Forgets every memoized proxy selection, so the next connect to each endpoint asks the proxy selector again. Call
+     * this when the network or the proxy configuration changes.
+     */
+    public void invalidateProxyLookups() {
+        if (proxyLookupCache != null) {
+            proxyLookupCache.invalidate();
+        }
     }
 
     @SuppressWarnings("MethodDoesntCallSuperMethod")
     @Override
     public Socket createSocket() throws IOException {
-        return new DeferredSSLSocket(delegate);
+        return new DeferredSSLSocket(this, delegate);
     }
 
     @Override
     public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
         InetSocketAddress address = new InetSocketAddress(host, port);
-        DeferredSSLSocket sslSocket = new DeferredSSLSocket(delegate);
+        DeferredSSLSocket sslSocket = new DeferredSSLSocket(this, delegate);
         sslSocket.connect(address);
         return sslSocket;
     }
 
+    /**
+     * Creates a socket and connects it without blocking the calling thread, see
+     * {@link DeferredSSLSocket#connectAsync(java.net.SocketAddress, int, Executor)}.
+     *
+     * @param host     the host
+     * @param port     the port
+     * @param timeout  the connect timeout in milliseconds, zero for no timeout
+     * @param executor runs the TLS handshake and any proxied connect
+     * @return completes with the connected socket once the handshake is done
+     */
+    public CompletableFuture<SSLSocket> createSocketAsync(String host, int port, int timeout, Executor executor) {
+        // Left unresolved, so the DNS lookup happens on the executor.
+        return new DeferredSSLSocket(this, delegate).connectAsync(InetSocketAddress.createUnresolved(host, port), timeout, executor);
+    }
+
     @Override
     public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException {
         return delegate.createSocket(host, port, localHost, localPort);
@@ -0,0 +1,217 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Value;
+
+/**
+ * Remembers how recent connect attempts through each proxy went, per endpoint, so that connects can try the proxies
+ * that are known to work first and the ones that failed recently last.
+ *
+ * <p>Failures are remembered for the negative TTL; successes (and their connect latency) for the positive TTL. Entries
+ * that have outlived both are evicted, as is the least recently used entry once the cache is full. The shared instance
+ * returned by {@link #getShared()} is used by every {@link ProxyAwareSSLSocketFactory} unless one is given its own.
+ */
+public class ProxyHealthCache {
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_POSITIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final ProxyHealthCache SHARED = new ProxyHealthCache();
+
+    // Weight of the newest sample in the connect latency moving average.
+    private static final double LATENCY_ALPHA = 0.3;
+
+    private final long negativeTtlNanos;
+    private final long positiveTtlNanos;
+    private final Map<Key, Health> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ProxyHealthCache() {
+        this(DEFAULT_NEGATIVE_TTL_MILLIS, DEFAULT_POSITIVE_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public ProxyHealthCache(long negativeTtlMillis, long positiveTtlMillis, final int maxEntries) {
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.positiveTtlNanos = TimeUnit.MILLISECONDS.toNanos(positiveTtlMillis);
+        this.entries = new LinkedHashMap<Key, Health>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Health> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static ProxyHealthCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Orders the candidate proxies for an endpoint: proxies that connected recently come first, fastest first, then
+     * proxies with no recent history in their original order, then proxies that failed within the negative TTL.
+     *
+     * @param endpoint the endpoint being connected to
+     * @param proxies  the candidate proxies, in selector order
+     * @return a new list with the same proxies in ranked order
+     */
+    public List<Proxy> rank(InetSocketAddress endpoint, List<Proxy> proxies) {
+        final long now = System.nanoTime();
+        final List<Ranked> ranked = new ArrayList<>(proxies.size());
+        synchronized (entries) {
+            for (Proxy proxy : proxies) {
+                ranked.add(new Ranked(proxy, lookup(new Key(key(endpoint), proxy), now), now));
+            }
+        }
+        ranked.sort(Comparator.comparingInt((Ranked r) -> r.state).thenComparingDouble(r -> r.latencyNanos));
+
+        final List<Proxy> result = new ArrayList<>(ranked.size());
+        ranked.forEach(r -> result.add(r.proxy));
+        return result;
+    }
+
+    public void recordSuccess(InetSocketAddress endpoint, Proxy proxy, long latencyNanos) {
+        final long now = System.nanoTime();
+        synchronized (entries) {
+            Health health = entries.computeIfAbsent(new Key(key(endpoint), proxy), k -> new Health());
+            health.lastSuccess = now;
+            health.lastFailure = null;
+            health.latencyNanos = health.latencyNanos == null ? latencyNanos : LATENCY_ALPHA * latencyNanos + (1 - LATENCY_ALPHA) * health.latencyNanos;
+        }
+    }
+
+    public void recordFailure(InetSocketAddress endpoint, Proxy proxy) {
+        final long now = System.nanoTime();
+        synchronized (entries) {
+            entries.computeIfAbsent(new Key(key(endpoint), proxy), k -> new Health()).lastFailure = now;
+        }
+    }
+
+    /**
+     * Drops every entry, for example after a network change.
+     */
+    public void clear() {
+        synchronized (entries) {
+            evictions.addAndGet(entries.size());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Drops entries that have outlived both TTLs.
+     */
+    public void evictExpired() {
+        final long now = System.nanoTime();
+        synchronized (entries) {
+            for (Iterator<Health> it = entries.values().iterator(); it.hasNext(); ) {
+                if (it.next().isExpired(now)) {
+                    it.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    // Must be called while holding the entries lock.
+    private Health lookup(Key key, long now) {
+        Health health = entries.get(key);
+        if (health != null && health.isExpired(now)) {
+            entries.remove(key);
+            evictions.incrementAndGet();
+            health = null;
+        }
+        if (health == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return health;
+    }
+
+    private static String key(InetSocketAddress endpoint) {
+        return endpoint.getHostString() + ":" + endpoint.getPort();
+    }
+
+    @Value
+    private static class Key {
+        String endpoint;
+        Proxy proxy;
+    }
+
+    private class Health {
+        private Long lastSuccess;
+        private Long lastFailure;
+        private Double latencyNanos;
+
+        boolean isFailed(long now) {
+            return lastFailure != null && now - lastFailure < negativeTtlNanos;
+        }
+
+        boolean isHealthy(long now) {
+            return lastSuccess != null && now - lastSuccess < positiveTtlNanos;
+        }
+
+        boolean isExpired(long now) {
+            return !isFailed(now) && !isHealthy(now);
+        }
+    }
+
+    private static class Ranked {
+        private static final int HEALTHY = 0;
+        private static final int UNKNOWN = 1;
+        private static final int FAILED = 2;
+
+        private final Proxy proxy;
+        private final int state;
+        private final double latencyNanos;
+
+        Ranked(Proxy proxy, Health health, long now) {
+            this.proxy = proxy;
+            if (health == null) {
+                state = UNKNOWN;
+            } else if (health.isFailed(now)) {
+                state = FAILED;
+            } else if (health.isHealthy(now)) {
+                state = HEALTHY;
+            } else {
+                state = UNKNOWN;
+            }
+            this.latencyNanos = state == HEALTHY && health.latencyNanos != null ? health.latencyNanos : 0;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Memoizes the proxies a {@link java.net.ProxySelector} returns for an endpoint, so that reconnecting clients do not
+ * re-run (possibly PAC script based) proxy selection on every connect. Entries expire after the TTL and the least
+ * recently used entry is dropped once the cache is full. Call {@link #invalidate()} when the network or the proxy
+ * configuration changes.
+ */
+public class ProxyLookupCache {
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+    // Guarded by entries; bumped by invalidate() so that a lookup resolved before it is not cached after it.
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ProxyLookupCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public ProxyLookupCache(long ttlMillis, final int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached proxies for the endpoint, resolving and caching them on a miss. Resolution runs outside the
+     * cache lock, so concurrent misses for the same endpoint may each resolve it. A lookup that {@link #invalidate()}
+     * overtakes is returned but not cached.
+     *
+     * @param endpoint the endpoint being connected to
+     * @param resolver resolves the proxies for the endpoint on a miss
+     * @return the proxies for the endpoint, unmodifiable
+     */
+    public List<Proxy> get(InetSocketAddress endpoint, Function<InetSocketAddress, List<Proxy>> resolver) {
+        final String key = endpoint.getHostString() + ":" + endpoint.getPort();
+        final long now = System.nanoTime();
+        final long started;
+        synchronized (entries) {
+            started = generation;
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.resolved < ttlNanos) {
+                    hits.incrementAndGet();
+                    return entry.proxies;
+                }
+                entries.remove(key);
+                evictions.incrementAndGet();
+            }
+        }
+
+        misses.incrementAndGet();
+        final List<Proxy> proxies = Collections.unmodifiableList(resolver.apply(endpoint));
+        synchronized (entries) {
+            if (generation == started) {
+                entries.put(key, new Entry(proxies, now));
+            }
+        }
+        return proxies;
+    }
+
+    /**
+     * Drops every cached lookup, for example after a network change.
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            generation++;
+            evictions.addAndGet(entries.size());
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        final long hits = getHits();
+        final long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static class Entry {
+        private final List<Proxy> proxies;
+        private final long resolved;
+
+        Entry(List<Proxy> proxies, long resolved) {
+            this.proxies = proxies;
+            this.resolved = resolved;
+        }
+    }
+}
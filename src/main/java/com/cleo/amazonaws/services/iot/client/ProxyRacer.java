@@ -0,0 +1,215 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Connects to an endpoint through several candidate routes at once ("happy eyeballs"). Attempts are started in
+ * candidate order, one every {@code staggerMillis} or as soon as the previous attempt fails, and the first plain socket
+ * that completes its TCP connect (and proxy CONNECT, if any) wins. All other attempts are cancelled and their sockets
+ * closed. The whole race is bounded by the caller's timeout.
+ *
+ * <p>Each attempt records its phases in its own {@link ConnectTiming.ConnectTimingBuilder}; the winner's is returned
+ * with its socket.
+ */
+@Slf4j
+class ProxyRacer {
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "proxy-racer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Told about the winning attempt and about every failed attempt that was not cancelled.
+     */
+    interface Listener {
+        void succeeded(Proxy proxy, long elapsedNanos);
+
+        void failed(Proxy proxy, ConnectTiming.ConnectTimingBuilder timing, IOException e);
+    }
+
+    /**
+     * Connects a socket from the socket factory to the endpoint through a proxy.
+     */
+    interface Connector {
+        /**
+         * @param timing records the phases of this attempt
+         * @return the connected socket, which may replace the one given
+         */
+        Socket connect(Socket socket, Proxy proxy, int timeout, ConnectTiming.ConnectTimingBuilder timing) throws IOException;
+    }
+
+    private final InetSocketAddress endpoint;
+    private final List<Proxy> candidates;
+    private final long staggerNanos;
+    private final Function<Proxy, Socket> socketFactory;
+    private final Connector connector;
+    private final Listener listener;
+
+    ProxyRacer(InetSocketAddress endpoint, List<Proxy> candidates, long staggerMillis, Function<Proxy, Socket> socketFactory, Connector connector, Listener listener) {
+        this.endpoint = endpoint;
+        this.candidates = candidates;
+        this.staggerNanos = TimeUnit.MILLISECONDS.toNanos(staggerMillis);
+        this.socketFactory = socketFactory;
+        this.connector = connector;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the race.
+     *
+     * @param timeout the overall connect timeout in milliseconds, {@code null} or zero for no timeout
+     * @return the winning attempt, whose plain socket is connected
+     * @throws IOException if every attempt failed or the timeout expired
+     */
+    Attempt connect(Integer timeout) throws IOException {
+        if (candidates.isEmpty()) {
+            throw new IOException("No routes to endpoint " + endpoint + ".");
+        }
+
+        final long deadline = DeferredSSLSocket.deadline(timeout);
+        final CompletionService<Attempt> completionService = new ExecutorCompletionService<>(EXECUTOR);
+        final List<Attempt> attempts = new ArrayList<>(candidates.size());
+        final List<Future<Attempt>> futures = new ArrayList<>(candidates.size());
+        Attempt winner = null;
+        IOException failure = null;
+        try {
+            int finished = 0;
+            while (finished < candidates.size()) {
+                // Each pass starts the next attempt, either because the stagger elapsed or because an attempt failed.
+                if (attempts.size() < candidates.size()) {
+                    Attempt attempt = new Attempt(candidates.get(attempts.size()), deadline);
+                    attempts.add(attempt);
+                    futures.add(completionService.submit(attempt));
+                }
+
+                long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Connect timed out racing " + attempts.size() + " route(s) to endpoint " + endpoint + ".");
+                }
+                boolean moreToStart = attempts.size() < candidates.size();
+                Future<Attempt> done = moreToStart ? completionService.poll(Math.min(staggerNanos, remaining), TimeUnit.NANOSECONDS)
+                        : completionService.poll(remaining, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    continue;
+                }
+
+                finished++;
+                try {
+                    winner = done.get();
+                    log.debug("Connection race to endpoint {} won via proxy: {}.", endpoint, winner.proxy.address());
+                    listener.succeeded(winner.proxy, winner.getElapsedNanos());
+                    return winner;
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while connecting to endpoint " + endpoint + ".");
+        } finally {
+            for (int i = 0; i < attempts.size(); i++) {
+                Attempt attempt = attempts.get(i);
+                if (attempt != winner) {
+                    futures.get(i).cancel(false);
+                    attempt.cancel();
+                }
+            }
+        }
+    }
+
+    class Attempt implements Callable<Attempt> {
+        private final Proxy proxy;
+        private final long deadline;
+        private final ConnectTiming.ConnectTimingBuilder timing;
+        private Socket socket;
+        private long elapsedNanos;
+        private boolean cancelled;
+
+        Attempt(Proxy proxy, long deadline) {
+            this.proxy = proxy;
+            this.deadline = deadline;
+            this.timing = ConnectTiming.attempt(endpoint, proxy);
+        }
+
+        Proxy getProxy() {
+            return proxy;
+        }
+
+        synchronized Socket getSocket() {
+            return socket;
+        }
+
+        synchronized long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        ConnectTiming.ConnectTimingBuilder getTiming() {
+            return timing;
+        }
+
+        @Override
+        public Attempt call() throws IOException {
+            log.debug("Racing connect to endpoint {} via proxy: {}.", endpoint, proxy.address());
+            Socket candidate = socketFactory.apply(proxy);
+            synchronized (this) {
+                if (cancelled) {
+                    DeferredSSLSocket.closeQuietly(candidate);
+                    throw new SocketException("Connect attempt cancelled.");
+                }
+                socket = candidate;
+            }
+            final long start = System.nanoTime();
+            try {
+                Socket connected = connector.connect(candidate, proxy, DeferredSSLSocket.remainingMillis(deadline), timing);
+                synchronized (this) {
+                    socket = connected;
+                    elapsedNanos = System.nanoTime() - start;
+                }
+                candidate = connected;
+            } catch (IOException e) {
+                log.debug("Connection failed to endpoint {} via proxy: {}.", endpoint, proxy.address());
+                DeferredSSLSocket.closeQuietly(candidate);
+                synchronized (this) {
+                    if (!cancelled) {
+                        listener.failed(proxy, timing, e);
+                    }
+                }
+                throw e;
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    DeferredSSLSocket.closeQuietly(candidate);
+                    throw new SocketException("Connect attempt cancelled.");
+                }
+            }
+            return this;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (socket != null) {
+                DeferredSSLSocket.closeQuietly(socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Publishes messages for many threads through one client without blocking them on the network. Messages wait in a
+ * bounded queue; a sender thread takes them off in order and hands them to the client as fast as the in-flight window
+ * allows, so a backlog goes out back-to-back rather than one round trip at a time. Each message gets a future that
+ * completes when the client reports it sent (QoS 0) or acknowledged (QoS 1).
+ *
+ * <p>The queue and the window bound the pipeline's memory. When the queue is full the {@link Backpressure} policy
+ * decides what happens to a new message.
+ *
+ * <pre>
+ * try (PublishPipeline pipeline = PublishPipeline.builder()
+ *         .client(client)
+ *         .capacity(10000)
+ *         .backpressure(PublishPipeline.Backpressure.DROP_OLDEST)
+ *         .build()) {
+ *     pipeline.publish("devices/" + deviceId + "/telemetry", AWSIotQos.QOS1, payload)
+ *             .whenComplete((ignored, failure) -&gt; ...);
+ * }
+ * </pre>
+ *
+ * <p>Futures complete on the SDK's callback thread, so their dependent actions should not block.
+ */
+@Slf4j
+public class PublishPipeline implements Closeable {
+    /**
+     * Paho's default limit of unacknowledged QoS 1 publishes per connection, which the SDK does not change.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 10;
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * What {@link #publish} does when the queue is full.
+     */
+    public enum Backpressure {
+        /**
+         * Wait for room in the queue.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued message, whose future completes with a {@link CancellationException}, to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Complete the new message's future with a {@link RejectedExecutionException} right away.
+         */
+        FAIL_FAST
+    }
+
+    /**
+     * Hands a message to the network without waiting for it; the message's callbacks report the outcome.
+     */
+    @FunctionalInterface
+    public interface Publisher {
+        void publish(AWSIotMessage message) throws AWSIotException;
+    }
+
+    private final Publisher publisher;
+    private final int capacity;
+    private final int maxInFlight;
+    private final Backpressure backpressure;
+
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+    // Free places in the queue, and in the in-flight window.
+    private final Semaphore slots;
+    private final Semaphore inFlight;
+    private final Thread sender;
+    private volatile boolean senderParked;
+    private volatile boolean closed;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param client               the client to publish with, unless a publisher is given
+     * @param publisher            publishes each message, by default with the client
+     * @param capacity             how many messages may wait in the queue, defaults to {@link #DEFAULT_CAPACITY}
+     * @param maxInFlight          how many messages may be sent but not yet completed, defaults to
+     *                             {@link #DEFAULT_MAX_IN_FLIGHT}
+     * @param backpressure         what to do when the queue is full, defaults to {@link Backpressure#BLOCK}
+     * @param publishTimeoutMillis fails a message that is not completed in time, defaults to no timeout; with a timeout
+     *                             the SDK copies every payload twice
+     */
+    @Builder
+    private PublishPipeline(AWSIotMqttClient client,
+                            Publisher publisher,
+                            Integer capacity,
+                            Integer maxInFlight,
+                            Backpressure backpressure,
+                            Long publishTimeoutMillis) {
+        if (publisher == null && client == null) {
+            throw new IllegalArgumentException("A client or a publisher is required.");
+        }
+        if (publisher != null) {
+            this.publisher = publisher;
+        } else if (publishTimeoutMillis == null) {
+            // Straight to the connection, which queues the message while offline just as the client would.
+            this.publisher = AwsIotMqttClientBuilder.connectionOf(client)::publish;
+        } else {
+            this.publisher = message -> client.publish(message, publishTimeoutMillis);
+        }
+        this.capacity = capacity == null ? DEFAULT_CAPACITY : capacity;
+        this.maxInFlight = maxInFlight == null ? DEFAULT_MAX_IN_FLIGHT : maxInFlight;
+        if (this.capacity < 1) {
+            throw new IllegalArgumentException("The queue must hold at least one message, not " + this.capacity);
+        }
+        if (this.maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one message must be allowed in flight, not " + this.maxInFlight);
+        }
+        this.backpressure = backpressure == null ? Backpressure.BLOCK : backpressure;
+        this.slots = new Semaphore(this.capacity);
+        this.inFlight = new Semaphore(this.maxInFlight);
+
+        this.sender = new Thread(this::send, "publish-pipeline-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * @param payload sent as is, without the copies the SDK makes of a plain {@link AWSIotMessage}'s payload, so it
+     *                must not be changed until the future completes
+     */
+    public CompletableFuture<Void> publish(String topic, AWSIotQos qos, byte[] payload) {
+        return enqueue(new Message(topic, qos, payload));
+    }
+
+    /**
+     * Publishes the buffer's remaining bytes. A heap buffer whose remaining bytes are its whole array is sent without
+     * copying and must not be changed until the future completes; any other buffer is copied once, here, and is free
+     * again when this returns.
+     */
+    public CompletableFuture<Void> publish(String topic, AWSIotQos qos, ByteBuffer payload) {
+        return enqueue(new Message(topic, qos, Payloads.toArray(payload)));
+    }
+
+    /**
+     * Publishes the buffer's remaining bytes, like {@link #publish(String, AWSIotQos, ByteBuffer)}, and releases the
+     * buffer to the pool once it is no longer needed: right away if it was copied, otherwise when the future completes.
+     */
+    public CompletableFuture<Void> publish(String topic, AWSIotQos qos, ByteBuffer payload, ByteBufferPool pool) {
+        final Message message = new Message(topic, qos, Payloads.toArray(payload));
+        if (Payloads.isWholeArray(payload)) {
+            message.future.whenComplete((ignored, failure) -> pool.release(payload));
+        } else {
+            pool.release(payload);
+        }
+        return enqueue(message);
+    }
+
+    private CompletableFuture<Void> enqueue(Message message) {
+        if (closed) {
+            throw new RejectedExecutionException("Pipeline is closed.");
+        }
+        if (!slots.tryAcquire()) {
+            switch (backpressure) {
+                case BLOCK:
+                    try {
+                        slots.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        message.future.completeExceptionally(e);
+                        return message.future;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    takeSlotFromOldest();
+                    break;
+                case FAIL_FAST:
+                default:
+                    rejected.incrementAndGet();
+                    message.future.completeExceptionally(new RejectedExecutionException("Publish queue is full."));
+                    return message.future;
+            }
+        }
+        queue.add(message);
+        if (closed && queue.remove(message)) {
+            // Raced with close(), which may already have drained the queue.
+            slots.release();
+            message.future.completeExceptionally(new CancellationException("Pipeline closed."));
+        } else if (senderParked) {
+            LockSupport.unpark(sender);
+        }
+        return message.future;
+    }
+
+    /**
+     * @return the number of messages waiting to be sent
+     */
+    public int getQueueDepth() {
+        return capacity - slots.availablePermits();
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops taking messages. Queued messages complete exceptionally with a {@link CancellationException}; messages
+     * already in flight are left to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        sender.interrupt();
+        Message message;
+        while ((message = queue.poll()) != null) {
+            // Frees blocked publishers, which then see the pipeline closed.
+            slots.release();
+            message.future.completeExceptionally(new CancellationException("Pipeline closed."));
+        }
+    }
+
+    private void takeSlotFromOldest() {
+        while (!slots.tryAcquire()) {
+            final Message oldest = queue.poll();
+            if (oldest != null) {
+                // The new message takes over the dropped message's place.
+                dropped.incrementAndGet();
+                oldest.future.completeExceptionally(new CancellationException("Dropped for a newer message."));
+                return;
+            }
+            // Every place is held by publishers that have not queued yet.
+            Thread.yield();
+        }
+    }
+
+    private void send() {
+        while (!closed) {
+            if (!awaitMessage()) {
+                break;
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            final Message message = queue.poll();
+            if (message == null) {
+                // Dropped or cancelled while waiting for the window.
+                inFlight.release();
+                continue;
+            }
+            slots.release();
+            try {
+                publisher.publish(message);
+            } catch (AWSIotException | RuntimeException e) {
+                message.fail(e);
+            }
+        }
+    }
+
+    // Waits until a message is queued; false once the pipeline is closed.
+    private boolean awaitMessage() {
+        while (queue.isEmpty()) {
+            senderParked = true;
+            if (queue.isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            senderParked = false;
+            if (closed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Message extends AWSIotMessage {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Message(String topic, AWSIotQos qos, byte[] payload) {
+            super(topic, qos);
+            this.payload = payload;
+        }
+
+        // The SDK hands this to Paho; the array is not copied as the SDK's own getter would.
+        @Override
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        @Override
+        public void onSuccess() {
+            if (future.complete(null)) {
+                published.incrementAndGet();
+                inFlight.release();
+            }
+        }
+
+        @Override
+        public void onFailure() {
+            fail(new AWSIotException(getErrorCode(), "Publish to " + getTopic() + " failed: " + getErrorMessage()));
+        }
+
+        @Override
+        public void onTimeout() {
+            fail(new AWSIotException(getErrorCode(), "Publish to " + getTopic() + " timed out."));
+        }
+
+        void fail(Exception e) {
+            if (future.completeExceptionally(e)) {
+                log.debug("Publish to {} failed.", getTopic(), e);
+                failed.incrementAndGet();
+                inFlight.release();
+            }
+        }
+    }
+}
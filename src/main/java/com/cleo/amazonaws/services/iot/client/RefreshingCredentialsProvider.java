@@ -0,0 +1,140 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps credentials from a slow source, such as STS, in memory and fetches new ones in the background ahead of their
+ * expiration, so that a reconnect never waits for the source or signs with credentials about to expire. Callers only
+ * wait for the source when there are no credentials yet or they have expired, for example after the source failed for
+ * longer than the refresh margin.
+ *
+ * <pre>
+ * RefreshingCredentialsProvider credentials = RefreshingCredentialsProvider.builder()
+ *         .source(stsProvider)
+ *         .refreshAhead(Duration.ofMinutes(10))
+ *         .build();
+ * AWSIotMqttClient client = AwsIotMqttClientBuilder.builder()
+ *         .clientEndpoint(endpoint)
+ *         .clientId(clientId)
+ *         .credentialsProvider(credentials)
+ *         .build();
+ * </pre>
+ */
+@Slf4j
+public class RefreshingCredentialsProvider implements AwsCredentialsProvider, Closeable {
+    public static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofMinutes(5);
+    public static final Duration DEFAULT_RETRY_DELAY = Duration.ofSeconds(30);
+
+    private final AwsCredentialsProvider source;
+    private final Duration refreshAhead;
+    private final Duration retryDelay;
+    private final SigningMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private volatile AwsCredentials credentials;
+    // Guarded by this.
+    private ScheduledFuture<?> nextRefresh;
+
+    /**
+     * @param source       fetches new credentials; may block
+     * @param refreshAhead how long before expiration to fetch new credentials, {@link #DEFAULT_REFRESH_AHEAD} if
+     *                     {@code null}
+     * @param retryDelay   how long to wait before trying a failed fetch again, {@link #DEFAULT_RETRY_DELAY} if
+     *                     {@code null}
+     * @param metrics      counts fetches and failed fetches
+     */
+    @Builder
+    private RefreshingCredentialsProvider(AwsCredentialsProvider source, Duration refreshAhead, Duration retryDelay, SigningMetrics metrics) {
+        if (source == null) {
+            throw new IllegalArgumentException("A source of credentials is required.");
+        }
+        this.source = source;
+        this.refreshAhead = refreshAhead == null ? DEFAULT_REFRESH_AHEAD : refreshAhead;
+        this.retryDelay = retryDelay == null ? DEFAULT_RETRY_DELAY : retryDelay;
+        this.metrics = metrics == null ? new SigningMetrics() : metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "credentials-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public AwsCredentials getCredentials() {
+        final AwsCredentials current = credentials;
+        if (current != null && !current.isExpiredAt(Instant.now())) {
+            return current;
+        }
+        synchronized (this) {
+            if (credentials == null || credentials.isExpiredAt(Instant.now())) {
+                fetch();
+            }
+            return credentials;
+        }
+    }
+
+    /**
+     * Fetches new credentials in the background, once however many connects ask for it.
+     */
+    @Override
+    public void refresh() {
+        if (refreshQueued.compareAndSet(false, true)) {
+            scheduler.execute(this::refreshQuietly);
+        }
+    }
+
+    /**
+     * Stops refreshing in the background.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void fetch() {
+        final AwsCredentials fetched;
+        try {
+            fetched = source.getCredentials();
+        } catch (RuntimeException e) {
+            metrics.credentialRefreshFailed();
+            throw e;
+        }
+        if (fetched == null) {
+            metrics.credentialRefreshFailed();
+            throw new IllegalStateException("The credentials source returned none.");
+        }
+        credentials = fetched;
+        metrics.credentialsRefreshed();
+        if (fetched.getExpiration() != null) {
+            scheduleRefresh(Duration.between(Instant.now(), fetched.getExpiration().minus(refreshAhead)));
+        }
+    }
+
+    // Replaces any refresh already scheduled.
+    private synchronized void scheduleRefresh(Duration delay) {
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+        }
+        nextRefresh = scheduler.schedule(this::refreshQuietly, Math.max(0, delay.toMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshQuietly() {
+        refreshQueued.set(false);
+        try {
+            fetch();
+        } catch (RuntimeException e) {
+            log.warn("Could not refresh credentials; trying again in {}", retryDelay, e);
+            scheduleRefresh(retryDelay);
+        }
+    }
+}
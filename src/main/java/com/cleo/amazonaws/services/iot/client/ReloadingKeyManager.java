@@ -0,0 +1,95 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * Presents whichever identity is current when a handshake starts. A handshake picks an alias first and asks for its key
+ * and certificates afterwards, so each identity gets an alias of its own and the one before the current is kept for
+ * handshakes that started before it was replaced.
+ */
+class ReloadingKeyManager extends X509ExtendedKeyManager {
+    private volatile Aliased current;
+    private volatile Aliased previous;
+    // Guarded by this.
+    private long generation;
+
+    synchronized void setIdentity(X509Identity identity) {
+        previous = current;
+        current = new Aliased("identity-" + ++generation, identity);
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+        final Aliased aliased = current;
+        for (String keyType : keyTypes) {
+            if (matches(aliased, keyType)) {
+                return aliased.alias;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+        return chooseClientAlias(keyTypes, issuers, null);
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        final Aliased aliased = current;
+        return matches(aliased, keyType) ? new String[]{aliased.alias} : null;
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        final Aliased aliased = lookup(alias);
+        return aliased == null ? null : aliased.identity.getCertificateChain();
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        final Aliased aliased = lookup(alias);
+        return aliased == null ? null : aliased.identity.getPrivateKey();
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        return null;
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        return null;
+    }
+
+    private Aliased lookup(String alias) {
+        final Aliased aliased = current;
+        if (aliased.alias.equals(alias)) {
+            return aliased;
+        }
+        final Aliased before = previous;
+        return before != null && before.alias.equals(alias) ? before : null;
+    }
+
+    // Key types are key algorithms, or for TLS 1.1 and older the key and signature algorithms, such as "EC_RSA".
+    private static boolean matches(Aliased aliased, String keyType) {
+        final String algorithm = aliased.identity.getPrivateKey().getAlgorithm();
+        return keyType.equals(algorithm) || keyType.startsWith(algorithm + "_");
+    }
+
+    private static class Aliased {
+        final String alias;
+        final X509Identity identity;
+
+        Aliased(String alias, X509Identity identity) {
+            this.alias = alias;
+            this.identity = identity;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.eclipse.paho.client.mqttv3.MqttSecurityException;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+
+import lombok.Value;
+
+/**
+ * Builds {@link SSLContext}s for {@link ProxyAwareSSLSocketFactory} and holds the process-wide default one.
+ *
+ * <p>TLS sessions are cached per {@link SSLContext}, so sockets only resume sessions when they come from the same
+ * context. Sharing one context across every client built for an endpoint lets reconnects use an abbreviated handshake
+ * instead of a full one.
+ */
+public final class SharedSSLContext {
+    public static final String DEFAULT_PROTOCOL = "TLS";
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(8);
+
+    private static volatile SSLContext defaultContext;
+    // Held weakly, so a context lives while some client uses it and is shared by every client with its identity.
+    private static final Map<IdentityContext, ContextReference> IDENTITY_CONTEXTS = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<SSLContext> COLLECTED_CONTEXTS = new ReferenceQueue<>();
+
+    // No instances allowed.
+    private SharedSSLContext() {
+    }
+
+    /**
+     * Returns the process-wide context, creating it on first use with the default trust store, the client keys of
+     * {@link #systemKeyManagers()} and the default session cache settings.
+     *
+     * @return the shared context
+     * @throws MqttSecurityException if the context cannot be created
+     */
+    public static SSLContext getDefault() throws MqttSecurityException {
+        SSLContext context = defaultContext;
+        if (context == null) {
+            synchronized (SharedSSLContext.class) {
+                context = defaultContext;
+                if (context == null) {
+                    context = newContext(systemKeyManagers(), null, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS);
+                    defaultContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Returns key managers for the key store named by the {@code javax.net.ssl.keyStore}, {@code keyStoreType} and
+     * {@code keyStorePassword} system properties, as Paho's own socket factory reads them; the JDK's default context
+     * ignores them for client keys.
+     *
+     * @return the key managers, or {@code null} when no key store is named
+     * @throws MqttSecurityException if the key store cannot be read
+     */
+    static KeyManager[] systemKeyManagers() throws MqttSecurityException {
+        if (!hasSystemKeyStore()) {
+            return null;
+        }
+        final String keyStoreFile = System.getProperty("javax.net.ssl.keyStore");
+        final String password = System.getProperty("javax.net.ssl.keyStorePassword");
+        final char[] passwordChars = password == null ? null : password.toCharArray();
+        try (InputStream stream = new FileInputStream(keyStoreFile)) {
+            final KeyStore keyStore = KeyStore.getInstance(System.getProperty("javax.net.ssl.keyStoreType", KeyStore.getDefaultType()));
+            keyStore.load(stream, passwordChars);
+            final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, passwordChars);
+            return keyManagerFactory.getKeyManagers();
+        } catch (IOException | GeneralSecurityException e) {
+            throw new MqttSecurityException(e);
+        }
+    }
+
+    /**
+     * @return whether the {@code javax.net.ssl.keyStore} system property names a key store for {@link #getDefault()}
+     */
+    static boolean hasSystemKeyStore() {
+        final String keyStoreFile = System.getProperty("javax.net.ssl.keyStore");
+        return keyStoreFile != null && !keyStoreFile.isEmpty();
+    }
+
+    /**
+     * Returns the context presenting a client identity to servers trusted by the default trust store, creating it with
+     * the default session cache settings unless a client already uses one.
+     *
+     * @param identity the client certificate and key
+     * @return the context shared by every client with an equal identity
+     * @throws MqttSecurityException if the context cannot be created
+     */
+    public static SSLContext forIdentity(X509Identity identity) throws MqttSecurityException {
+        return forIdentity(identity, null);
+    }
+
+    /**
+     * Returns the context presenting a client identity to servers trusted by the trust managers, creating it with the
+     * default session cache settings unless a client already uses one.
+     *
+     * @param identity      the client certificate and key
+     * @param trustManagers the trust managers, {@code null} for the default trust store
+     * @return the context shared by every client with an equal identity and these trust managers
+     * @throws MqttSecurityException if the context cannot be created
+     */
+    public static SSLContext forIdentity(X509Identity identity, TrustManager[] trustManagers) throws MqttSecurityException {
+        final IdentityContext key = new IdentityContext(identity, trustManagers == null ? null : Arrays.asList(trustManagers));
+        final SSLContext cached = cachedContext(key);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            return cacheContext(key, newContext(identity.keyManagers(), trustManagers, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS));
+        } catch (GeneralSecurityException e) {
+            throw new MqttSecurityException(e);
+        }
+    }
+
+    /**
+     * Returns the context presenting the client identity in PEM files to servers trusted by the default trust store,
+     * creating it with the default session cache settings unless a client already uses one.
+     *
+     * @param certificate the PEM file of the client certificate, optionally followed by its intermediates
+     * @param privateKey  the PEM file of the certificate's private key
+     * @return the context shared by every client with these files
+     * @throws MqttSecurityException if the files cannot be read or the context cannot be created
+     */
+    public static SSLContext forIdentity(Path certificate, Path privateKey) throws MqttSecurityException {
+        return forIdentity(certificate, privateKey, null);
+    }
+
+    /**
+     * Returns the context presenting the client identity in PEM files to servers trusted by the trust managers, creating
+     * it with the default session cache settings unless a client already uses one. The files are watched by the shared
+     * {@link KeyMaterialCache}: handshakes present the identity as it is when they start, and the sessions of a replaced
+     * identity are no longer resumed.
+     *
+     * @param certificate   the PEM file of the client certificate, optionally followed by its intermediates
+     * @param privateKey    the PEM file of the certificate's private key
+     * @param trustManagers the trust managers, {@code null} for the default trust store
+     * @return the context shared by every client with these files and these trust managers
+     * @throws MqttSecurityException if the files cannot be read or the context cannot be created
+     */
+    public static SSLContext forIdentity(Path certificate, Path privateKey, TrustManager[] trustManagers) throws MqttSecurityException {
+        final KeyMaterialCache cache = KeyMaterialCache.getShared();
+        try {
+            final KeyManager keyManager = cache.getKeyManager(certificate, privateKey);
+            final IdentityContext key = new IdentityContext(keyManager, trustManagers == null ? null : Arrays.asList(trustManagers));
+            final SSLContext cached = cachedContext(key);
+            if (cached != null) {
+                return cached;
+            }
+            // Added once per key, whichever context holds it when the files change.
+            cache.addReloadListener(certificate, privateKey, new SessionInvalidator(key));
+            return cacheContext(key, newContext(new KeyManager[]{keyManager}, trustManagers, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new MqttSecurityException(e);
+        }
+    }
+
+    /**
+     * Creates a context with a tuned client session cache.
+     *
+     * @param keyManagers           the key managers, {@code null} for no client authentication
+     * @param trustManagers         the trust managers, {@code null} for the default trust store
+     * @param sessionCacheSize      the maximum number of cached client sessions, zero for no limit
+     * @param sessionTimeoutSeconds how long a cached client session may be resumed, zero for no limit
+     * @return the new context
+     * @throws MqttSecurityException if the context cannot be created
+     */
+    public static SSLContext newContext(KeyManager[] keyManagers, TrustManager[] trustManagers, int sessionCacheSize, int sessionTimeoutSeconds) throws MqttSecurityException {
+        try {
+            SSLContext context = SSLContext.getInstance(DEFAULT_PROTOCOL);
+            context.init(keyManagers, trustManagers, null);
+            SSLSessionContext sessionContext = context.getClientSessionContext();
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new MqttSecurityException(e);
+        }
+    }
+
+    /**
+     * @return the number of identity contexts cached, that is still in use or not yet collected
+     */
+    static int getIdentityContextCount() {
+        expunge();
+        return IDENTITY_CONTEXTS.size();
+    }
+
+    private static SSLContext cachedContext(IdentityContext key) {
+        expunge();
+        final ContextReference ref = IDENTITY_CONTEXTS.get(key);
+        return ref == null ? null : ref.get();
+    }
+
+    // Caches the context unless another thread cached one for the key first, and returns the one cached.
+    private static SSLContext cacheContext(IdentityContext key, SSLContext context) {
+        final ContextReference ref = new ContextReference(key, context);
+        while (true) {
+            final ContextReference raced = IDENTITY_CONTEXTS.putIfAbsent(key, ref);
+            if (raced == null) {
+                return context;
+            }
+            final SSLContext existing = raced.get();
+            if (existing != null) {
+                return existing;
+            }
+            if (IDENTITY_CONTEXTS.replace(key, raced, ref)) {
+                return context;
+            }
+        }
+    }
+
+    private static void expunge() {
+        for (Reference<? extends SSLContext> ref = COLLECTED_CONTEXTS.poll(); ref != null; ref = COLLECTED_CONTEXTS.poll()) {
+            IDENTITY_CONTEXTS.remove(((ContextReference) ref).key, ref);
+        }
+    }
+
+    // A resumed session skips client authentication, and so would keep presenting the replaced certificate.
+    private static void invalidateSessions(SSLContext context) {
+        final SSLSessionContext sessions = context.getClientSessionContext();
+        for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+            final SSLSession session = sessions.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    @Value
+    private static class IdentityContext {
+        // An X509Identity, or the key manager of identity files.
+        Object identity;
+        List<TrustManager> trustManagers;
+    }
+
+    private static class ContextReference extends WeakReference<SSLContext> {
+        private final IdentityContext key;
+
+        ContextReference(IdentityContext key, SSLContext context) {
+            super(context, COLLECTED_CONTEXTS);
+            this.key = key;
+        }
+    }
+
+    @Value
+    private static class SessionInvalidator implements Runnable {
+        IdentityContext key;
+
+        @Override
+        public void run() {
+            final SSLContext context = cachedContext(key);
+            if (context != null) {
+                invalidateSessions(context);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what signing WebSocket connects costs: signatures made and how long they took, signing keys derived rather
+ * than found in the cache, credential refreshes, and connects refused for their credentials. One instance may be
+ * shared by many clients.
+ */
+public class SigningMetrics {
+    private final LatencyHistogram signingLatency = new LatencyHistogram();
+    private final LongAdder keyDerivations = new LongAdder();
+    private final LongAdder credentialRefreshes = new LongAdder();
+    private final LongAdder credentialRefreshFailures = new LongAdder();
+    private final LongAdder authFailures = new LongAdder();
+
+    void signed(long nanos) {
+        signingLatency.record(nanos);
+    }
+
+    void keyDerived() {
+        keyDerivations.increment();
+    }
+
+    void credentialsRefreshed() {
+        credentialRefreshes.increment();
+    }
+
+    void credentialRefreshFailed() {
+        credentialRefreshFailures.increment();
+    }
+
+    void authFailed() {
+        authFailures.increment();
+    }
+
+    /**
+     * @return how long signing each connect's URL took, cache lookups included
+     */
+    public LatencyHistogram getSigningLatency() {
+        return signingLatency;
+    }
+
+    public long getSignatures() {
+        return signingLatency.getCount();
+    }
+
+    public long getKeyDerivations() {
+        return keyDerivations.sum();
+    }
+
+    public long getCredentialRefreshes() {
+        return credentialRefreshes.sum();
+    }
+
+    public long getCredentialRefreshFailures() {
+        return credentialRefreshFailures.sum();
+    }
+
+    /**
+     * @return connects refused at the WebSocket handshake or by the broker as not authorized, each of which the SDK
+     * follows with a reconnect
+     */
+    public long getAuthFailures() {
+        return authFailures.sum();
+    }
+}
@@ -0,0 +1,115 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.core.AbstractAwsIotClient;
+import com.amazonaws.services.iot.client.core.AwsIotMessageCallback;
+import com.amazonaws.services.iot.client.core.AwsIotRuntimeException;
+import com.amazonaws.services.iot.client.core.AwsIotWebsocketConnection;
+import com.amazonaws.services.iot.client.mqtt.AwsIotMqttConnection;
+import com.amazonaws.services.iot.client.mqtt.AwsIotMqttConnectionListener;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.net.SocketFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The SDK's WebSocket connection to AWS IoT, signing each connect with the current credentials of a provider and a
+ * cached signing key, and reporting connects refused for their credentials.
+ */
+@Slf4j
+class SigningWebsocketConnection extends AwsIotWebsocketConnection {
+    // The SDK's own signer is never asked to sign, but insists on credentials.
+    private static final String UNUSED = "unused";
+    private static final String WEBSOCKET_HANDSHAKE_REJECTED = "WebSocket Response header";
+
+    private static final Method BUILD_CONNECT_OPTIONS = AwsIotMqttClientBuilder.sdkMethod(AwsIotMqttConnection.class, "buildMqttConnectOptions", AbstractAwsIotClient.class, SocketFactory.class);
+
+    private final WebSocketUrlSigner signer;
+    private final SigningMetrics metrics;
+    private volatile AwsCredentialsProvider credentialsProvider;
+
+    SigningWebsocketConnection(AbstractAwsIotClient client, AwsCredentialsProvider credentialsProvider, SigningMetrics metrics) throws AWSIotException {
+        super(client, UNUSED, UNUSED);
+        this.signer = new WebSocketUrlSigner(client.getClientEndpoint() + ":443", metrics);
+        this.metrics = metrics;
+        this.credentialsProvider = credentialsProvider;
+    }
+
+    /**
+     * Called on every connect and reconnect.
+     */
+    @Override
+    public Set<String> getServerUris() {
+        return Collections.singleton(signer.getSignedUrl(credentialsProvider.getCredentials(), Instant.now()));
+    }
+
+    /**
+     * Replaces the provider with these credentials, as the SDK's {@code updateCredentials} would.
+     */
+    @Override
+    public void updateCredentials(String awsAccessKeyId, String awsSecretAccessKey, String sessionToken) {
+        credentialsProvider = AwsCredentialsProvider.of(new AwsCredentials(awsAccessKeyId, awsSecretAccessKey, sessionToken, null));
+    }
+
+    /**
+     * Connects as the SDK does, but sees why a connect failed before handing the failure on to the SDK.
+     */
+    @Override
+    public void openConnection(AwsIotMessageCallback callback) throws AWSIotException {
+        final AwsIotMqttConnectionListener listener = new AwsIotMqttConnectionListener(client, true, callback);
+        try {
+            final MqttConnectOptions options = (MqttConnectOptions) BUILD_CONNECT_OPTIONS.invoke(this, client, getSocketFactory());
+            getMqttClient().connect(options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    listener.onSuccess(token);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable cause) {
+                    if (isAuthFailure(cause)) {
+                        log.debug("Connect of {} refused for its credentials", client.getClientId(), cause);
+                        metrics.authFailed();
+                        credentialsProvider.refresh();
+                    }
+                    listener.onFailure(token, cause);
+                }
+            });
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new AwsIotRuntimeException(e.getCause());
+        } catch (IllegalAccessException | MqttException e) {
+            throw new AWSIotException(e);
+        }
+    }
+
+    /**
+     * AWS IoT answers a badly signed or expired WebSocket request with an HTTP error, which Paho reports as a malformed
+     * handshake response; an MQTT broker answers bad credentials with a CONNACK.
+     */
+    static boolean isAuthFailure(Throwable cause) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof MqttException) {
+                final int reason = ((MqttException) t).getReasonCode();
+                if (reason == MqttException.REASON_CODE_FAILED_AUTHENTICATION || reason == MqttException.REASON_CODE_NOT_AUTHORIZED) {
+                    return true;
+                }
+            }
+            if (t instanceof IOException && t.getMessage() != null && t.getMessage().startsWith(WEBSOCKET_HANDSHAKE_REJECTED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,76 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * TCP options applied to every socket a {@link ProxyAwareSSLSocketFactory} creates. Options left {@code null} keep the
+ * platform default; options set on the socket itself take precedence.
+ */
+@Value
+@Builder(toBuilder = true)
+public class SocketOptions {
+    Boolean tcpNoDelay;
+    Boolean keepAlive;
+    Integer sendBufferSize;
+    Integer receiveBufferSize;
+    Integer trafficClass;
+    Integer connectionTimePreference;
+    Integer latencyPreference;
+    Integer bandwidthPreference;
+
+    /**
+     * Combines a profile with custom overrides.
+     *
+     * @param profile   the profile, {@code null} for none
+     * @param overrides the options that replace the profile's, {@code null} for none
+     * @return the combined options, {@code null} if both are {@code null}
+     */
+    public static SocketOptions of(SocketProfile profile, SocketOptions overrides) {
+        if (profile == null) {
+            return overrides;
+        }
+        return profile.getOptions().overriddenBy(overrides);
+    }
+
+    /**
+     * @param overrides the options to take precedence, {@code null} for none
+     * @return these options with every option set in the overrides replaced
+     */
+    public SocketOptions overriddenBy(SocketOptions overrides) {
+        if (overrides == null) {
+            return this;
+        }
+        return new SocketOptions(
+                overrides.tcpNoDelay == null ? tcpNoDelay : overrides.tcpNoDelay,
+                overrides.keepAlive == null ? keepAlive : overrides.keepAlive,
+                overrides.sendBufferSize == null ? sendBufferSize : overrides.sendBufferSize,
+                overrides.receiveBufferSize == null ? receiveBufferSize : overrides.receiveBufferSize,
+                overrides.trafficClass == null ? trafficClass : overrides.trafficClass,
+                overrides.connectionTimePreference == null ? connectionTimePreference : overrides.connectionTimePreference,
+                overrides.latencyPreference == null ? latencyPreference : overrides.latencyPreference,
+                overrides.bandwidthPreference == null ? bandwidthPreference : overrides.bandwidthPreference);
+    }
+
+    void applyTo(Socket socket) throws SocketException {
+        if (tcpNoDelay != null)
+            socket.setTcpNoDelay(tcpNoDelay);
+        if (keepAlive != null)
+            socket.setKeepAlive(keepAlive);
+        if (sendBufferSize != null)
+            socket.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize != null)
+            socket.setReceiveBufferSize(receiveBufferSize);
+        if (trafficClass != null)
+            socket.setTrafficClass(trafficClass);
+        if (connectionTimePreference != null || latencyPreference != null || bandwidthPreference != null)
+            socket.setPerformancePreferences(valueOrZero(connectionTimePreference), valueOrZero(latencyPreference), valueOrZero(bandwidthPreference));
+    }
+
+    private static int valueOrZero(Integer value) {
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,49 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import lombok.Getter;
+
+/**
+ * Named sets of {@link SocketOptions} for common kinds of clients.
+ */
+public enum SocketProfile {
+    /**
+     * Small messages that must go out at once, such as command topics: Nagle's algorithm off and low delay IP type of
+     * service.
+     */
+    LOW_LATENCY(SocketOptions.builder()
+            .tcpNoDelay(true)
+            .keepAlive(true)
+            .trafficClass(0x10)
+            .connectionTimePreference(0)
+            .latencyPreference(2)
+            .bandwidthPreference(1)
+            .build()),
+    /**
+     * Large payloads, such as bulk uploads: 1 MB socket buffers, which the kernel may cap.
+     */
+    BULK_THROUGHPUT(SocketOptions.builder()
+            .tcpNoDelay(false)
+            .keepAlive(true)
+            .sendBufferSize(1024 * 1024)
+            .receiveBufferSize(1024 * 1024)
+            .trafficClass(0x08)
+            .connectionTimePreference(0)
+            .latencyPreference(1)
+            .bandwidthPreference(2)
+            .build()),
+    /**
+     * Many clients in a small heap or on a small device: 8 KB socket buffers.
+     */
+    CONSTRAINED_MEMORY(SocketOptions.builder()
+            .keepAlive(true)
+            .sendBufferSize(8 * 1024)
+            .receiveBufferSize(8 * 1024)
+            .build());
+
+    @Getter
+    private final SocketOptions options;
+
+    SocketProfile(SocketOptions options) {
+        this.options = options;
+    }
+}
@@ -0,0 +1,116 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the plain sockets opened by a {@link ProxyAwareSSLSocketFactory}, so that file descriptor growth can be
+ * monitored. A socket counts as leaked when it was garbage collected without having been closed; its descriptor stayed
+ * open until then.
+ */
+public class SocketTracker {
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private final Set<Tracked> live = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @return the number of sockets opened so far
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of sockets closed so far
+     */
+    public long getClosed() {
+        return closed.get();
+    }
+
+    /**
+     * @return the number of sockets collected without being closed
+     */
+    public long getLeaked() {
+        expunge();
+        return leaked.get();
+    }
+
+    /**
+     * @return the number of sockets currently open, that is neither closed nor leaked
+     */
+    public long getOpen() {
+        expunge();
+        return live.size();
+    }
+
+    /**
+     * Creates a plain socket whose {@link Socket#close()} is counted.
+     */
+    Socket newSocket(Proxy proxy) {
+        return new TrackedSocket(proxy);
+    }
+
+    /**
+     * Starts tracking a socket created elsewhere, for example by a channel.
+     *
+     * @param socket the socket, or the object owning its descriptor
+     * @return call {@link Tracked#closed()} once the socket is closed
+     */
+    Tracked track(Object socket) {
+        expunge();
+        Tracked tracked = new Tracked(socket);
+        live.add(tracked);
+        opened.incrementAndGet();
+        return tracked;
+    }
+
+    private void expunge() {
+        for (Reference<?> ref = collected.poll(); ref != null; ref = collected.poll()) {
+            if (live.remove(ref)) {
+                leaked.incrementAndGet();
+            }
+        }
+    }
+
+    class Tracked extends PhantomReference<Object> {
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Tracked(Object referent) {
+            super(referent, collected);
+        }
+
+        void closed() {
+            if (done.compareAndSet(false, true) && live.remove(this)) {
+                closed.incrementAndGet();
+            }
+        }
+    }
+
+    private class TrackedSocket extends Socket {
+        private final Tracked tracked;
+
+        TrackedSocket(Proxy proxy) {
+            super(proxy);
+            tracked = track(this);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                tracked.closed();
+            }
+        }
+    }
+}
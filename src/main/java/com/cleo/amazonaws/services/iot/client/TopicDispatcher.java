@@ -0,0 +1,391 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTimeoutException;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+import com.amazonaws.services.iot.client.mqtt.AwsIotMqttConnection;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Routes a client's inbound messages to handlers through a {@link TopicTrie}, for clients with many overlapping
+ * wildcard subscriptions. The SDK checks every inbound message against every subscribed filter; the dispatcher finds
+ * the matching filters in time proportional to the topic's depth.
+ *
+ * <p>Handlers run on the given executor. Messages on the same topic are handled one at a time, in the order they
+ * arrived: topics are spread over a fixed number of lanes by hash, and each lane runs its messages in order. Messages on
+ * topics sharing a lane wait for one another, so there should be more lanes than the executor has threads.
+ *
+ * <pre>
+ * TopicDispatcher dispatcher = TopicDispatcher.builder()
+ *         .client(client)
+ *         .executor(Executors.newFixedThreadPool(8))
+ *         .build();
+ * TopicDispatcher.Subscription telemetry = dispatcher.subscribe("devices/+/telemetry/#", AWSIotQos.QOS1, this::record);
+ * ...
+ * telemetry.close();
+ * </pre>
+ *
+ * <p>Every filter is still subscribed through the client. The SDK subscribes its filters again when it reconnects on its
+ * own, but forgets them when the client is disconnected, so the dispatcher subscribes again, on the executor, the
+ * filters the client no longer holds each time it connects. The client's own dispatch is skipped while it has no
+ * subscriptions other than the dispatcher's. A filter should not be subscribed both through the dispatcher and directly
+ * on the client.
+ */
+@Slf4j
+public class TopicDispatcher implements Closeable {
+    public static final int DEFAULT_LANES = 64;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    // How many messages a lane handles before giving its thread back to the executor.
+    private static final int LANE_BATCH = 64;
+
+    private final AWSIotMqttClient client;
+    private final MqttAsyncClient mqttClient;
+    private final MqttCallback clientCallback;
+    private final Executor executor;
+    private final long timeoutMillis;
+    private final Lane[] lanes;
+
+    private final TopicTrie<Subscription> trie = new TopicTrie<>();
+    private final Map<String, FilterTopic> filters = new ConcurrentHashMap<>();
+    // Counts changes to the filters, so that the client's subscriptions are only scanned when something changed.
+    private final AtomicLong filterChanges = new AtomicLong();
+    private volatile boolean closed;
+
+    // Only used on Paho's callback thread.
+    private int checkedSubscriptions = -1;
+    private long checkedFilterChanges;
+    private boolean directSubscriptions;
+
+    /**
+     * @param client        a client from {@link AwsIotMqttClientBuilder}, connected or not
+     * @param executor      runs the handlers, by default the client's own callback threads
+     * @param lanes         how many topics may be handled at once, {@link #DEFAULT_LANES} if {@code null}
+     * @param timeoutMillis how long subscribes and unsubscribes may take, {@link #DEFAULT_TIMEOUT_MILLIS} if
+     *                      {@code null}
+     */
+    @Builder
+    private TopicDispatcher(AWSIotMqttClient client, Executor executor, Integer lanes, Long timeoutMillis) {
+        if (client == null) {
+            throw new IllegalArgumentException("A client is required.");
+        }
+        final int laneCount = lanes == null ? DEFAULT_LANES : lanes;
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("At least one lane is needed, not " + laneCount);
+        }
+        this.client = client;
+        this.executor = executor == null ? client::scheduleTask : executor;
+        this.timeoutMillis = timeoutMillis == null ? DEFAULT_TIMEOUT_MILLIS : timeoutMillis;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes[i] = new Lane();
+        }
+
+        // The SDK sets Paho's callback once, when it creates the connection, so it can be taken over here.
+        final AwsIotMqttConnection connection = (AwsIotMqttConnection) AwsIotMqttClientBuilder.connectionOf(client);
+        this.mqttClient = connection.getMqttClient();
+        this.clientCallback = connection.getClientListener();
+        this.mqttClient.setCallback(new Router());
+    }
+
+    /**
+     * Adds a handler for the messages matching the topic filter. The first handler for a filter, or one asking for a
+     * higher QoS, subscribes the filter on the client; changes are made one at a time.
+     *
+     * @throws IllegalArgumentException if the filter is not a valid MQTT topic filter
+     */
+    public Subscription subscribe(String topicFilter, AWSIotQos qos, Consumer<AWSIotMessage> handler)
+            throws AWSIotException, AWSIotTimeoutException {
+        TopicTrie.levels(topicFilter);
+        final Subscription subscription = new Subscription(topicFilter, handler);
+        synchronized (filters) {
+            if (closed) {
+                throw new IllegalStateException("The dispatcher is closed.");
+            }
+            // Routed before the filter is subscribed, so that no message arriving right after the SUBACK is missed.
+            trie.add(topicFilter, subscription);
+            final FilterTopic existing = filters.get(topicFilter);
+            try {
+                if (existing == null) {
+                    final FilterTopic topic = new FilterTopic(topicFilter, qos);
+                    client.subscribe(topic, timeoutMillis, true);
+                    filters.put(topicFilter, topic);
+                    filterChanges.incrementAndGet();
+                } else if (qos.getValue() > existing.getQos().getValue()) {
+                    final AWSIotQos previous = existing.getQos();
+                    existing.setQos(qos);
+                    try {
+                        client.subscribe(existing, timeoutMillis, true);
+                    } catch (AWSIotException | AWSIotTimeoutException | RuntimeException e) {
+                        existing.setQos(previous);
+                        throw e;
+                    }
+                }
+            } catch (AWSIotException | AWSIotTimeoutException | RuntimeException e) {
+                trie.remove(topicFilter, subscription);
+                throw e;
+            }
+            filters.get(topicFilter).handlers++;
+        }
+        return subscription;
+    }
+
+    /**
+     * @return the number of topic filters subscribed on the client
+     */
+    public int getFilterCount() {
+        return filters.size();
+    }
+
+    /**
+     * Unsubscribes every filter and hands inbound messages back to the client. Messages already routed are still
+     * handled.
+     */
+    @Override
+    public void close() {
+        final List<String> topicFilters;
+        synchronized (filters) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            mqttClient.setCallback(clientCallback);
+            topicFilters = new ArrayList<>(filters.keySet());
+            filters.clear();
+            filterChanges.incrementAndGet();
+        }
+        for (String topicFilter : topicFilters) {
+            try {
+                client.unsubscribe(topicFilter, timeoutMillis);
+            } catch (AWSIotException | AWSIotTimeoutException e) {
+                log.warn("Could not unsubscribe {}", topicFilter, e);
+            }
+        }
+    }
+
+    private void unsubscribe(Subscription subscription) throws AWSIotException, AWSIotTimeoutException {
+        synchronized (filters) {
+            if (!trie.remove(subscription.topicFilter, subscription)) {
+                return;
+            }
+            final FilterTopic topic = filters.get(subscription.topicFilter);
+            if (topic == null || --topic.handlers > 0) {
+                return;
+            }
+            filters.remove(subscription.topicFilter);
+            filterChanges.incrementAndGet();
+            client.unsubscribe(subscription.topicFilter, timeoutMillis);
+        }
+    }
+
+    /**
+     * Subscribes the filters the client no longer holds, without waiting for the SUBACKs.
+     */
+    private void resubscribe() {
+        synchronized (filters) {
+            if (closed) {
+                return;
+            }
+            for (FilterTopic topic : filters.values()) {
+                if (client.getSubscriptions().get(topic.getTopic()) != topic) {
+                    try {
+                        client.subscribe(topic);
+                    } catch (AWSIotException e) {
+                        log.warn("Could not subscribe {} again", topic.getTopic(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the client holds subscriptions that are not the dispatcher's. The client's subscriptions are only scanned
+     * again when their number or the dispatcher's filters changed.
+     */
+    private boolean hasDirectSubscriptions() {
+        final Map<String, AWSIotTopic> subscriptions = client.getSubscriptions();
+        final int size = subscriptions.size();
+        final long changes = filterChanges.get();
+        if (size != checkedSubscriptions || changes != checkedFilterChanges) {
+            checkedSubscriptions = size;
+            checkedFilterChanges = changes;
+            directSubscriptions = false;
+            for (AWSIotTopic topic : subscriptions.values()) {
+                if (filters.get(topic.getTopic()) != topic) {
+                    directSubscriptions = true;
+                    break;
+                }
+            }
+        }
+        return directSubscriptions;
+    }
+
+    private Lane laneFor(String topic) {
+        return lanes[Math.floorMod(topic.hashCode(), lanes.length)];
+    }
+
+    /**
+     * One handler for one topic filter; closing it removes the handler.
+     */
+    public class Subscription implements Closeable {
+        @Getter
+        private final String topicFilter;
+        private final Consumer<AWSIotMessage> handler;
+
+        private Subscription(String topicFilter, Consumer<AWSIotMessage> handler) {
+            this.topicFilter = topicFilter;
+            this.handler = handler;
+        }
+
+        /**
+         * Removes the handler; the filter is unsubscribed on the client once it has no handlers left.
+         */
+        @Override
+        public void close() {
+            try {
+                unsubscribe(this);
+            } catch (AWSIotException | AWSIotTimeoutException e) {
+                log.warn("Could not unsubscribe {}", topicFilter, e);
+            }
+        }
+    }
+
+    /**
+     * A filter as the SDK sees it. Its messages are routed by the dispatcher; it ignores those the SDK dispatches to it.
+     */
+    private static class FilterTopic extends AWSIotTopic {
+        // Guarded by the dispatcher's filters.
+        private int handlers;
+
+        FilterTopic(String topicFilter, AWSIotQos qos) {
+            super(topicFilter, qos);
+        }
+
+        @Override
+        public void onMessage(AWSIotMessage message) {
+        }
+
+        @Override
+        public void onFailure() {
+            log.warn("Could not subscribe {}: {}", getTopic(), getErrorMessage());
+        }
+    }
+
+    /**
+     * Takes Paho's callbacks in place of the SDK's listener, routing messages through the trie and passing everything
+     * else on.
+     */
+    private class Router implements MqttCallbackExtended {
+
+        @Override
+        public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
+            final List<Subscription> matched = trie.match(topic);
+            if (!matched.isEmpty()) {
+                final AWSIotMessage message = new InboundMessage(topic, AWSIotQos.valueOf(mqttMessage.getQos()), mqttMessage.getPayload());
+                laneFor(topic).execute(() -> {
+                    for (Subscription subscription : matched) {
+                        try {
+                            subscription.handler.accept(message);
+                        } catch (RuntimeException e) {
+                            log.warn("Handler for {} failed on a message for {}", subscription.topicFilter, topic, e);
+                        }
+                    }
+                });
+            }
+            if (hasDirectSubscriptions()) {
+                // Someone subscribed on the client directly; let the SDK find their topics.
+                clientCallback.messageArrived(topic, mqttMessage);
+            }
+        }
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            // Subscribing waits on this thread's callbacks, so it cannot be done here.
+            try {
+                executor.execute(TopicDispatcher.this::resubscribe);
+            } catch (RejectedExecutionException e) {
+                log.warn("Executor rejected subscribing the filters again", e);
+            }
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            clientCallback.connectionLost(cause);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            clientCallback.deliveryComplete(token);
+        }
+    }
+
+    /**
+     * Takes Paho's payload array as is; nothing else holds it once the message has arrived.
+     */
+    private static class InboundMessage extends AWSIotMessage {
+
+        InboundMessage(String topic, AWSIotQos qos, byte[] payload) {
+            super(topic, qos);
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Runs its tasks one at a time, in order, on the executor, holding at most one executor thread.
+     */
+    private class Lane implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    log.warn("Executor rejected {} messages; dropping them", tasks.size(), e);
+                    tasks.clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            for (int i = 0; i < LANE_BATCH && (task = tasks.poll()) != null; i++) {
+                task.run();
+            }
+            scheduled.set(false);
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MQTT topic filters, one trie node per topic level, with the values registered for each filter. A topic is matched by
+ * walking its levels, so the cost grows with the topic's depth and the number of wildcard branches taken rather than
+ * with the number of filters.
+ *
+ * <p>Matching takes no locks. Changes are serialized; each node's values are a copy-on-write array and its children a
+ * concurrent map, so a match running alongside a change sees every filter either before or after it.
+ */
+class TopicTrie<T> {
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+    private static final Object[] NONE = new Object[0];
+
+    private final Node root = new Node(null, null);
+
+    /**
+     * @throws IllegalArgumentException if the filter is not a valid MQTT topic filter
+     */
+    synchronized void add(String topicFilter, T value) {
+        Node node = root;
+        for (String level : levels(topicFilter)) {
+            final Node parent = node;
+            node = parent.children.computeIfAbsent(level, l -> new Node(parent, l));
+        }
+        final Object[] values = node.values;
+        final Object[] copy = new Object[values.length + 1];
+        System.arraycopy(values, 0, copy, 0, values.length);
+        copy[values.length] = value;
+        node.values = copy;
+    }
+
+    /**
+     * Removes one registration of the value for the filter, and the filter's nodes once nothing is left under them.
+     *
+     * @return whether the value was registered for the filter
+     */
+    synchronized boolean remove(String topicFilter, T value) {
+        Node node = root;
+        for (String level : levels(topicFilter)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return false;
+            }
+        }
+        final Object[] values = node.values;
+        int index = -1;
+        for (int i = 0; i < values.length && index < 0; i++) {
+            if (values[i].equals(value)) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            return false;
+        }
+        final Object[] copy = values.length == 1 ? NONE : new Object[values.length - 1];
+        System.arraycopy(values, 0, copy, 0, index);
+        System.arraycopy(values, index + 1, copy, index, values.length - index - 1);
+        node.values = copy;
+
+        while (node.parent != null && node.values.length == 0 && node.children.isEmpty()) {
+            node.parent.children.remove(node.level, node);
+            node = node.parent;
+        }
+        return true;
+    }
+
+    /**
+     * @return the values of every filter matching the topic, in no particular order; a value registered for several
+     * matching filters is returned once for each
+     */
+    @SuppressWarnings("unchecked")
+    List<T> match(String topic) {
+        final List<Object> matched = new ArrayList<>(0);
+        // Wildcards in the first level do not match topics starting with '$', such as $aws/things/...
+        match(root, topic, 0, !topic.startsWith("$"), matched);
+        return matched.isEmpty() ? Collections.emptyList() : (List<T>) matched;
+    }
+
+    private static void match(Node node, String topic, int start, boolean wildcards, List<Object> matched) {
+        if (wildcards) {
+            // '#' also matches its parent level: a/# matches a.
+            final Node multiLevel = node.children.get(MULTI_LEVEL);
+            if (multiLevel != null) {
+                Collections.addAll(matched, multiLevel.values);
+            }
+        }
+        if (start > topic.length()) {
+            Collections.addAll(matched, node.values);
+            return;
+        }
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        final Node exact = node.children.get(topic.substring(start, end));
+        if (exact != null) {
+            match(exact, topic, end + 1, true, matched);
+        }
+        if (wildcards) {
+            final Node singleLevel = node.children.get(SINGLE_LEVEL);
+            if (singleLevel != null) {
+                match(singleLevel, topic, end + 1, true, matched);
+            }
+        }
+    }
+
+    static String[] levels(String topicFilter) {
+        if (topicFilter == null || topicFilter.isEmpty()) {
+            throw new IllegalArgumentException("A topic filter is required.");
+        }
+        final String[] levels = topicFilter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            final String level = levels[i];
+            final boolean wildcard = level.contains(SINGLE_LEVEL) || level.contains(MULTI_LEVEL);
+            if (wildcard && !(level.equals(SINGLE_LEVEL) || level.equals(MULTI_LEVEL) && i == levels.length - 1)) {
+                throw new IllegalArgumentException("Invalid topic filter " + topicFilter);
+            }
+        }
+        return levels;
+    }
+
+    private static final class Node {
+        private final Node parent;
+        private final String level;
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private volatile Object[] values = NONE;
+
+        Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+}
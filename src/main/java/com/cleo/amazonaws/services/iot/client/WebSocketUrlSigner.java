@@ -0,0 +1,150 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.core.AwsIotRuntimeException;
+import com.amazonaws.services.iot.client.util.AwsIotWebSocketUrlSigner;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import lombok.Value;
+
+/**
+ * Presigns AWS IoT WebSocket URLs with SigV4, as the SDK's {@link AwsIotWebSocketUrlSigner} does, but with the signing
+ * key derived once per secret key, date, region and service rather than on every connect. Keys are kept in a bounded
+ * LRU cache shared by every signer, so clients with the same credentials derive each day's key once between them. The
+ * cache is keyed by the access key ID and a digest of the secret, so it holds no secrets but the derived keys.
+ */
+class WebSocketUrlSigner {
+    private static final String SERVICE = "iotdata";
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final String EMPTY_PAYLOAD_HASH = hex(sha256(""));
+    static final int MAX_CACHED_KEYS = 64;
+    // Guarded by itself.
+    private static final Map<KeyScope, byte[]> SIGNING_KEYS = new LinkedHashMap<KeyScope, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<KeyScope, byte[]> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+
+    private static final Field SDK_SIGNER_REGION = AwsIotMqttClientBuilder.sdkField(AwsIotWebSocketUrlSigner.class, "regionName", String.class);
+
+    private final String endpoint;
+    private final String region;
+    private final SigningMetrics metrics;
+
+    /**
+     * @param endpoint the AWS IoT endpoint, with its port, as signed by the SDK
+     */
+    WebSocketUrlSigner(String endpoint, SigningMetrics metrics) {
+        this.endpoint = endpoint;
+        this.metrics = metrics;
+        try {
+            // The SDK's signer knows how to find the region in every form of AWS IoT endpoint.
+            this.region = (String) SDK_SIGNER_REGION.get(new AwsIotWebSocketUrlSigner(endpoint));
+        } catch (IllegalAccessException e) {
+            throw new AwsIotRuntimeException(e);
+        }
+    }
+
+    String getSignedUrl(AwsCredentials credentials, Instant now) {
+        final long start = System.nanoTime();
+        final String date = DATE.format(now);
+        final String amzDate = TIME.format(now);
+        final String credentialScope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+        final String query = "X-Amz-Algorithm=" + ALGORITHM
+                + "&X-Amz-Credential=" + urlEncode(credentials.getAccessKeyId() + "/" + credentialScope)
+                + "&X-Amz-Date=" + amzDate
+                + "&X-Amz-SignedHeaders=host";
+        final String canonicalRequest = "GET\n/mqtt\n" + query + "\nhost:" + endpoint + "\n\nhost\n" + EMPTY_PAYLOAD_HASH;
+        final String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + credentialScope + "\n" + hex(sha256(canonicalRequest));
+        final String signature = hex(hmac(signingKey(credentials, date), stringToSign));
+
+        final StringBuilder url = new StringBuilder("wss://").append(endpoint).append("/mqtt?").append(query)
+                .append("&X-Amz-Signature=").append(signature);
+        if (credentials.getSessionToken() != null) {
+            // AWS IoT wants the token left out of the signature.
+            url.append("&X-Amz-Security-Token=").append(urlEncode(credentials.getSessionToken()));
+        }
+        metrics.signed(System.nanoTime() - start);
+        return url.toString();
+    }
+
+    private byte[] signingKey(AwsCredentials credentials, String date) {
+        final String secretAccessKey = credentials.getSecretAccessKey().trim();
+        final KeyScope scope = new KeyScope(credentials.getAccessKeyId(), hex(sha256(secretAccessKey)), date, region, SERVICE);
+        synchronized (SIGNING_KEYS) {
+            final byte[] cached = SIGNING_KEYS.get(scope);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final byte[] dateKey = hmac(("AWS4" + secretAccessKey).getBytes(StandardCharsets.UTF_8), date);
+        final byte[] key = hmac(hmac(hmac(dateKey, region), SERVICE), "aws4_request");
+        metrics.keyDerived();
+        synchronized (SIGNING_KEYS) {
+            SIGNING_KEYS.put(scope, key);
+        }
+        return key;
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new AwsIotRuntimeException(e);
+        }
+    }
+
+    private static byte[] sha256(String data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new AwsIotRuntimeException(e);
+        }
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AwsIotRuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    @Value
+    private static class KeyScope {
+        String accessKeyId;
+        String secretDigest;
+        String date;
+        String region;
+        String service;
+    }
+}
@@ -0,0 +1,80 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+
+import lombok.EqualsAndHashCode;
+
+/**
+ * A device certificate chain and its private key, read from PEM files, for MQTT over mutual TLS.
+ *
+ * <p>Identities are cached by {@link KeyMaterialCache}, so every client built for the same device shares one parsed key
+ * and, through {@link SharedSSLContext#forIdentity(Path, Path)}, one {@link javax.net.ssl.SSLContext} and its session
+ * cache. Identities holding the same certificates and key are equal.
+ */
+@EqualsAndHashCode
+public final class X509Identity {
+    // The in-memory key store needs a password, but never leaves this class.
+    private static final char[] KEY_PASSWORD = new char[0];
+
+    private final X509Certificate[] certificateChain;
+    private final PrivateKey privateKey;
+
+    X509Identity(X509Certificate[] certificateChain, PrivateKey privateKey) {
+        this.certificateChain = certificateChain;
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * Reads an identity, or returns the current one of the same files from the shared {@link KeyMaterialCache}.
+     *
+     * @param certificate the PEM file of the device certificate, optionally followed by its intermediates
+     * @param privateKey  the PEM file of the private key, PKCS#1 or PKCS#8 and not encrypted
+     * @return the identity
+     * @throws IOException              if a file cannot be read
+     * @throws GeneralSecurityException if a file holds no certificate or no valid key
+     */
+    public static X509Identity load(Path certificate, Path privateKey) throws IOException, GeneralSecurityException {
+        return KeyMaterialCache.getShared().getIdentity(certificate, privateKey);
+    }
+
+    /**
+     * @return the device certificate, then its intermediates
+     */
+    public X509Certificate[] getCertificateChain() {
+        return certificateChain.clone();
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    /**
+     * @return key managers that present this identity to every server
+     */
+    public KeyManager[] keyManagers() throws GeneralSecurityException {
+        try {
+            final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            keyStore.setKeyEntry("identity", privateKey, KEY_PASSWORD, certificateChain);
+            final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, KEY_PASSWORD);
+            return keyManagerFactory.getKeyManagers();
+        } catch (IOException e) {
+            // An empty in-memory key store has nothing to read.
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "X509Identity(" + certificateChain[0].getSubjectX500Principal() + ")";
+    }
+}
@@ -13,9 +13,11 @@ import com.github.markusbernhardt.proxy.ProxySearch;
 import org.junit.Test;
 
 import java.net.ProxySelector;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -100,10 +102,13 @@ public class AwsIotMqttClientBuilderTest {
             }
         }, true);
 
-        for (int i = 1; i <= numMessages; i++) {
-            String publishTopic = "some/topic/message-" + i;
-            client.publish(new AWSIotMessage(publishTopic, AWSIotQos.QOS1, "This is message number: " + i));
-            Thread.sleep(100);
+        try (PublishPipeline pipeline = PublishPipeline.builder().client(client).build()) {
+            final List<CompletableFuture<Void>> published = new ArrayList<>();
+            for (int i = 1; i <= numMessages; i++) {
+                String publishTopic = "some/topic/message-" + i;
+                published.add(pipeline.publish(publishTopic, AWSIotQos.QOS1, ("This is message number: " + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            CompletableFuture.allOf(published.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
         }
         latch.await(10, TimeUnit.SECONDS);
         client.unsubscribe(subscribeTopic);
@@ -0,0 +1,68 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.mqtt.AwsIotMqttConnection;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class AwsIotMqttClientBulkFactoryTest {
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+    private final AtomicInteger batches = new AtomicInteger();
+    private final Executor executor = task -> {
+        batches.incrementAndGet();
+        pool.execute(task);
+    };
+
+    @After
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void parallelClientsKeepOrderAndShareOneSocketFactory() {
+        final AwsIotMqttClientBulkFactory factory = newFactory();
+
+        final List<AWSIotMqttClient> clients = factory.newClients(IntStream.range(0, 600).mapToObj(i -> "device-" + i), executor);
+
+        assertEquals(3, batches.get());
+        assertEquals(600, clients.size());
+        for (int i = 0; i < clients.size(); i++) {
+            final AWSIotMqttClient client = clients.get(i);
+            assertEquals("device-" + i, client.getClientId());
+            assertSame(factory.getSocketFactory(), ((AwsIotMqttConnection) AwsIotMqttClientBuilder.connectionOf(client)).getSocketFactory());
+        }
+    }
+
+    @Test
+    public void aFailedBatchFailsTheWholeCall() {
+        // Paho refuses a null client ID, in the second batch.
+        final Stream<String> clientIds = IntStream.range(0, 300).mapToObj(i -> i == 280 ? null : "device-" + i);
+        try {
+            newFactory().newClients(clientIds, executor);
+            fail("Built a client without a client ID");
+        } catch (IllegalArgumentException e) {
+            // Rethrown as the batch threw it, not wrapped in a CompletionException.
+            assertEquals("Null clientId", e.getMessage());
+        }
+        assertEquals(2, batches.get());
+    }
+
+    private static AwsIotMqttClientBulkFactory newFactory() {
+        return AwsIotMqttClientBulkFactory.builder()
+                .clientEndpoint("ssl://broker.example.com:8883")
+                .build();
+    }
+}
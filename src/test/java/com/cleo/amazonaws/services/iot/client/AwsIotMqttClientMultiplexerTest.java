@@ -0,0 +1,153 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.core.AwsIotConnectionType;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AwsIotMqttClientMultiplexerTest {
+
+    @Test
+    public void sharedSubscriptionsAreSubscribedOnceAndRoutedToEachLogicalClient() throws Exception {
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AwsIotMqttClientMultiplexer multiplexer = broker.newMultiplexer("multiplexer", 2);
+            multiplexer.connect();
+
+            final Map<String, AtomicInteger> received = new ConcurrentHashMap<>();
+            final CountDownLatch broadcast = new CountDownLatch(10);
+            final CountDownLatch direct = new CountDownLatch(1);
+            final List<AwsIotMqttClientMultiplexer.LogicalClient> clients = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                final String name = "device-" + i;
+                final AwsIotMqttClientMultiplexer.LogicalClient client = multiplexer.newLogicalClient(name);
+                received.put(name, new AtomicInteger());
+                client.subscribe("fleet/+/broadcast", AWSIotQos.QOS1, message -> {
+                    received.get(name).incrementAndGet();
+                    broadcast.countDown();
+                });
+                client.subscribe("devices/" + name, AWSIotQos.QOS1, message -> {
+                    received.get(name).incrementAndGet();
+                    direct.countDown();
+                });
+                clients.add(client);
+            }
+            assertEquals(2, broker.getConnects());
+            assertEquals(11, broker.getSubscribes());
+            assertEquals(11, multiplexer.getSubscriptionCount());
+
+            clients.get(0).publish("fleet/all/broadcast", AWSIotQos.QOS1, "hello".getBytes());
+            clients.get(1).publish("devices/device-3", AWSIotQos.QOS1, "you".getBytes());
+            assertTrue(broadcast.await(10, TimeUnit.SECONDS));
+            assertTrue(direct.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i == 3 ? 2 : 1, received.get("device-" + i).get());
+            }
+            multiplexer.disconnect();
+        }
+    }
+
+    @Test
+    public void sharedSubscriptionsSurviveDisconnectAndConnect() throws Exception {
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AwsIotMqttClientMultiplexer multiplexer = broker.newMultiplexer("multiplexer", 2);
+            multiplexer.connect();
+            final AwsIotMqttClientMultiplexer.LogicalClient client = multiplexer.newLogicalClient("device");
+            final CountDownLatch received = new CountDownLatch(2);
+            client.subscribe("fleet/+/broadcast", AWSIotQos.QOS1, message -> received.countDown());
+            client.subscribe("devices/device", AWSIotQos.QOS1, message -> received.countDown());
+
+            multiplexer.disconnect();
+            multiplexer.connect();
+
+            assertEquals(4, broker.getConnects());
+            assertEquals(4, broker.getSubscribes());
+            client.publish("fleet/all/broadcast", AWSIotQos.QOS1, "hello".getBytes());
+            client.publish("devices/device", AWSIotQos.QOS1, "you".getBytes());
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+            multiplexer.disconnect();
+        }
+    }
+
+    @Test
+    public void sharedSubscriptionIsUnsubscribedWithItsLastLogicalClient() throws Exception {
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AwsIotMqttClientMultiplexer multiplexer = broker.newMultiplexer("multiplexer", 1);
+            multiplexer.connect();
+
+            final AwsIotMqttClientMultiplexer.LogicalClient first = multiplexer.newLogicalClient("first");
+            final AwsIotMqttClientMultiplexer.LogicalClient second = multiplexer.newLogicalClient("second");
+            final AtomicInteger secondReceived = new AtomicInteger();
+            first.subscribe("shared/topic", AWSIotQos.QOS1, message -> {
+            });
+            second.subscribe("shared/topic", AWSIotQos.QOS1, (AWSIotMessage message) -> secondReceived.incrementAndGet());
+            assertEquals(1, broker.getSubscribes());
+
+            first.close();
+            assertEquals(1, multiplexer.getSubscriptionCount());
+            assertEquals(1, multiplexer.getLogicalClientCount());
+
+            second.unsubscribe("shared/topic");
+            assertEquals(0, multiplexer.getSubscriptionCount());
+
+            // Subscribing again after the last unsubscribe subscribes on the connection again.
+            final CountDownLatch again = new CountDownLatch(1);
+            second.subscribe("shared/topic", AWSIotQos.QOS1, message -> again.countDown());
+            assertEquals(2, broker.getSubscribes());
+            second.publish("shared/topic", AWSIotQos.QOS1, new byte[0]);
+            assertTrue(again.await(10, TimeUnit.SECONDS));
+            assertEquals(0, secondReceived.get());
+            multiplexer.disconnect();
+        }
+    }
+
+    @Test
+    public void connectionsTakeACredentialsProviderOrACertificate() throws Exception {
+        final String endpoint = "example.iot.us-east-1.amazonaws.com";
+        final AwsIotMqttClientMultiplexer signed = AwsIotMqttClientMultiplexer.builder()
+                .clientEndpoint(endpoint)
+                .clientIdPrefix("signed")
+                .credentialsProvider(AwsCredentialsProvider.of(new AwsCredentials("AKIDEXAMPLE", "secret", null, null)))
+                .signingMetrics(new SigningMetrics())
+                .build();
+        for (AWSIotMqttClient client : signed.getConnections()) {
+            assertEquals(AwsIotConnectionType.MQTT_OVER_WEBSOCKET, client.getConnectionType());
+        }
+
+        final Path directory = Files.createTempDirectory("identity");
+        try {
+            LocalTlsServer.writeIdentity(directory);
+            final AwsIotMqttClientMultiplexer mutualTls = AwsIotMqttClientMultiplexer.builder()
+                    .clientEndpoint(endpoint)
+                    .clientIdPrefix("mutual-tls")
+                    .certificate(directory.resolve("localhost.pem.crt"))
+                    .privateKey(directory.resolve("localhost.pem.key"))
+                    .build();
+            for (AWSIotMqttClient client : mutualTls.getConnections()) {
+                assertEquals(AwsIotConnectionType.MQTT_OVER_TLS, client.getConnectionType());
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.core.AwsIotConnectionType;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientEndpointTest {
+
+    @Test
+    public void schemeSelectsTransport() {
+        assertTransport("ssl://broker.example.com:8883", AwsIotConnectionType.MQTT_OVER_TLS, true);
+        assertTransport("tcp://broker.example.com:1883", AwsIotConnectionType.MQTT_OVER_TLS, false);
+        assertTransport("wss://broker.example.com:443", AwsIotConnectionType.MQTT_OVER_WEBSOCKET, true);
+        assertTransport("ws://broker.example.com:80", AwsIotConnectionType.MQTT_OVER_WEBSOCKET, false);
+        assertTransport("a1b2c3d4e5f6g7.iot.us-west-2.amazonaws.com", AwsIotConnectionType.MQTT_OVER_WEBSOCKET, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSchemeIsRejected() {
+        new ClientEndpoint("http://broker.example.com");
+    }
+
+    private static void assertTransport(String uri, AwsIotConnectionType connectionType, boolean secure) {
+        final ClientEndpoint endpoint = new ClientEndpoint(uri);
+        assertEquals(uri, connectionType, endpoint.getConnectionType());
+        assertEquals(uri, secure, endpoint.isSecure());
+        if (uri.contains("://")) {
+            assertFalse(endpoint.isAwsIotEndpoint());
+        } else {
+            assertTrue(endpoint.isAwsIotEndpoint());
+        }
+    }
+}
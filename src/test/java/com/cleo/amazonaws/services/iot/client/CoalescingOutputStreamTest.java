@@ -0,0 +1,133 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CoalescingOutputStreamTest {
+
+    @Test
+    public void packetsAreSentWholeAtTheirBoundary() throws IOException {
+        final RecordingOutputStream sink = new RecordingOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(sink, 16384, ProxyAwareSSLSocketFactory.FlushPolicy.ON_PACKET_BOUNDARY);
+        final byte[] publish = publish(300);
+        final byte[] ping = {(byte) 0xC0, 0x00};
+        connect(out, sink);
+
+        // Header, then the rest in small pieces with a flush in the middle, as a streaming writer might do.
+        out.write(publish, 0, 3);
+        out.flush();
+        for (int i = 3; i < publish.length; i += 100) {
+            out.write(publish, i, Math.min(100, publish.length - i));
+        }
+        out.write(ping);
+
+        assertEquals(2, sink.writes.size());
+        assertArrayEquals(publish, sink.writes.get(0));
+        assertArrayEquals(ping, sink.writes.get(1));
+    }
+
+    @Test
+    public void onFlushSendsWhatWasBufferedInOneWrite() throws IOException {
+        final RecordingOutputStream sink = new RecordingOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(sink, 1024, ProxyAwareSSLSocketFactory.FlushPolicy.ON_FLUSH);
+        final byte[] publish = publish(2500);
+
+        for (int i = 0; i < publish.length; i += 10) {
+            out.write(publish, i, Math.min(10, publish.length - i));
+        }
+        assertEquals(2, sink.writes.size());
+        out.flush();
+
+        assertEquals(3, sink.writes.size());
+        assertEquals(1024, sink.writes.get(0).length);
+        final ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] write : sink.writes) {
+            all.write(write);
+        }
+        assertArrayEquals(publish, all.toByteArray());
+    }
+
+    @Test
+    public void largePayloadsBypassTheBuffer() throws IOException {
+        final RecordingOutputStream sink = new RecordingOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(sink, 1024, ProxyAwareSSLSocketFactory.FlushPolicy.ON_PACKET_BOUNDARY);
+        final byte[] publish = publish(5000);
+        connect(out, sink);
+
+        // Header and topic, then the payload in one write, as Paho writes a PUBLISH.
+        out.write(publish, 0, 8);
+        out.write(publish, 8, publish.length - 8);
+
+        // The payload tops up the first buffer, three whole buffers go straight through, the rest ends the packet.
+        assertEquals(3, sink.writes.size());
+        assertEquals(1024, sink.writes.get(0).length);
+        assertEquals(3072, sink.writes.get(1).length);
+        final ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] write : sink.writes) {
+            all.write(write);
+        }
+        assertArrayEquals(publish, all.toByteArray());
+    }
+
+    @Test
+    public void webSocketStreamsAreSentOnFlush() throws IOException {
+        final RecordingOutputStream sink = new RecordingOutputStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream(sink, 16384, ProxyAwareSSLSocketFactory.FlushPolicy.ON_PACKET_BOUNDARY);
+        final byte[] upgrade = ("GET /mqtt HTTP/1.1\r\nHost: example.com\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Protocol: mqtt\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        // Read as MQTT framing, the request would be cut into bogus packets and its tail held back past the flush.
+        out.write(upgrade);
+        assertEquals(0, sink.writes.size());
+        out.flush();
+
+        assertEquals(1, sink.writes.size());
+        assertArrayEquals(upgrade, sink.writes.get(0));
+    }
+
+    // Starts the stream as an MQTT client does, with a CONNECT.
+    private static void connect(CoalescingOutputStream out, RecordingOutputStream sink) throws IOException {
+        final byte[] connect = {0x10, 0x0C, 0x00, 0x04, 'M', 'Q', 'T', 'T', 0x04, 0x02, 0x00, 0x3C, 0x00, 0x00};
+        out.write(connect);
+        assertEquals(1, sink.writes.size());
+        assertArrayEquals(connect, sink.writes.get(0));
+        sink.writes.clear();
+    }
+
+    // A QoS 0 PUBLISH with a two byte remaining length.
+    private static byte[] publish(int payloadSize) {
+        final byte[] topic = {0x00, 0x03, 't', '/', 'x'};
+        final int remaining = topic.length + payloadSize;
+        final byte[] packet = new byte[3 + remaining];
+        packet[0] = 0x30;
+        packet[1] = (byte) (remaining & 0x7F | 0x80);
+        packet[2] = (byte) (remaining >> 7);
+        System.arraycopy(topic, 0, packet, 3, topic.length);
+        Arrays.fill(packet, 3 + topic.length, packet.length, (byte) 42);
+        return packet;
+    }
+
+    private static class RecordingOutputStream extends OutputStream {
+        private final List<byte[]> writes = new ArrayList<>();
+
+        @Override
+        public void write(int b) {
+            writes.add(new byte[]{(byte) b});
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes.add(Arrays.copyOfRange(b, off, off + len));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotConnectionStatus;
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectOrchestratorTest {
+
+    @Test
+    public void admissionIsRateLimitedAndInFlightIsCapped() throws Exception {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final int numClients = 20;
+
+        final long start = System.nanoTime();
+        try (ConnectOrchestrator orchestrator = ConnectOrchestrator.builder()
+                .connectsPerSecond(50)
+                .maxInFlight(2)
+                .connector(client -> {
+                    maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                    sleep(20);
+                    concurrent.decrementAndGet();
+                })
+                .build()) {
+            join(orchestrator.connectAll(newClients("bogus.iot.us-west-2.amazonaws.com", numClients)));
+
+            assertEquals(numClients, orchestrator.getAdmitted());
+            assertEquals(0, orchestrator.getQueueDepth());
+            assertTrue(orchestrator.getMaxAdmissionLatencyMillis() > 0);
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Max concurrent connects " + maxConcurrent.get(), maxConcurrent.get() <= 2);
+        // A bucket of one token at 50/s admits 20 connects over at least 19 intervals of 20 ms.
+        assertTrue("All connects admitted in " + elapsed + " ms", elapsed >= 350);
+    }
+
+    @Test
+    public void failedConnectsAreRetriedWithBackoff() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        try (ConnectOrchestrator orchestrator = ConnectOrchestrator.builder()
+                .connectsPerSecond(1000)
+                .baseBackoffMillis(10L)
+                .maxAttempts(3)
+                .connector(client -> {
+                    if (attempts.incrementAndGet() < 3) {
+                        throw new AWSIotException("Simulated connect failure.");
+                    }
+                })
+                .build()) {
+            join(orchestrator.connectAll(newClients("bogus.iot.us-west-2.amazonaws.com", 1)));
+
+            assertEquals(3, attempts.get());
+            assertEquals(2, orchestrator.getRetries());
+            assertEquals(0, orchestrator.getFailures());
+        }
+    }
+
+    @Test
+    public void connectsClientsToLocalBroker() throws Exception {
+        final int numClients = 10;
+        try (LocalMqttBroker broker = new LocalMqttBroker();
+             ConnectOrchestrator orchestrator = ConnectOrchestrator.builder()
+                     .connectsPerSecond(100)
+                     .burst(5)
+                     .maxInFlight(4)
+                     .maxJitterMillis(100)
+                     .connectTimeoutMillis(10000L)
+                     .build()) {
+            final AwsIotMqttClientBulkFactory factory = broker.newClientFactory();
+            final List<AWSIotMqttClient> clients = factory.newClients(IntStream.range(0, numClients).mapToObj(i -> UUID.randomUUID().toString()));
+
+            join(orchestrator.connectAll(clients));
+
+            assertEquals(numClients, broker.getConnects());
+            for (AWSIotMqttClient client : clients) {
+                assertEquals(AWSIotConnectionStatus.CONNECTED, client.getConnectionStatus());
+                client.disconnect();
+            }
+        }
+    }
+
+    private static List<AWSIotMqttClient> newClients(String endpoint, int count) {
+        return AwsIotMqttClientBulkFactory.builder()
+                .clientEndpoint(endpoint)
+                .awsAccessKeyId("BogusAccessKeyId")
+                .awsSecretAccessKey("BogusSecretAccessKey")
+                .build()
+                .newClients(IntStream.range(0, count).mapToObj(i -> UUID.randomUUID().toString()));
+    }
+
+    private static void join(List<CompletableFuture<AWSIotMqttClient>> futures) throws Exception {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeferredSSLSocketTest {
+
+    @Test
+    public void raceSkipsUnresponsiveProxy() throws Exception {
+        // The "proxy" accepts TCP connections but never answers the CONNECT request.
+        try (ServerSocket deadProxy = new ServerSocket(0);
+             ServerSocket server = new ServerSocket(0)) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory();
+            factory.setConnectMode(ProxyAwareSSLSocketFactory.ConnectMode.RACE);
+            factory.setRaceStaggerMillis(100);
+            factory.setProxySelector(new FixedProxySelector(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("localhost", deadProxy.getLocalPort()))));
+
+            final long start = System.nanoTime();
+            try (Socket socket = factory.createSocket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getLocalPort()), 10000);
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                assertTrue(socket.isConnected());
+                assertTrue("Race took " + elapsed + " ms", elapsed < 5000);
+            }
+        }
+    }
+
+    @Test
+    public void proxySelectionIsMemoizedPerEndpoint() throws Exception {
+        final AtomicInteger selections = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0)) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory();
+            factory.setProxySelector(new ProxySelector() {
+                @Override
+                public List<Proxy> select(URI uri) {
+                    selections.incrementAndGet();
+                    return Collections.singletonList(Proxy.NO_PROXY);
+                }
+
+                @Override
+                public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+                }
+            });
+
+            for (int i = 0; i < 3; i++) {
+                try (Socket socket = factory.createSocket()) {
+                    socket.connect(new InetSocketAddress("localhost", server.getLocalPort()), 5000);
+                }
+            }
+
+            // One lookup per proxy scheme for the first connect only.
+            assertEquals(2, selections.get());
+            assertEquals(2, factory.getProxyLookupCache().getHits());
+
+            factory.invalidateProxyLookups();
+            try (Socket socket = factory.createSocket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getLocalPort()), 5000);
+            }
+            assertEquals(4, selections.get());
+        }
+    }
+
+    @Test
+    public void connectAsyncHandshakesManySocketsOnFewThreads() throws Exception {
+        final int numSockets = 50;
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (LocalTlsServer server = new LocalTlsServer()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+            factory.setProxySelector(new FixedProxySelector(Proxy.NO_PROXY));
+
+            final List<CompletableFuture<SSLSocket>> futures = new ArrayList<>();
+            for (int i = 0; i < numSockets; i++) {
+                futures.add(factory.createSocketAsync("localhost", server.getPort(), 10000, executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+
+            for (CompletableFuture<SSLSocket> future : futures) {
+                try (SSLSocket socket = future.get()) {
+                    assertTrue(socket.getSession().isValid());
+                    socket.getOutputStream().write(42);
+                    assertEquals(42, socket.getInputStream().read());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void connectAsyncLooksUpProxiesOnTheExecutor() throws Exception {
+        final CountDownLatch proxyLookup = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LocalTlsServer server = new LocalTlsServer()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+            factory.setProxySelector(new ProxySelector() {
+                @Override
+                public List<Proxy> select(URI uri) {
+                    // A slow PAC script.
+                    try {
+                        proxyLookup.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return Collections.singletonList(Proxy.NO_PROXY);
+                }
+
+                @Override
+                public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+                }
+            });
+
+            final CompletableFuture<SSLSocket> future = factory.createSocketAsync("localhost", server.getPort(), 10000, executor);
+            assertFalse(future.isDone());
+            proxyLookup.countDown();
+            try (SSLSocket socket = future.get(10, TimeUnit.SECONDS)) {
+                assertTrue(socket.getSession().isValid());
+            }
+        } finally {
+            proxyLookup.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void connectAsyncTimeoutBoundsTheHandshake() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        // The server accepts the TCP connection but never answers the ClientHello.
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+            factory.setProxySelector(new FixedProxySelector(Proxy.NO_PROXY));
+
+            final long start = System.nanoTime();
+            try {
+                factory.createSocketAsync("localhost", silentServer.getLocalPort(), 500, executor).get(10, TimeUnit.SECONDS);
+                fail("Expected the handshake to time out");
+            } catch (ExecutionException e) {
+                // Java 8 reports the read timeout as an SSLException.
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+            }
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Handshake took " + elapsed + " ms", elapsed < 5000);
+            // The executor thread is free again.
+            executor.submit(() -> { }).get(1, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void socketOptionsAreAppliedOnConnect() throws Exception {
+        try (LocalTlsServer server = new LocalTlsServer()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+            factory.setProxySelector(new FixedProxySelector(Proxy.NO_PROXY));
+            factory.setSocketOptions(SocketOptions.of(SocketProfile.LOW_LATENCY, SocketOptions.builder().receiveBufferSize(32 * 1024).build()));
+
+            try (Socket socket = factory.createSocket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getPort()), 5000);
+                assertTrue(socket.getTcpNoDelay());
+                assertTrue(socket.getKeepAlive());
+                // The kernel may round the buffer size, on Linux it doubles it.
+                assertTrue(socket.getReceiveBufferSize() >= 32 * 1024);
+            }
+
+            // Options set on the socket itself win over the factory's.
+            try (Socket socket = factory.createSocket()) {
+                socket.setTcpNoDelay(false);
+                socket.connect(new InetSocketAddress("localhost", server.getPort()), 5000);
+                assertFalse(socket.getTcpNoDelay());
+                assertTrue(socket.getKeepAlive());
+            }
+        }
+    }
+
+    @Test
+    public void connectTimingsAreRecordedPerPhase() throws Exception {
+        final BlockingQueue<ConnectTiming> timings = new LinkedBlockingQueue<>();
+        final ConnectTimingHistograms histograms = new ConnectTimingHistograms();
+        final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("localhost", closedPort()));
+        try (LocalTlsServer server = new LocalTlsServer()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+            factory.setProxyHealthCache(new ProxyHealthCache());
+            factory.setProxySelector(new FixedProxySelector(proxy));
+            factory.setConnectTimingListener(timing -> {
+                histograms.attempted(timing);
+                timings.add(timing);
+            });
+
+            try (SSLSocket socket = (SSLSocket) factory.createSocket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getPort()), 5000);
+                socket.startHandshake();
+
+                final ConnectTiming failed = timings.poll(5, TimeUnit.SECONDS);
+                assertFalse(failed.isSucceeded());
+                assertEquals(proxy, failed.getProxy());
+                // The proxy refused the TCP connect, so no CONNECT was sent.
+                assertTrue(failed.getTcpConnectNanos() >= 0);
+                assertEquals(-1, failed.getProxyTunnelNanos());
+
+                final ConnectTiming connected = timings.poll(5, TimeUnit.SECONDS);
+                assertTrue(connected.isSucceeded());
+                assertEquals("localhost:" + server.getPort(), connected.getEndpoint());
+                assertEquals(Proxy.NO_PROXY, connected.getProxy());
+                assertTrue(connected.getDnsNanos() >= 0);
+                assertTrue(connected.getTcpConnectNanos() > 0);
+                assertEquals(-1, connected.getProxyTunnelNanos());
+                assertTrue(connected.getTlsHandshakeNanos() > 0);
+                assertEquals(socket.getSession().getProtocol(), connected.getProtocol());
+                assertEquals(socket.getSession().getCipherSuite(), connected.getCipherSuite());
+
+                final ConnectTimingHistograms.Tags tags = new ConnectTimingHistograms.Tags(connected.getEndpoint(), "DIRECT", connected.getProtocol(), connected.getCipherSuite());
+                assertEquals(1, histograms.getHistogram(tags, ConnectTimingHistograms.Phase.TLS_HANDSHAKE).getCount());
+                assertEquals(0, histograms.getHistogram(tags, ConnectTimingHistograms.Phase.PROXY_TUNNEL).getCount());
+                assertEquals(0, histograms.getFailures(tags));
+                assertEquals(2, histograms.getTags().size());
+            }
+        }
+    }
+
+    @Test
+    public void raceRecordsPhasesOfTheWinner() throws Exception {
+        final BlockingQueue<ConnectTiming> timings = new LinkedBlockingQueue<>();
+        // The "proxy" accepts TCP connections but never answers the CONNECT request, so the direct attempt wins.
+        try (ServerSocket deadProxy = new ServerSocket(0);
+             LocalTlsServer server = new LocalTlsServer()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+            factory.setConnectMode(ProxyAwareSSLSocketFactory.ConnectMode.RACE);
+            factory.setRaceStaggerMillis(100);
+            factory.setProxySelector(new FixedProxySelector(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("localhost", deadProxy.getLocalPort()))));
+            factory.setConnectTimingListener(timings::add);
+
+            try (SSLSocket socket = (SSLSocket) factory.createSocket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getPort()), 5000);
+                socket.startHandshake();
+
+                final ConnectTiming connected = timings.poll(5, TimeUnit.SECONDS);
+                assertTrue(connected.isSucceeded());
+                assertEquals(Proxy.NO_PROXY, connected.getProxy());
+                assertTrue(connected.getDnsNanos() >= 0);
+                assertTrue(connected.getTcpConnectNanos() > 0);
+                assertEquals(-1, connected.getProxyTunnelNanos());
+                assertTrue(connected.getTlsHandshakeNanos() > 0);
+                // The cancelled proxy attempt reports nothing.
+                assertNull(timings.poll(200, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void directConnectHonorsTimeout() throws Exception {
+        try (BlackHole blackHole = new BlackHole()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory();
+            factory.setProxySelector(new FixedProxySelector(Proxy.NO_PROXY));
+
+            final long start = System.nanoTime();
+            try (Socket socket = factory.createSocket()) {
+                socket.connect(blackHole.getAddress(), 500);
+                fail("Connected to a black hole.");
+            } catch (SocketTimeoutException e) {
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("Connect gave up after " + elapsed + " ms", elapsed < 2000);
+            }
+        }
+    }
+
+    @Test
+    public void timeoutBoundsProxyAndDirectAttemptsTogether() throws Exception {
+        try (BlackHole blackHole = new BlackHole()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory();
+            factory.setProxyHealthCache(new ProxyHealthCache());
+            factory.setProxySelector(new FixedProxySelector(new Proxy(Proxy.Type.HTTP, blackHole.getAddress())));
+
+            final long start = System.nanoTime();
+            try (Socket socket = factory.createSocket()) {
+                socket.connect(blackHole.getAddress(), 1000);
+                fail("Connected to a black hole.");
+            } catch (SocketTimeoutException e) {
+                // The proxy attempt uses up the whole deadline, leaving nothing for the direct route.
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("Connect gave up after " + elapsed + " ms", elapsed < 1800);
+            }
+        }
+    }
+
+    @Test
+    public void directConnectResolvesUnresolvedEndpoint() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory();
+            factory.setProxySelector(new FixedProxySelector(Proxy.NO_PROXY));
+
+            try (Socket socket = factory.createSocket()) {
+                socket.connect(InetSocketAddress.createUnresolved("localhost", server.getLocalPort()), 5000);
+                assertTrue(socket.isConnected());
+            }
+        }
+    }
+
+    @Test
+    public void failedProxySocketsAreClosed() throws Exception {
+        final int refusingPort;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            refusingPort = closed.getLocalPort();
+        }
+        try (ServerSocket server = new ServerSocket(0)) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory();
+            factory.setProxyHealthCache(new ProxyHealthCache());
+            factory.setProxySelector(new FixedProxySelector(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("localhost", refusingPort))));
+            final SocketTracker tracker = factory.getSocketTracker();
+
+            try (Socket socket = factory.createSocket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getLocalPort()), 5000);
+
+                assertEquals(2, tracker.getOpened());
+                assertEquals(1, tracker.getClosed());
+                assertEquals(1, tracker.getOpen());
+            }
+            assertEquals(2, tracker.getClosed());
+            assertEquals(0, tracker.getOpen());
+            assertEquals(0, tracker.getLeaked());
+        }
+    }
+
+    // A local port that nothing listens on.
+    private static int closedPort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * A local listener whose accept backlog is full, so further connects to it are silently dropped like those to a
+     * non-routable address.
+     */
+    private static class BlackHole implements Closeable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        private final List<Socket> backlog = new ArrayList<>();
+
+        BlackHole() throws IOException {
+            while (true) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(getAddress(), 200);
+                    backlog.add(socket);
+                } catch (SocketTimeoutException e) {
+                    socket.close();
+                    return;
+                }
+            }
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Socket socket : backlog) {
+                socket.close();
+            }
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A proxy selector for tests that picks the same proxy, or {@link Proxy#NO_PROXY}, for every URI.
+ */
+public class FixedProxySelector extends ProxySelector {
+    private final Proxy proxy;
+
+    public FixedProxySelector(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public List<Proxy> select(URI uri) {
+        return Collections.singletonList(proxy);
+    }
+
+    @Override
+    public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+    }
+}
@@ -0,0 +1,141 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpConnectTunnelerTest {
+
+    @Test
+    public void tunnelCarriesData() throws Exception {
+        try (LocalHttpProxy proxy = new LocalHttpProxy();
+             ServerSocket server = new ServerSocket(0)) {
+            final HttpConnectTunneler tunneler = new HttpConnectTunneler();
+
+            try (Socket socket = tunnel(tunneler, proxy, server);
+                 Socket accepted = server.accept()) {
+                socket.getOutputStream().write(42);
+                assertEquals(42, accepted.getInputStream().read());
+            }
+            assertEquals(1, proxy.getTunnels());
+            assertEquals(0, proxy.getChallenges());
+        }
+    }
+
+    @Test
+    public void credentialsAreSentUpFrontOnceAccepted() throws Exception {
+        try (LocalHttpProxy proxy = new LocalHttpProxy("user", "secret", false);
+             ServerSocket server = new ServerSocket(0)) {
+            final HttpConnectTunneler tunneler = new HttpConnectTunneler();
+            tunneler.setProxyAuthenticator(HttpConnectTunneler.basic((p, realm) -> new PasswordAuthentication("user", "secret".toCharArray())));
+
+            for (int i = 0; i < 3; i++) {
+                try (Socket socket = tunnel(tunneler, proxy, server);
+                     Socket accepted = server.accept()) {
+                    accepted.getOutputStream().write(i);
+                    assertEquals(i, socket.getInputStream().read());
+                }
+            }
+            // Only the first CONNECT was challenged, and answered on the same connection.
+            assertEquals(3, proxy.getTunnels());
+            assertEquals(1, proxy.getChallenges());
+            assertEquals(3, proxy.getConnections());
+        }
+    }
+
+    @Test
+    public void reconnectsWhenProxyClosesOnChallenge() throws Exception {
+        try (LocalHttpProxy proxy = new LocalHttpProxy("user", "secret", true);
+             ServerSocket server = new ServerSocket(0)) {
+            final HttpConnectTunneler tunneler = new HttpConnectTunneler();
+            tunneler.setProxyAuthenticator(HttpConnectTunneler.basic((p, realm) -> new PasswordAuthentication("user", "secret".toCharArray())));
+
+            try (Socket socket = tunnel(tunneler, proxy, server);
+                 Socket accepted = server.accept()) {
+                socket.getOutputStream().write(42);
+                assertEquals(42, accepted.getInputStream().read());
+            }
+            assertEquals(1, proxy.getChallenges());
+            assertEquals(2, proxy.getConnections());
+        }
+    }
+
+    @Test
+    public void rejectedCredentialsFail() throws Exception {
+        try (LocalHttpProxy proxy = new LocalHttpProxy("user", "secret", false);
+             ServerSocket server = new ServerSocket(0)) {
+            final HttpConnectTunneler tunneler = new HttpConnectTunneler();
+            tunneler.setProxyAuthenticator(HttpConnectTunneler.basic((p, realm) -> new PasswordAuthentication("user", "wrong".toCharArray())));
+
+            try {
+                tunnel(tunneler, proxy, server).close();
+                fail("Tunneled with the wrong password.");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("407"));
+            }
+        }
+    }
+
+    @Test
+    public void silentProxyTimesOut() throws Exception {
+        try (ServerSocket silentProxy = new ServerSocket(0)) {
+            final HttpConnectTunneler tunneler = new HttpConnectTunneler();
+            tunneler.setResponseTimeoutMillis(200);
+
+            final long start = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                final InetSocketAddress proxyAddress = new InetSocketAddress("localhost", silentProxy.getLocalPort());
+                socket.connect(proxyAddress, 5000);
+                tunneler.tunnel(socket, proxyAddress, new InetSocketAddress("localhost", 8883), 5000, Socket::new);
+                fail("Tunneled through a silent proxy.");
+            } catch (SocketTimeoutException e) {
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("Gave up after " + elapsed + " ms", elapsed < 2000);
+            }
+        }
+    }
+
+    @Test
+    public void factorySocketsHandshakeThroughAuthenticatedProxy() throws Exception {
+        try (LocalHttpProxy proxy = new LocalHttpProxy("user", "secret", false);
+             LocalTlsServer server = new LocalTlsServer()) {
+            final ProxyAwareSSLSocketFactory factory = new ProxyAwareSSLSocketFactory(LocalMqttBroker.clientContext());
+            factory.setProxyHealthCache(new ProxyHealthCache());
+            factory.setProxySelector(new FixedProxySelector(proxy.getProxy()));
+            factory.getHttpConnectTunneler().setProxyAuthenticator(HttpConnectTunneler.basic((p, realm) -> new PasswordAuthentication("user", "secret".toCharArray())));
+
+            for (int i = 0; i < 2; i++) {
+                try (SSLSocket socket = (SSLSocket) factory.createSocket()) {
+                    socket.connect(InetSocketAddress.createUnresolved("localhost", server.getPort()), 5000);
+                    socket.startHandshake();
+                }
+            }
+            assertEquals(2, proxy.getTunnels());
+            assertEquals(1, proxy.getChallenges());
+        }
+    }
+
+    private static Socket tunnel(HttpConnectTunneler tunneler, LocalHttpProxy proxy, ServerSocket server) throws IOException {
+        final InetSocketAddress proxyAddress = (InetSocketAddress) proxy.getProxy().address();
+        final Socket socket = new Socket();
+        try {
+            socket.connect(proxyAddress, 5000);
+            return tunneler.tunnel(socket, proxyAddress, new InetSocketAddress("localhost", server.getLocalPort()), 5000, Socket::new);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyMaterialCacheTest {
+
+    @Test
+    public void sameContentIsParsedOnce() throws Exception {
+        final Path directory = Files.createTempDirectory("key-material");
+        try (KeyMaterialCache cache = new KeyMaterialCache()) {
+            for (int i = 0; i < 10; i++) {
+                LocalTlsServer.writeIdentity("/localhost.jks", "localhost", directory.resolve(i + ".crt"), directory.resolve(i + ".key"));
+            }
+            final X509Identity first = cache.getIdentity(directory.resolve("0.crt"), directory.resolve("0.key"));
+            for (int i = 1; i < 10; i++) {
+                final X509Identity identity = cache.getIdentity(directory.resolve(i + ".crt"), directory.resolve(i + ".key"));
+                assertSame(first.getPrivateKey(), identity.getPrivateKey());
+            }
+            assertEquals(2, cache.getParses());
+            assertEquals(0, cache.getHits());
+
+            assertSame(first, cache.getIdentity(directory.resolve("0.crt"), directory.resolve("0.key")));
+            assertEquals(1, cache.getHits());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void rotationWaitsForMatchingKey() throws Exception {
+        final Path directory = Files.createTempDirectory("key-material");
+        final Path certificate = directory.resolve("device.crt");
+        final Path privateKey = directory.resolve("device.key");
+        try (KeyMaterialCache cache = new KeyMaterialCache()) {
+            LocalTlsServer.writeIdentity("/localhost.jks", "localhost", certificate, privateKey);
+            final X509Identity original = cache.getIdentity(certificate, privateKey);
+
+            // The certificate arrives first; its key does not match the old one.
+            LocalTlsServer.writeIdentity("/device.jks", "device", certificate, null);
+            await(() -> cache.getReloadFailures() > 0);
+            assertSame(original, cache.getIdentity(certificate, privateKey));
+            assertEquals(2, cache.getParsedContents());
+
+            LocalTlsServer.writeIdentity("/device.jks", "device", null, privateKey);
+            await(() -> cache.getReloads() == 1);
+            final X509Identity rotated = cache.getIdentity(certificate, privateKey);
+            assertNotSame(original, rotated);
+            assertEquals("CN=device", rotated.getCertificateChain()[0].getSubjectX500Principal().getName());
+            // The replaced certificate and key are no longer held.
+            assertEquals(2, cache.getParsedContents());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void newHandshakesPresentRotatedIdentity() throws Exception {
+        final Path directory = Files.createTempDirectory("key-material");
+        final Path certificate = directory.resolve("device.crt");
+        final Path privateKey = directory.resolve("device.key");
+        try (LocalTlsServer server = new LocalTlsServer("TLSv1.2")) {
+            // The server only trusts the "localhost" certificate.
+            server.setNeedClientAuth(true);
+            LocalTlsServer.writeIdentity("/localhost.jks", "localhost", certificate, privateKey);
+            final TrustManager[] trustManagers = LocalTlsServer.trustManagers();
+            final SSLContext context = SharedSSLContext.forIdentity(certificate, privateKey, trustManagers);
+            final ProxyAwareSSLSocketFactory socketFactory = new ProxyAwareSSLSocketFactory(context);
+            handshake(socketFactory, server.getPort());
+
+            final long reloads = KeyMaterialCache.getShared().getReloads();
+            LocalTlsServer.writeIdentity("/device.jks", "device", certificate, privateKey);
+            await(() -> KeyMaterialCache.getShared().getReloads() > reloads);
+            assertSame(context, SharedSSLContext.forIdentity(certificate, privateKey, trustManagers));
+            try {
+                handshake(socketFactory, server.getPort());
+                fail("The rotated certificate was not presented");
+            } catch (SSLException expected) {
+            }
+
+            LocalTlsServer.writeIdentity("/localhost.jks", "localhost", certificate, privateKey);
+            await(() -> KeyMaterialCache.getShared().getReloads() > reloads + 1);
+            handshake(socketFactory, server.getPort());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void handshake(ProxyAwareSSLSocketFactory socketFactory, int port) throws Exception {
+        try (SSLSocket socket = (SSLSocket) socketFactory.createSocket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 5000);
+            socket.startHandshake();
+            socket.getOutputStream().write(1);
+            assertEquals(1, socket.getInputStream().read());
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
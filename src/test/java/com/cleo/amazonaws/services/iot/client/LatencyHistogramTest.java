@@ -0,0 +1,39 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesAreWithinOneBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(-1);
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000000, histogram.getMaxNanos());
+        assertEquals(5000500, histogram.getMeanNanos(), 0.1);
+        assertWithinBucket(5000000, histogram.getPercentileNanos(50));
+        assertWithinBucket(9900000, histogram.getPercentileNanos(99));
+        assertEquals(10000000, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            final long upperBound = LatencyHistogram.upperBound(LatencyHistogram.bucket(value));
+            assertTrue(value + " <= " + upperBound, value <= upperBound);
+            assertTrue(value + " within 12.5% of " + upperBound, upperBound - value <= value / 8);
+        }
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(expected + " <= " + actual, expected <= actual);
+        assertTrue(actual + " within 12.5% of " + expected, actual - expected <= expected / 8);
+    }
+}
@@ -0,0 +1,157 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import java.net.ProxySelector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Drives a number of clients built by {@link AwsIotMqttClientBuilder} against a broker, typically a
+ * {@link LocalMqttBroker}: connects them all, has each publish a number of QoS 1 messages waiting for every PUBACK,
+ * then disconnects them, and reports the connect rate, the publish throughput and the publish latency percentiles.
+ */
+public class LoadGenerator {
+    private final ClientEndpoint endpoint;
+    private final ProxyAwareSSLSocketFactory socketFactory;
+    private final int clients;
+    private final int messagesPerClient;
+    private final byte[] payload;
+    private final int concurrency;
+    private final long timeoutMillis;
+
+    /**
+     * @param endpoint          the broker URI
+     * @param sslContext        the context of the clients' sockets, {@link LocalMqttBroker#clientContext()} by default
+     * @param proxySelector     the proxy selector of the clients' sockets, for example one returning
+     *                          {@link LocalHttpProxy#getProxy()}
+     * @param clients           the number of clients
+     * @param messagesPerClient the number of messages each client publishes
+     * @param payloadSize       the message size in bytes, defaults to 64
+     * @param concurrency       the number of threads connecting and publishing, defaults to 16
+     * @param timeoutMillis     the timeout of each connect and publish, defaults to 30000
+     */
+    @Builder
+    private LoadGenerator(String endpoint,
+                          SSLContext sslContext,
+                          ProxySelector proxySelector,
+                          int clients,
+                          int messagesPerClient,
+                          Integer payloadSize,
+                          Integer concurrency,
+                          Long timeoutMillis) throws Exception {
+        this.endpoint = new ClientEndpoint(endpoint);
+        this.socketFactory = new ProxyAwareSSLSocketFactory(sslContext == null ? LocalMqttBroker.clientContext() : sslContext);
+        if (proxySelector != null) {
+            this.socketFactory.setProxySelector(proxySelector);
+        }
+        this.clients = clients;
+        this.messagesPerClient = messagesPerClient;
+        this.payload = new byte[payloadSize == null ? 64 : payloadSize];
+        this.concurrency = concurrency == null ? 16 : concurrency;
+        this.timeoutMillis = timeoutMillis == null ? 30000 : timeoutMillis;
+    }
+
+    public Report run() throws Exception {
+        final List<AWSIotMqttClient> fleet = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            fleet.add(AwsIotMqttClientBuilder.newClient(endpoint, socketFactory, UUID.randomUUID().toString(), null, null, false));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            final long connectStart = System.nanoTime();
+            invokeAll(executor, fleet, client -> {
+                client.connect(timeoutMillis);
+                return null;
+            });
+            final long connectNanos = System.nanoTime() - connectStart;
+
+            final String topic = "load/" + UUID.randomUUID();
+            final long publishStart = System.nanoTime();
+            final List<long[]> latencies = invokeAll(executor, fleet, client -> {
+                long[] clientLatencies = new long[messagesPerClient];
+                for (int i = 0; i < messagesPerClient; i++) {
+                    long start = System.nanoTime();
+                    client.publish(topic, AWSIotQos.QOS1, payload, timeoutMillis);
+                    clientLatencies[i] = System.nanoTime() - start;
+                }
+                return clientLatencies;
+            });
+            final long publishNanos = System.nanoTime() - publishStart;
+
+            invokeAll(executor, fleet, client -> {
+                client.disconnect(timeoutMillis, true);
+                return null;
+            });
+
+            final long[] sorted = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            return new Report(clients,
+                    clients / (connectNanos / 1e9),
+                    sorted.length,
+                    sorted.length / (publishNanos / 1e9),
+                    percentileMillis(sorted, 50),
+                    percentileMillis(sorted, 90),
+                    percentileMillis(sorted, 99),
+                    percentileMillis(sorted, 100));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> List<T> invokeAll(ExecutorService executor, List<AWSIotMqttClient> fleet, ClientTask<T> task) throws Exception {
+        final List<Callable<T>> calls = new ArrayList<>(fleet.size());
+        for (AWSIotMqttClient client : fleet) {
+            calls.add(() -> task.run(client));
+        }
+        final List<T> results = new ArrayList<>(fleet.size());
+        for (Future<T> future : executor.invokeAll(calls)) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    private static double percentileMillis(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @FunctionalInterface
+    private interface ClientTask<T> {
+        T run(AWSIotMqttClient client) throws Exception;
+    }
+
+    @Value
+    public static class Report {
+        int clients;
+        double connectsPerSecond;
+        int publishes;
+        double publishesPerSecond;
+        double p50Millis;
+        double p90Millis;
+        double p99Millis;
+        double maxMillis;
+
+        @Override
+        public String toString() {
+            return String.format("%d clients: %.1f connects/s; %d publishes: %.1f publishes/s, latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                    clients, connectsPerSecond, publishes, publishesPerSecond, p50Millis, p90Millis, p99Millis, maxMillis);
+        }
+    }
+}
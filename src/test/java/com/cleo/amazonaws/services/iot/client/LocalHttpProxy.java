@@ -0,0 +1,157 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process HTTP proxy for tests that only supports CONNECT tunnels, which is all that proxied MQTT needs. It can
+ * require Basic authentication, answering a CONNECT without the right credentials with a 407 either on a kept-alive
+ * connection or by closing it.
+ */
+public class LocalHttpProxy implements Closeable {
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "local-http-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger tunnels = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger challenges = new AtomicInteger();
+    private final String proxyAuthorization;
+    private final boolean closeOnChallenge;
+
+    public LocalHttpProxy() throws IOException {
+        this(null, null, false);
+    }
+
+    /**
+     * @param user             the user name to require, {@code null} to require no authentication
+     * @param password         the password to require
+     * @param closeOnChallenge whether to close the connection after a 407
+     */
+    public LocalHttpProxy(String user, String password, boolean closeOnChallenge) throws IOException {
+        this.proxyAuthorization = user == null ? null
+                : "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.closeOnChallenge = closeOnChallenge;
+        serverSocket = new ServerSocket(0, 1000, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    public Proxy getProxy() {
+        return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+    }
+
+    /**
+     * @return the number of tunnels opened so far
+     */
+    public int getTunnels() {
+        return tunnels.get();
+    }
+
+    /**
+     * @return the number of client connections accepted so far
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return the number of 407 responses sent so far
+     */
+    public int getChallenges() {
+        return challenges.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                executor.execute(() -> tunnel(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void tunnel(Socket client) {
+        try (Socket c = client) {
+            InputStream in = c.getInputStream();
+            OutputStream out = c.getOutputStream();
+            String[] request;
+            while (true) {
+                request = LocalMqttBroker.readLine(in).split(" ");
+                String authorization = null;
+                for (String header = LocalMqttBroker.readLine(in); !header.isEmpty(); header = LocalMqttBroker.readLine(in)) {
+                    if (header.regionMatches(true, 0, "Proxy-Authorization:", 0, 20)) {
+                        authorization = header.substring(20).trim();
+                    }
+                }
+                if (request.length != 3 || !request[0].equals("CONNECT")) {
+                    out.write("HTTP/1.1 405 Method Not Allowed\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    return;
+                }
+                if (proxyAuthorization == null || proxyAuthorization.equals(authorization)) {
+                    break;
+                }
+                challenges.incrementAndGet();
+                String body = "Proxy authentication required.";
+                out.write(("HTTP/1.1 407 Proxy Authentication Required\r\n"
+                        + "Proxy-Authenticate: Basic realm=\"local\"\r\n"
+                        + (closeOnChallenge ? "Connection: close\r\n" : "")
+                        + "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                if (closeOnChallenge) {
+                    return;
+                }
+            }
+
+            int colon = request[1].lastIndexOf(':');
+            try (Socket server = new Socket(request[1].substring(0, colon), Integer.parseInt(request[1].substring(colon + 1)))) {
+                tunnels.incrementAndGet();
+                out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                executor.execute(() -> pipe(server, c));
+                pipe(c, server);
+            } catch (IOException e) {
+                out.write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (IOException e) {
+            // Client went away.
+        }
+    }
+
+    private static void pipe(Socket from, Socket to) {
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+            to.shutdownOutput();
+        } catch (IOException e) {
+            // One side went away.
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * An in-process stand-in for an MQTT 3.1.1 broker, speaking MQTT over TLS, plain TCP, secure WebSocket and plain
+ * WebSocket, each on its own port; the TLS transports use the test certificate from {@link LocalTlsServer}. It accepts
+ * every CONNECT, routes PUBLISHes to matching subscriptions (wildcards included), acknowledges QoS 1 and answers
+ * keep-alive pings; that is enough to exercise connect, publish and subscribe paths without a real broker. It keeps no
+ * sessions and no retained messages, and treats QoS 2 as QoS 1.
+ */
+public class LocalMqttBroker implements Closeable {
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    // The broker accepts any credentials; the builders just require some.
+    private static final String ACCESS_KEY_ID = "BogusAccessKeyId";
+    private static final String SECRET_ACCESS_KEY = "BogusSecretAccessKey";
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final String[] SCHEMES = {"ssl", "tcp", "wss", "ws"};
+
+    private final Map<String, ServerSocket> serverSockets = new LinkedHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "local-mqtt-broker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connects = new AtomicInteger();
+    private final AtomicInteger publishes = new AtomicInteger();
+    private final AtomicInteger subscribes = new AtomicInteger();
+
+    public LocalMqttBroker() throws Exception {
+        for (String scheme : SCHEMES) {
+            ServerSocketFactory factory = scheme.equals("ssl") || scheme.equals("wss") ? LocalTlsServer.serverContext().getServerSocketFactory() : ServerSocketFactory.getDefault();
+            ServerSocket serverSocket = factory.createServerSocket(0, 1000, InetAddress.getLoopbackAddress());
+            serverSockets.put(scheme, serverSocket);
+            boolean webSocket = scheme.startsWith("ws");
+            executor.execute(() -> acceptLoop(serverSocket, webSocket));
+        }
+    }
+
+    /**
+     * @return the MQTT over TLS broker URI to give to {@link AwsIotMqttClientBuilder}
+     */
+    public String getEndpoint() {
+        return getEndpoint("ssl");
+    }
+
+    /**
+     * @return the MQTT over secure WebSocket broker URI to give to {@link AwsIotMqttClientBuilder}
+     */
+    public String getWebSocketEndpoint() {
+        return getEndpoint("wss");
+    }
+
+    /**
+     * @param scheme one of {@code ssl}, {@code tcp}, {@code wss} or {@code ws}
+     * @return the broker URI of that transport
+     */
+    public String getEndpoint(String scheme) {
+        return scheme + "://localhost:" + serverSockets.get(scheme).getLocalPort();
+    }
+
+    /**
+     * @return a client context that trusts the broker's certificate
+     */
+    public static SSLContext clientContext() throws Exception {
+        return SharedSSLContext.newContext(null, LocalTlsServer.trustManagers(), SharedSSLContext.DEFAULT_SESSION_CACHE_SIZE, SharedSSLContext.DEFAULT_SESSION_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * @return a client of this broker's {@code ssl://} endpoint, not yet connected
+     */
+    public AWSIotMqttClient newClient(String clientId) throws Exception {
+        return newClient(getEndpoint(), clientId);
+    }
+
+    /**
+     * @return a client of the given endpoint of a broker, not yet connected
+     */
+    public static AWSIotMqttClient newClient(String endpoint, String clientId) throws Exception {
+        return AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(endpoint)
+                .clientId(clientId)
+                .awsAccessKeyId(ACCESS_KEY_ID)
+                .awsSecretAccessKey(SECRET_ACCESS_KEY)
+                .sslContext(clientContext())
+                .build();
+    }
+
+    /**
+     * @return a factory of clients of this broker's {@code ssl://} endpoint
+     */
+    public AwsIotMqttClientBulkFactory newClientFactory() throws Exception {
+        return AwsIotMqttClientBulkFactory.builder()
+                .clientEndpoint(getEndpoint())
+                .awsAccessKeyId(ACCESS_KEY_ID)
+                .awsSecretAccessKey(SECRET_ACCESS_KEY)
+                .sslContext(clientContext())
+                .build();
+    }
+
+    /**
+     * @return a multiplexer over the given number of connections to this broker's {@code ssl://} endpoint
+     */
+    public AwsIotMqttClientMultiplexer newMultiplexer(String clientIdPrefix, int connections) throws Exception {
+        return AwsIotMqttClientMultiplexer.builder()
+                .clientEndpoint(getEndpoint())
+                .clientIdPrefix(clientIdPrefix)
+                .connections(connections)
+                .awsAccessKeyId(ACCESS_KEY_ID)
+                .awsSecretAccessKey(SECRET_ACCESS_KEY)
+                .sslContext(clientContext())
+                .build();
+    }
+
+    public int getConnects() {
+        return connects.get();
+    }
+
+    public int getPublishes() {
+        return publishes.get();
+    }
+
+    public int getSubscribes() {
+        return subscribes.get();
+    }
+
+    /**
+     * Waits for the broker to have processed this many SUBSCRIBEs in all; the SDK's {@code subscribe} can return before
+     * the broker has seen it.
+     *
+     * @throws IllegalStateException if they do not arrive within ten seconds
+     */
+    public void awaitSubscribes(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (subscribes.get() < count) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Expected " + count + " SUBSCRIBEs, got " + subscribes.get());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ServerSocket serverSocket : serverSockets.values()) {
+            serverSocket.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop(ServerSocket server, boolean webSocket) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                executor.execute(() -> serve(socket, webSocket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket, boolean webSocket) {
+        Session session = null;
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            if (webSocket) {
+                upgrade(in, out);
+                WebSocketOutputStream webSocketOut = new WebSocketOutputStream(out);
+                in = new WebSocketInputStream(in, webSocketOut);
+                out = webSocketOut;
+            }
+            session = new Session(out);
+            sessions.add(session);
+            DataInputStream data = new DataInputStream(in);
+            while (true) {
+                int header = data.read();
+                if (header == -1) {
+                    return;
+                }
+                byte[] body = new byte[readRemainingLength(data)];
+                data.readFully(body);
+                switch (header >> 4) {
+                    case CONNECT:
+                        connects.incrementAndGet();
+                        session.send(new byte[]{0x20, 0x02, 0x00, 0x00});
+                        break;
+                    case PUBLISH:
+                        publish(session, header, body);
+                        break;
+                    case SUBSCRIBE:
+                        // Counted before the SUBACK, so a blocking subscribe sees its own count.
+                        subscribes.incrementAndGet();
+                        subscribe(session, body);
+                        break;
+                    case UNSUBSCRIBE:
+                        unsubscribe(session, body);
+                        break;
+                    case PINGREQ:
+                        session.send(new byte[]{(byte) 0xD0, 0x00});
+                        break;
+                    case DISCONNECT:
+                        if (!webSocket) {
+                            return;
+                        }
+                        // Wait for the close frame; Paho's WebSocket receiver deadlocks if the connection just ends.
+                        break;
+                    case PUBACK:
+                    default:
+                        // Nothing to do.
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away.
+        } finally {
+            if (session != null) {
+                sessions.remove(session);
+            }
+        }
+    }
+
+    private void publish(Session session, int header, byte[] body) throws IOException {
+        publishes.incrementAndGet();
+        int qos = (header >> 1) & 0x03;
+        int topicLength = readShort(body, 0);
+        String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+        int payloadOffset = 2 + topicLength + (qos > 0 ? 2 : 0);
+        if (qos > 0) {
+            // The packet identifier follows the topic name.
+            session.send(new byte[]{0x40, 0x02, body[2 + topicLength], body[3 + topicLength]});
+        }
+
+        for (Session subscriber : sessions) {
+            Integer grantedQos = subscriber.grantedQos(topic);
+            if (grantedQos != null) {
+                subscriber.deliver(topic, Math.min(qos, grantedQos), body, payloadOffset);
+            }
+        }
+    }
+
+    private static void subscribe(Session session, byte[] body) throws IOException {
+        ByteArrayOutputStream granted = new ByteArrayOutputStream();
+        for (int i = 2; i < body.length; ) {
+            int length = readShort(body, i);
+            String filter = new String(body, i + 2, length, StandardCharsets.UTF_8);
+            int qos = Math.min(body[i + 2 + length], 1);
+            session.subscriptions.put(filter, qos);
+            granted.write(qos);
+            i += 3 + length;
+        }
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(0x90);
+        writeRemainingLength(packet, 2 + granted.size());
+        packet.write(body, 0, 2);
+        granted.writeTo(packet);
+        session.send(packet.toByteArray());
+    }
+
+    private static void unsubscribe(Session session, byte[] body) throws IOException {
+        for (int i = 2; i < body.length; ) {
+            int length = readShort(body, i);
+            session.subscriptions.remove(new String(body, i + 2, length, StandardCharsets.UTF_8));
+            i += 2 + length;
+        }
+        session.send(new byte[]{(byte) 0xB0, 0x02, body[0], body[1]});
+    }
+
+    static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (filterLevels[i].equals("#")) {
+                return true;
+            }
+            if (i >= topicLevels.length || !filterLevels[i].equals("+") && !filterLevels[i].equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readRemainingLength(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+        }
+        throw new IOException("Malformed remaining length.");
+    }
+
+    private static void writeRemainingLength(ByteArrayOutputStream out, int length) {
+        do {
+            int b = length & 0x7F;
+            length >>>= 7;
+            out.write(length > 0 ? b | 0x80 : b);
+        } while (length > 0);
+    }
+
+    // Answers the HTTP upgrade request of a WebSocket client.
+    private static void upgrade(InputStream in, OutputStream out) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line = readLine(in);
+        if (!line.startsWith("GET ")) {
+            throw new IOException("Not a WebSocket upgrade request: " + line);
+        }
+        for (line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            accept = Base64.getEncoder().encodeToString(sha1.digest((headers.get("sec-websocket-key") + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        String protocol = headers.getOrDefault("sec-websocket-protocol", "mqtt");
+        out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n"
+                + "Sec-WebSocket-Protocol: " + protocol + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static class Session {
+        private final OutputStream out;
+        private final Map<String, Integer> subscriptions = new ConcurrentHashMap<>();
+        private int nextPacketId;
+
+        Session(OutputStream out) {
+            this.out = out;
+        }
+
+        // The highest QoS granted by a matching subscription, null if none matches.
+        Integer grantedQos(String topic) {
+            Integer granted = null;
+            for (Map.Entry<String, Integer> subscription : subscriptions.entrySet()) {
+                if (matches(subscription.getKey(), topic) && (granted == null || subscription.getValue() > granted)) {
+                    granted = subscription.getValue();
+                }
+            }
+            return granted;
+        }
+
+        synchronized void deliver(String topic, int qos, byte[] publish, int payloadOffset) throws IOException {
+            byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            int payloadLength = publish.length - payloadOffset;
+            ByteArrayOutputStream packet = new ByteArrayOutputStream(payloadLength + topicBytes.length + 8);
+            packet.write(0x30 | qos << 1);
+            writeRemainingLength(packet, 2 + topicBytes.length + (qos > 0 ? 2 : 0) + payloadLength);
+            packet.write(topicBytes.length >> 8);
+            packet.write(topicBytes.length);
+            packet.write(topicBytes);
+            if (qos > 0) {
+                nextPacketId = nextPacketId % 0xFFFF + 1;
+                packet.write(nextPacketId >> 8);
+                packet.write(nextPacketId);
+            }
+            packet.write(publish, payloadOffset, payloadLength);
+            send(packet.toByteArray());
+        }
+
+        synchronized void send(byte[] packet) throws IOException {
+            out.write(packet);
+            out.flush();
+        }
+    }
+
+    // Reads the payload of the (masked) binary frames sent by a WebSocket client as one stream. A close frame is
+    // answered, then the stream ends once the client has closed the connection.
+    private static class WebSocketInputStream extends InputStream {
+        private final DataInputStream in;
+        private final WebSocketOutputStream out;
+        private final byte[] mask = new byte[4];
+        private long remaining;
+        private long position;
+        private boolean masked;
+
+        WebSocketInputStream(InputStream in, WebSocketOutputStream out) {
+            this.in = new DataInputStream(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (remaining == 0) {
+                if (!nextFrame()) {
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                return -1;
+            }
+            if (masked) {
+                for (int i = 0; i < n; i++) {
+                    b[off + i] ^= mask[(int) (position++ & 3)];
+                }
+            }
+            remaining -= n;
+            return n;
+        }
+
+        private boolean nextFrame() throws IOException {
+            int first = in.read();
+            if (first == -1) {
+                return false;
+            }
+            int second = in.readUnsignedByte();
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            masked = (second & 0x80) != 0;
+            if (masked) {
+                in.readFully(mask);
+            }
+            position = 0;
+            int opcode = first & 0x0F;
+            if (opcode == 0x8) {
+                out.writeClose();
+                while (in.read() != -1) {
+                    // Drain until the client closes.
+                }
+                return false;
+            }
+            if (opcode >= 0x8) {
+                // Ping or pong: skip the payload.
+                in.readFully(new byte[(int) length]);
+                return true;
+            }
+            remaining = length;
+            return true;
+        }
+    }
+
+    // Writes every write as one unmasked binary frame.
+    private static class WebSocketOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        WebSocketOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFrame(0x82, b, off, len);
+        }
+
+        synchronized void writeClose() throws IOException {
+            writeFrame(0x88, new byte[0], 0, 0);
+            out.flush();
+        }
+
+        private synchronized void writeFrame(int opcode, byte[] b, int off, int len) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(len + 10);
+            frame.write(opcode);
+            if (len < 126) {
+                frame.write(len);
+            } else if (len <= 0xFFFF) {
+                frame.write(126);
+                frame.write(len >> 8);
+                frame.write(len);
+            } else {
+                frame.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    frame.write((int) ((long) len >> shift));
+                }
+            }
+            frame.write(b, off, len);
+            frame.writeTo(out);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
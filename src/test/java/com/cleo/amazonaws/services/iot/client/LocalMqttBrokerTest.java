@@ -0,0 +1,93 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalMqttBrokerTest {
+
+    @Test
+    public void topicFiltersMatchWildcards() {
+        assertTrue(LocalMqttBroker.matches("a/+/c", "a/b/c"));
+        assertTrue(LocalMqttBroker.matches("a/#", "a/b/c"));
+        assertTrue(LocalMqttBroker.matches("a/#", "a"));
+        assertFalse(LocalMqttBroker.matches("a/+", "a/b/c"));
+        assertFalse(LocalMqttBroker.matches("a/b", "a/c"));
+    }
+
+    @Test
+    public void publishesReachSubscribersAcrossTransports() throws Exception {
+        final CountDownLatch received = new CountDownLatch(3);
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AWSIotMqttClient subscriber = LocalMqttBroker.newClient(broker.getWebSocketEndpoint(), UUID.randomUUID().toString());
+            final AWSIotMqttClient publisher = LocalMqttBroker.newClient(broker.getEndpoint(), UUID.randomUUID().toString());
+            subscriber.connect(10000);
+            publisher.connect(10000);
+
+            subscriber.subscribe(new AWSIotTopic("some/+/topic", AWSIotQos.QOS1) {
+                @Override
+                public void onMessage(AWSIotMessage message) {
+                    received.countDown();
+                }
+            }, 10000);
+            broker.awaitSubscribes(1);
+            for (int i = 0; i < 3; i++) {
+                publisher.publish("some/test/topic", AWSIotQos.QOS1, ("message " + i).getBytes(), 10000);
+            }
+            publisher.publish("some/other/thing", AWSIotQos.QOS1, new byte[0], 10000);
+
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+            assertEquals(4, broker.getPublishes());
+            subscriber.disconnect();
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void eachSchemeSelectsItsTransport() throws Exception {
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            for (String scheme : new String[]{"ssl", "tcp", "wss", "ws"}) {
+                final AWSIotMqttClient client = LocalMqttBroker.newClient(broker.getEndpoint(scheme), UUID.randomUUID().toString());
+                client.connect(10000);
+                client.publish("some/test/topic", AWSIotQos.QOS1, scheme.getBytes(), 10000);
+                client.disconnect();
+            }
+            assertEquals(4, broker.getConnects());
+            assertEquals(4, broker.getPublishes());
+        }
+    }
+
+    @Test
+    public void loadGeneratorRunsOverWebSocketThroughProxy() throws Exception {
+        try (LocalMqttBroker broker = new LocalMqttBroker();
+             LocalHttpProxy proxy = new LocalHttpProxy()) {
+            final LoadGenerator.Report report = LoadGenerator.builder()
+                    .endpoint(broker.getWebSocketEndpoint())
+                    .proxySelector(new FixedProxySelector(proxy.getProxy()))
+                    .clients(5)
+                    .messagesPerClient(20)
+                    .concurrency(5)
+                    .build()
+                    .run();
+
+            assertEquals(5, proxy.getTunnels());
+            assertEquals(5, broker.getConnects());
+            assertEquals(100, broker.getPublishes());
+            assertEquals(100, report.getPublishes());
+            assertTrue(report.getConnectsPerSecond() > 0);
+            assertTrue(report.getP50Millis() > 0);
+            assertTrue(report.getP99Millis() <= report.getMaxMillis());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * An in-process TLS echo server for tests, using the self-signed "localhost" certificate in {@code localhost.jks}.
+ */
+public class LocalTlsServer implements Closeable {
+    private static final String KEYSTORE = "/localhost.jks";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private final SSLServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "local-tls-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts the server on an ephemeral port.
+     *
+     * @param protocols the protocols to enable, or none for the JVM defaults
+     * @throws Exception if the server cannot be started
+     */
+    public LocalTlsServer(String... protocols) throws Exception {
+        serverSocket = (SSLServerSocket) serverContext().getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        if (protocols.length > 0) {
+            serverSocket.setEnabledProtocols(protocols);
+        }
+        executor.execute(this::acceptLoop);
+    }
+
+    /**
+     * @param need whether clients must present a certificate, which must be the "localhost" one
+     */
+    public void setNeedClientAuth(boolean need) {
+        serverSocket.setNeedClientAuth(need);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    public static KeyStore keyStore() throws Exception {
+        return keyStore(KEYSTORE);
+    }
+
+    private static KeyStore keyStore(String resource) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream stream = LocalTlsServer.class.getResourceAsStream(resource)) {
+            keyStore.load(stream, PASSWORD);
+        }
+        return keyStore;
+    }
+
+    public static TrustManager[] trustManagers() throws Exception {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore());
+        return trustManagerFactory.getTrustManagers();
+    }
+
+    /**
+     * @return the "localhost" certificate and key, written to PEM files in the directory
+     */
+    public static X509Identity writeIdentity(Path directory) throws Exception {
+        Path certificate = directory.resolve("localhost.pem.crt");
+        Path privateKey = directory.resolve("localhost.pem.key");
+        writeIdentity(KEYSTORE, "localhost", certificate, privateKey);
+        return X509Identity.load(certificate, privateKey);
+    }
+
+    /**
+     * Writes a key entry of a test key store ({@code /localhost.jks}, or {@code /device.jks} whose "device" certificate
+     * the server does not trust) to PEM files, each replaced in one atomic move.
+     */
+    public static void writeIdentity(String keyStoreResource, String alias, Path certificate, Path privateKey) throws Exception {
+        KeyStore keyStore = keyStore(keyStoreResource);
+        if (certificate != null) {
+            replace(certificate, pem("CERTIFICATE", keyStore.getCertificate(alias).getEncoded()));
+        }
+        if (privateKey != null) {
+            replace(privateKey, pem("PRIVATE KEY", keyStore.getKey(alias, PASSWORD).getEncoded()));
+        }
+    }
+
+    private static void replace(Path file, byte[] content) throws IOException {
+        Path temporary = Files.createTempFile(file.getParent(), ".", ".tmp");
+        Files.write(temporary, content);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] pem(String type, byte[] der) {
+        String base64 = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(der);
+        return ("-----BEGIN " + type + "-----\n" + base64 + "\n-----END " + type + "-----\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static SSLContext serverContext() throws Exception {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore(), PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagers(), null);
+        return context;
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                SSLSocket socket = (SSLSocket) serverSocket.accept();
+                executor.execute(() -> echo(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void echo(SSLSocket socket) {
+        try (Socket s = socket) {
+            socket.startHandshake();
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away.
+        }
+    }
+}
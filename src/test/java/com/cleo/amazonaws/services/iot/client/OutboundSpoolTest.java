@@ -0,0 +1,163 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OutboundSpoolTest {
+
+    @Test
+    public void spooledMessagesSurviveRestartAndDrainInOrderThroughLocalBroker() throws Exception {
+        final Path directory = Files.createTempDirectory("spool");
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AWSIotMqttClient client = broker.newClient("outbound-spool");
+
+            // Appended while offline, then the process goes away.
+            try (OutboundSpool spool = OutboundSpool.builder().client(client).directory(directory).segmentBytes(4096).build()) {
+                for (long i = 0; i < 500; i++) {
+                    assertTrue(spool.append("spool/" + (i % 3), AWSIotQos.QOS1, ByteBuffer.allocate(Long.BYTES).putLong(0, i)));
+                }
+                assertEquals(0, spool.getDrained());
+                assertTrue(spool.getSegmentCount() > 1);
+            }
+
+            final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+            client.connect(10000);
+            client.subscribe(new ByteBufferTopic("spool/#", AWSIotQos.QOS1) {
+                @Override
+                public void onMessage(String topic, ByteBuffer payload) {
+                    received.add(payload.getLong());
+                }
+            }, 10000, true);
+            try (OutboundSpool spool = OutboundSpool.builder().client(client).directory(directory).segmentBytes(4096).build()) {
+                for (long i = 0; i < 500; i++) {
+                    assertEquals(Long.valueOf(i), received.poll(10, TimeUnit.SECONDS));
+                }
+                awaitDrained(spool, 500);
+                assertEquals(1, spool.getSegmentCount());
+            }
+            assertEquals(500, broker.getPublishes());
+
+            // Everything was acknowledged, so nothing is published again.
+            try (OutboundSpool spool = OutboundSpool.builder().client(client).directory(directory).segmentBytes(4096).build()) {
+                assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+                assertEquals(0, spool.getDrained());
+            }
+            client.disconnect();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void failedPublishIsRetriedFromFirstUnacknowledgedMessage() throws Exception {
+        final Path directory = Files.createTempDirectory("spool");
+        final List<Long> published = Collections.synchronizedList(new ArrayList<>());
+        final AtomicBoolean failedOnce = new AtomicBoolean();
+        try (OutboundSpool spool = OutboundSpool.builder()
+                .directory(directory)
+                .maxInFlight(1)
+                .publisher(message -> {
+                    final long value = ByteBuffer.wrap(message.getPayload()).getLong();
+                    published.add(value);
+                    if (value == 3 && failedOnce.compareAndSet(false, true)) {
+                        message.onFailure();
+                    } else {
+                        message.onSuccess();
+                    }
+                })
+                .build()) {
+            for (long i = 0; i < 6; i++) {
+                spool.append("retry", AWSIotQos.QOS1, ByteBuffer.allocate(Long.BYTES).putLong(0, i));
+            }
+            awaitDrained(spool, 6);
+            assertEquals(1, spool.getFailed());
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 3L, 4L, 5L), published);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void appendsAreRefusedOnceTheSpoolIsFull() throws Exception {
+        final Path directory = Files.createTempDirectory("spool");
+        // Never acknowledged, so nothing is freed.
+        try (OutboundSpool spool = OutboundSpool.builder()
+                .directory(directory)
+                .segmentBytes(1024)
+                .maxSegments(2)
+                .publisher((AWSIotMessage message) -> {
+                })
+                .build()) {
+            final ByteBuffer payload = ByteBuffer.allocate(100);
+            int appended = 0;
+            while (spool.append("full", AWSIotQos.QOS1, payload)) {
+                appended++;
+            }
+            assertEquals(2, spool.getSegmentCount());
+            assertEquals(16, appended);
+            assertFalse(spool.append("full", AWSIotQos.QOS1, payload));
+            assertEquals(2, spool.getRejected());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void drainRateAndWindowMustBePositive() throws Exception {
+        final Path directory = Files.createTempDirectory("spool");
+        try {
+            for (OutboundSpool.OutboundSpoolBuilder builder : Arrays.asList(
+                    OutboundSpool.builder().drainRatePerSecond(0),
+                    OutboundSpool.builder().maxInFlight(0))) {
+                try {
+                    builder.directory(directory).publisher((AWSIotMessage message) -> {
+                    }).build().close();
+                    fail("Built a spool that never drains");
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void awaitDrained(OutboundSpool spool, long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (spool.getDrained() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, spool.getDrained());
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
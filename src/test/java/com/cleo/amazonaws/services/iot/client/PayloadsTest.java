@@ -0,0 +1,79 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadsTest {
+
+    @Test
+    public void wholeHeapArraysAreNotCopied() {
+        final byte[] array = {1, 2, 3};
+        assertSame(array, Payloads.toArray(ByteBuffer.wrap(array)));
+
+        final ByteBuffer partial = ByteBuffer.wrap(array, 1, 2);
+        final byte[] copy = Payloads.toArray(partial);
+        assertArrayEquals(new byte[]{2, 3}, copy);
+        assertEquals(1, partial.position());
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(3).put(array);
+        direct.flip();
+        assertArrayEquals(array, Payloads.toArray(direct));
+    }
+
+    @Test
+    public void receivedPayloadIsViewedWithoutCopy() {
+        final AWSIotMessage message = new AWSIotMessage("t", AWSIotQos.QOS0, new byte[]{4, 5});
+        final ByteBuffer payload = Payloads.asByteBuffer(message);
+        assertTrue(payload.isReadOnly());
+        assertEquals(2, payload.remaining());
+        assertEquals(5, payload.get(1));
+    }
+
+    @Test
+    public void poolRoundsUpAndReusesReleasedBuffers() {
+        final ByteBufferPool pool = new ByteBufferPool(true, 1);
+        final ByteBuffer first = pool.acquire(100);
+        assertTrue(first.isDirect());
+        assertEquals(128, first.capacity());
+        assertEquals(100, first.limit());
+
+        pool.release(first);
+        final ByteBuffer second = pool.acquire(120);
+        assertSame(first, second);
+        assertEquals(120, second.limit());
+        assertEquals(0, second.position());
+
+        // Only one buffer per size is kept, and heap buffers are not taken by a direct pool.
+        pool.release(second);
+        pool.release(ByteBuffer.allocateDirect(128));
+        pool.release(ByteBuffer.allocate(128));
+        assertSame(second, pool.acquire(128));
+        assertNotSame(second, pool.acquire(128));
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    public void poolKeepsNoMoreThanItsByteLimit() {
+        final ByteBufferPool pool = new ByteBufferPool(false, 10, 1 << 20);
+        final ByteBuffer large = pool.acquire(1 << 20);
+        final ByteBuffer small = pool.acquire(1024);
+        pool.release(large);
+        assertEquals(1 << 20, pool.getPooledBytes());
+        // The limit is reached, so the next buffer is left to the garbage collector whatever its size.
+        pool.release(small);
+        assertEquals(1 << 20, pool.getPooledBytes());
+
+        assertSame(large, pool.acquire(1 << 20));
+        assertEquals(0, pool.getPooledBytes());
+    }
+}
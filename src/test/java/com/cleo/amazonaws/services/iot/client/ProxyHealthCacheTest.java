@@ -0,0 +1,49 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProxyHealthCacheTest {
+    private static final InetSocketAddress ENDPOINT = InetSocketAddress.createUnresolved("broker.example.com", 443);
+    private static final Proxy FIRST = proxy(3128);
+    private static final Proxy SECOND = proxy(3129);
+    private static final Proxy THIRD = proxy(3130);
+
+    @Test
+    public void ranksBySuccessThenLatencyAndFailedLast() {
+        final ProxyHealthCache cache = new ProxyHealthCache();
+        cache.recordFailure(ENDPOINT, FIRST);
+        cache.recordSuccess(ENDPOINT, SECOND, TimeUnit.MILLISECONDS.toNanos(200));
+        cache.recordSuccess(ENDPOINT, THIRD, TimeUnit.MILLISECONDS.toNanos(20));
+
+        final List<Proxy> ranked = cache.rank(ENDPOINT, Arrays.asList(FIRST, SECOND, THIRD, proxy(3131)));
+
+        assertEquals(Arrays.asList(THIRD, SECOND, proxy(3131), FIRST), ranked);
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void forgetsFailuresAfterNegativeTtl() throws Exception {
+        final ProxyHealthCache cache = new ProxyHealthCache(500, 500, 16);
+        cache.recordFailure(ENDPOINT, FIRST);
+        assertEquals(Arrays.asList(SECOND, FIRST), cache.rank(ENDPOINT, Arrays.asList(FIRST, SECOND)));
+
+        Thread.sleep(600);
+
+        assertEquals(Arrays.asList(FIRST, SECOND), cache.rank(ENDPOINT, Arrays.asList(FIRST, SECOND)));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(0, cache.size());
+    }
+
+    private static Proxy proxy(int port) {
+        return new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("proxy.example.com", port));
+    }
+}
@@ -0,0 +1,44 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProxyLookupCacheTest {
+    private static final InetSocketAddress ENDPOINT = InetSocketAddress.createUnresolved("broker.example.com", 443);
+    private static final List<Proxy> DIRECT = Collections.singletonList(Proxy.NO_PROXY);
+
+    @Test
+    public void cachesLookupsUntilInvalidated() {
+        final ProxyLookupCache cache = new ProxyLookupCache();
+        assertEquals(DIRECT, cache.get(ENDPOINT, endpoint -> DIRECT));
+        assertEquals(DIRECT, cache.get(ENDPOINT, endpoint -> {
+            throw new AssertionError("Resolved a cached endpoint");
+        }));
+        assertEquals(1, cache.getHits());
+
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void lookupsOvertakenByInvalidateAreNotCached() {
+        final ProxyLookupCache cache = new ProxyLookupCache();
+        // The network changes while the old proxy configuration is being resolved.
+        assertEquals(DIRECT, cache.get(ENDPOINT, endpoint -> {
+            cache.invalidate();
+            return DIRECT;
+        }));
+        assertEquals(0, cache.size());
+
+        cache.get(ENDPOINT, endpoint -> DIRECT);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getMisses());
+    }
+}
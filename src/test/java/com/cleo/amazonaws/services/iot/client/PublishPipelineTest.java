@@ -0,0 +1,187 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PublishPipelineTest {
+
+    @Test
+    public void publishesEveryMessageThroughLocalBroker() throws Exception {
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AWSIotMqttClient client = broker.newClient("publish-pipeline");
+            client.connect(10000);
+            try (PublishPipeline pipeline = PublishPipeline.builder().client(client).capacity(100).build()) {
+                final List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    futures.add(pipeline.publish("pipeline/" + i, AWSIotQos.QOS1, new byte[16]));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+                assertEquals(2000, pipeline.getPublished());
+                assertEquals(0, pipeline.getQueueDepth());
+                assertEquals(2000, broker.getPublishes());
+            }
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void pooledBufferPayloadsRoundTripThroughLocalBroker() throws Exception {
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AWSIotMqttClient client = broker.newClient("publish-pipeline-buffers");
+            client.connect(10000);
+            final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+            client.subscribe(new ByteBufferTopic("buffers/#", AWSIotQos.QOS1) {
+                @Override
+                public void onMessage(String topic, ByteBuffer payload) {
+                    received.add(payload.getLong());
+                }
+            }, 10000, true);
+
+            final ByteBufferPool pool = new ByteBufferPool(true);
+            try (PublishPipeline pipeline = PublishPipeline.builder().client(client).build()) {
+                final List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (long i = 0; i < 100; i++) {
+                    final ByteBuffer buffer = pool.acquire(Long.BYTES);
+                    buffer.putLong(i).flip();
+                    futures.add(pipeline.publish("buffers/" + i, AWSIotQos.QOS1, buffer, pool));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+            }
+            for (long i = 0; i < 100; i++) {
+                assertEquals(i, (long) received.poll(10, TimeUnit.SECONDS));
+            }
+            // Direct buffers are copied on publish, so one buffer serves every message.
+            assertEquals(1, pool.getAllocated());
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void failFastRejectsOnceQueueIsFull() throws Exception {
+        final BlockingQueue<AWSIotMessage> sent = new LinkedBlockingQueue<>();
+        try (PublishPipeline pipeline = PublishPipeline.builder()
+                .publisher(sent::add)
+                .capacity(3)
+                .maxInFlight(2)
+                .backpressure(PublishPipeline.Backpressure.FAIL_FAST)
+                .build()) {
+            fillWindowAndQueue(pipeline, sent);
+
+            final CompletableFuture<Void> rejected = pipeline.publish("topic/5", AWSIotQos.QOS1, new byte[0]);
+            assertFailedWith(rejected, RejectedExecutionException.class);
+            assertEquals(1, pipeline.getRejected());
+
+            // Completing a message opens the window for the next queued one.
+            sent.take().onSuccess();
+            assertEquals("topic/1", sent.take().getTopic());
+            assertEquals("topic/2", sent.poll(5, TimeUnit.SECONDS).getTopic());
+            assertEquals(1, pipeline.getPublished());
+            assertEquals(2, pipeline.getQueueDepth());
+        }
+    }
+
+    @Test
+    public void dropOldestMakesRoomForNewMessages() throws Exception {
+        final BlockingQueue<AWSIotMessage> sent = new LinkedBlockingQueue<>();
+        try (PublishPipeline pipeline = PublishPipeline.builder()
+                .publisher(sent::add)
+                .capacity(3)
+                .maxInFlight(2)
+                .backpressure(PublishPipeline.Backpressure.DROP_OLDEST)
+                .build()) {
+            final List<CompletableFuture<Void>> futures = fillWindowAndQueue(pipeline, sent);
+
+            final CompletableFuture<Void> newest = pipeline.publish("topic/5", AWSIotQos.QOS1, new byte[0]);
+            assertFailedWith(futures.get(2), CancellationException.class);
+            assertEquals(1, pipeline.getDropped());
+
+            sent.take().onSuccess();
+            sent.take().onSuccess();
+            final List<String> topics = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                final AWSIotMessage message = sent.poll(5, TimeUnit.SECONDS);
+                topics.add(message.getTopic());
+                message.onSuccess();
+            }
+            assertEquals("[topic/3, topic/4, topic/5]", topics.toString());
+            newest.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void blockWaitsForRoomInQueue() throws Exception {
+        final BlockingQueue<AWSIotMessage> sent = new LinkedBlockingQueue<>();
+        try (PublishPipeline pipeline = PublishPipeline.builder()
+                .publisher(sent::add)
+                .capacity(3)
+                .maxInFlight(2)
+                .build()) {
+            fillWindowAndQueue(pipeline, sent);
+
+            final CompletableFuture<CompletableFuture<Void>> blocked = CompletableFuture.supplyAsync(
+                    () -> pipeline.publish("topic/5", AWSIotQos.QOS1, new byte[0]));
+            Thread.sleep(100);
+            assertFalse(blocked.isDone());
+
+            sent.take().onFailure();
+            blocked.get(5, TimeUnit.SECONDS);
+            assertEquals(1, pipeline.getFailed());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anEmptyQueueIsRefused() {
+        PublishPipeline.builder().publisher(message -> {
+        }).capacity(0).backpressure(PublishPipeline.Backpressure.DROP_OLDEST).build();
+    }
+
+    // Sends two messages, filling the window, then queues three more.
+    private static List<CompletableFuture<Void>> fillWindowAndQueue(PublishPipeline pipeline, BlockingQueue<AWSIotMessage> sent) throws InterruptedException {
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(pipeline.publish("topic/" + i, AWSIotQos.QOS1, new byte[0]));
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sent.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        for (int i = 2; i < 5; i++) {
+            futures.add(pipeline.publish("topic/" + i, AWSIotQos.QOS1, new byte[0]));
+        }
+        assertEquals(2, sent.size());
+        assertEquals(2, pipeline.getInFlight());
+        assertEquals(3, pipeline.getQueueDepth());
+        return futures;
+    }
+
+    private static void assertFailedWith(CompletableFuture<Void> future, Class<? extends Exception> type) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected " + type.getSimpleName());
+        } catch (CancellationException e) {
+            assertTrue(type.isInstance(e));
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSSLContextTest {
+
+    @Test
+    public void sharedContextResumesSessionsAcrossFactories() throws Exception {
+        // Session IDs only identify resumed sessions up to TLS 1.2.
+        try (LocalTlsServer server = new LocalTlsServer("TLSv1.2")) {
+            final SSLContext context = newClientContext();
+
+            final byte[] first = handshake(new ProxyAwareSSLSocketFactory(context), server.getPort());
+            final byte[] second = handshake(new ProxyAwareSSLSocketFactory(context), server.getPort());
+
+            assertTrue("Second handshake was not resumed", Arrays.equals(first, second));
+        }
+    }
+
+    @Test
+    public void separateContextsPerformFullHandshakes() throws Exception {
+        try (LocalTlsServer server = new LocalTlsServer("TLSv1.2")) {
+            final byte[] first = handshake(new ProxyAwareSSLSocketFactory(newClientContext()), server.getPort());
+            final byte[] second = handshake(new ProxyAwareSSLSocketFactory(newClientContext()), server.getPort());
+
+            assertFalse(Arrays.equals(first, second));
+        }
+    }
+
+    @Test
+    public void systemKeyStorePropertiesProvideTheClientCertificate() throws Exception {
+        final Path keyStore = Files.createTempFile("keystore", ".jks");
+        try (LocalTlsServer server = new LocalTlsServer("TLSv1.2")) {
+            server.setNeedClientAuth(true);
+            try (OutputStream stream = Files.newOutputStream(keyStore)) {
+                LocalTlsServer.keyStore().store(stream, "changeit".toCharArray());
+            }
+            System.setProperty("javax.net.ssl.keyStore", keyStore.toString());
+            System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+            final KeyManager[] keyManagers = SharedSSLContext.systemKeyManagers();
+            final SSLContext context = SharedSSLContext.newContext(keyManagers, LocalTlsServer.trustManagers(), 0, 0);
+            handshake(new ProxyAwareSSLSocketFactory(context), server.getPort());
+        } finally {
+            System.clearProperty("javax.net.ssl.keyStore");
+            System.clearProperty("javax.net.ssl.keyStorePassword");
+            Files.delete(keyStore);
+        }
+        assertNull(SharedSSLContext.systemKeyManagers());
+    }
+
+    private static SSLContext newClientContext() throws Exception {
+        return SharedSSLContext.newContext(null, LocalTlsServer.trustManagers(), SharedSSLContext.DEFAULT_SESSION_CACHE_SIZE, SharedSSLContext.DEFAULT_SESSION_TIMEOUT_SECONDS);
+    }
+
+    private static byte[] handshake(ProxyAwareSSLSocketFactory factory, int port) throws Exception {
+        try (SSLSocket socket = (SSLSocket) factory.createSocket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 5000);
+            socket.startHandshake();
+            // Round trip so the server has finished the handshake before the socket closes.
+            socket.getOutputStream().write(1);
+            socket.getInputStream().read();
+            return socket.getSession().getId();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SocketOptionsTest {
+
+    @Test
+    public void overridesReplaceOnlyTheOptionsTheySet() {
+        final SocketOptions options = SocketOptions.of(SocketProfile.BULK_THROUGHPUT, SocketOptions.builder()
+                .tcpNoDelay(true)
+                .receiveBufferSize(256 * 1024)
+                .build());
+
+        assertEquals(true, options.getTcpNoDelay());
+        assertEquals(Integer.valueOf(256 * 1024), options.getReceiveBufferSize());
+        assertEquals(Integer.valueOf(1024 * 1024), options.getSendBufferSize());
+        assertEquals(true, options.getKeepAlive());
+        assertEquals(Integer.valueOf(2), options.getBandwidthPreference());
+    }
+
+    @Test
+    public void profileAndOverridesAreOptional() {
+        final SocketOptions overrides = SocketOptions.builder().keepAlive(false).build();
+
+        assertNull(SocketOptions.of(null, null));
+        assertSame(overrides, SocketOptions.of(null, overrides));
+        assertSame(SocketProfile.LOW_LATENCY.getOptions(), SocketOptions.of(SocketProfile.LOW_LATENCY, null));
+    }
+}
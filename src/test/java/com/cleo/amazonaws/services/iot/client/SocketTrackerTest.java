@@ -0,0 +1,33 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import org.junit.Test;
+
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class SocketTrackerTest {
+
+    @Test
+    public void collectedUnclosedSocketsCountAsLeaked() throws Exception {
+        final SocketTracker tracker = new SocketTracker();
+        tracker.newSocket(Proxy.NO_PROXY).close();
+        Socket leaked = tracker.newSocket(Proxy.NO_PROXY);
+        assertEquals(1, tracker.getOpen());
+
+        //noinspection UnusedAssignment
+        leaked = null;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (tracker.getLeaked() == 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, tracker.getOpened());
+        assertEquals(1, tracker.getClosed());
+        assertEquals(1, tracker.getLeaked());
+        assertEquals(0, tracker.getOpen());
+    }
+}
@@ -0,0 +1,173 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+import com.amazonaws.services.iot.client.core.AwsIotRuntimeException;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TopicDispatcherTest {
+
+    @Test
+    public void trieMatchesWildcardFilters() {
+        final TopicTrie<String> trie = new TopicTrie<>();
+        for (String filter : Arrays.asList("#", "a/#", "a/+", "a/b", "a/+/c", "+/+", "a/b/", "$aws/things/+/shadow/#")) {
+            trie.add(filter, filter);
+        }
+        assertMatches(trie, "a", "#", "a/#");
+        assertMatches(trie, "a/b", "#", "a/#", "a/+", "a/b", "+/+");
+        assertMatches(trie, "a/b/", "#", "a/#", "a/b/");
+        assertMatches(trie, "a/x/c", "#", "a/#", "a/+/c");
+        assertMatches(trie, "$aws/things/t1/shadow/update", "$aws/things/+/shadow/#");
+
+        assertTrue(trie.remove("a/+", "a/+"));
+        assertFalse(trie.remove("a/+", "a/+"));
+        assertTrue(trie.remove("#", "#"));
+        assertMatches(trie, "a/b", "a/#", "a/b", "+/+");
+
+        for (String invalid : Arrays.asList("", "a/#/b", "a/b#", "a+/b")) {
+            try {
+                trie.add(invalid, invalid);
+                fail(invalid);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void routesMessagesInOrderPerTopicThroughLocalBroker() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AWSIotMqttClient client = broker.newClient("topic-dispatcher");
+            client.connect(10000);
+            final TopicDispatcher dispatcher = TopicDispatcher.builder().client(client).executor(executor).build();
+
+            final Map<String, List<Long>> received = new ConcurrentHashMap<>();
+            final CountDownLatch all = new CountDownLatch(400);
+            final TopicDispatcher.Subscription everything = dispatcher.subscribe("some/topic/#", AWSIotQos.QOS1, message -> {
+                received.computeIfAbsent(message.getTopic(), t -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(Payloads.asByteBuffer(message).getLong());
+                all.countDown();
+            });
+            final CountDownLatch second = new CountDownLatch(200);
+            dispatcher.subscribe("some/+/second", AWSIotQos.QOS0, message -> second.countDown());
+            dispatcher.subscribe("some/topic/#", AWSIotQos.QOS0, message -> {
+            });
+            assertEquals(2, dispatcher.getFilterCount());
+            assertEquals(2, broker.getSubscribes());
+
+            // A subscription made on the client directly is still dispatched by the SDK.
+            final CountDownLatch direct = new CountDownLatch(1);
+            client.subscribe(new AWSIotTopic("direct", AWSIotQos.QOS1) {
+                @Override
+                public void onMessage(AWSIotMessage message) {
+                    direct.countDown();
+                }
+            }, 10000, true);
+
+            for (long i = 0; i < 200; i++) {
+                for (String topic : Arrays.asList("some/topic/first", "some/topic/second")) {
+                    client.publish(topic, AWSIotQos.QOS1, ByteBuffer.allocate(Long.BYTES).putLong(i).array(), 10000);
+                }
+            }
+            client.publish("direct", AWSIotQos.QOS1, new byte[0], 10000);
+            assertTrue(all.await(30, TimeUnit.SECONDS));
+            assertTrue(second.await(30, TimeUnit.SECONDS));
+            assertTrue(direct.await(10, TimeUnit.SECONDS));
+            for (List<Long> values : received.values()) {
+                for (int i = 0; i < values.size(); i++) {
+                    assertEquals(i, values.get(i).longValue());
+                }
+            }
+
+            everything.close();
+            assertEquals(2, dispatcher.getFilterCount());
+            dispatcher.close();
+            assertEquals(0, dispatcher.getFilterCount());
+            assertEquals(1, client.getSubscriptions().size());
+            client.disconnect();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void filtersAreSubscribedAgainAfterDisconnectAndConnect() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (LocalMqttBroker broker = new LocalMqttBroker()) {
+            final AWSIotMqttClient client = broker.newClient("topic-dispatcher-reconnect");
+            final TopicDispatcher dispatcher = TopicDispatcher.builder().client(client).executor(executor).build();
+
+            // A failed subscribe leaves no handler behind. The SDK still sends it once connected, but forgets it.
+            final AtomicInteger failedReceived = new AtomicInteger();
+            try {
+                dispatcher.subscribe("failed/topic", AWSIotQos.QOS1, message -> failedReceived.incrementAndGet());
+                fail("Subscribed while disconnected");
+            } catch (AwsIotRuntimeException expected) {
+            }
+            assertEquals(0, dispatcher.getFilterCount());
+
+            client.connect(10000);
+            final CountDownLatch received = new CountDownLatch(2);
+            dispatcher.subscribe("fleet/+/broadcast", AWSIotQos.QOS1, message -> received.countDown());
+            dispatcher.subscribe("devices/device", AWSIotQos.QOS1, message -> received.countDown());
+            broker.awaitSubscribes(3);
+
+            client.disconnect();
+            // The SDK shuts its executor down on disconnect, but only creates one when it has none.
+            client.setExecutionService(null);
+            client.connect(10000);
+            broker.awaitSubscribes(5);
+
+            // Direct subscriptions are still dispatched by the SDK, whatever the number of the dispatcher's filters.
+            final CountDownLatch direct = new CountDownLatch(1);
+            client.subscribe(new AWSIotTopic("direct", AWSIotQos.QOS1) {
+                @Override
+                public void onMessage(AWSIotMessage message) {
+                    direct.countDown();
+                }
+            }, 10000, true);
+
+            // Arrives first, so that it has been routed by the time the others are handled.
+            client.publish("failed/topic", AWSIotQos.QOS1, new byte[0], 10000);
+            client.publish("fleet/all/broadcast", AWSIotQos.QOS1, "hello".getBytes(), 10000);
+            client.publish("devices/device", AWSIotQos.QOS1, "you".getBytes(), 10000);
+            client.publish("direct", AWSIotQos.QOS1, new byte[0], 10000);
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+            assertTrue(direct.await(10, TimeUnit.SECONDS));
+            assertEquals(0, failedReceived.get());
+            dispatcher.close();
+            client.disconnect();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertMatches(TopicTrie<String> trie, String topic, String... filters) {
+        final List<String> matched = new ArrayList<>(trie.match(topic));
+        Collections.sort(matched);
+        final List<String> expected = new ArrayList<>(Arrays.asList(filters));
+        Collections.sort(expected);
+        assertEquals(topic, expected, matched);
+    }
+}
@@ -0,0 +1,147 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.util.AwsIotWebSocketUrlSigner;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketSigningTest {
+    private static final String ENDPOINT = "example.iot.us-east-1.amazonaws.com";
+
+    @Test
+    public void signedUrlsMatchTheSdk() throws Exception {
+        // Whole seconds, as the SDK formats them.
+        final Instant now = Instant.ofEpochSecond(Instant.now().getEpochSecond());
+        final WebSocketUrlSigner signer = new WebSocketUrlSigner(ENDPOINT + ":443", new SigningMetrics());
+        for (String token : new String[]{null, "Session/Token+With=Reserved"}) {
+            final AwsIotWebSocketUrlSigner sdk = new AwsIotWebSocketUrlSigner(ENDPOINT + ":443");
+            sdk.updateCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY", token);
+            assertEquals(sdk.getSignedUrl(Date.from(now)),
+                    signer.getSignedUrl(new AwsCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY", token, null), now));
+        }
+    }
+
+    @Test
+    public void signingKeyIsDerivedOncePerSecretAndDay() {
+        final SigningMetrics metrics = new SigningMetrics();
+        final WebSocketUrlSigner signer = new WebSocketUrlSigner(ENDPOINT + ":443", metrics);
+        final AwsCredentials credentials = new AwsCredentials("AKIDEXAMPLE", UUID.randomUUID().toString(), null, null);
+        final Instant now = Instant.now();
+
+        signer.getSignedUrl(credentials, now);
+        signer.getSignedUrl(credentials, now.plusSeconds(1));
+        new WebSocketUrlSigner(ENDPOINT + ":443", metrics).getSignedUrl(credentials, now);
+        assertEquals(3, metrics.getSignatures());
+        assertEquals(1, metrics.getKeyDerivations());
+
+        signer.getSignedUrl(new AwsCredentials("AKIDEXAMPLE", UUID.randomUUID().toString(), null, null), now);
+        signer.getSignedUrl(credentials, now.plus(Duration.ofDays(1)));
+        assertEquals(3, metrics.getKeyDerivations());
+    }
+
+    @Test
+    public void signingKeyCacheIsBounded() {
+        final SigningMetrics metrics = new SigningMetrics();
+        final WebSocketUrlSigner signer = new WebSocketUrlSigner(ENDPOINT + ":443", metrics);
+        final AwsCredentials first = new AwsCredentials("AKIDEXAMPLE", UUID.randomUUID().toString(), null, null);
+        final Instant now = Instant.now();
+
+        signer.getSignedUrl(first, now);
+        for (int i = 0; i < WebSocketUrlSigner.MAX_CACHED_KEYS; i++) {
+            signer.getSignedUrl(new AwsCredentials("AKIDEXAMPLE", UUID.randomUUID().toString(), null, null), now);
+        }
+        assertEquals(WebSocketUrlSigner.MAX_CACHED_KEYS + 1, metrics.getKeyDerivations());
+
+        // Evicted as the least recently used, although its day has not ended.
+        signer.getSignedUrl(first, now);
+        assertEquals(WebSocketUrlSigner.MAX_CACHED_KEYS + 2, metrics.getKeyDerivations());
+    }
+
+    @Test
+    public void credentialsAreRefreshedAheadOfExpiration() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        final SigningMetrics metrics = new SigningMetrics();
+        try (RefreshingCredentialsProvider provider = RefreshingCredentialsProvider.builder()
+                .source(() -> new AwsCredentials("AKID" + fetches.incrementAndGet(), "secret", "token", Instant.now().plusSeconds(2)))
+                .refreshAhead(Duration.ofMillis(1500))
+                .metrics(metrics)
+                .build()) {
+            final AwsCredentials first = provider.getCredentials();
+            assertEquals("AKID1", first.getAccessKeyId());
+            assertSame(first, provider.getCredentials());
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (fetches.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // Replaced in the background, before the first expired.
+            assertTrue(Instant.now().isBefore(first.getExpiration()));
+            assertEquals("AKID2", provider.getCredentials().getAccessKeyId());
+            assertEquals(2, metrics.getCredentialRefreshes());
+        }
+    }
+
+    @Test
+    public void clientSignsEachConnectWithCurrentCredentials() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        final SigningMetrics metrics = new SigningMetrics();
+        final AwsCredentialsProvider provider = new AwsCredentialsProvider() {
+            private volatile AwsCredentials credentials = next();
+
+            @Override
+            public AwsCredentials getCredentials() {
+                return credentials;
+            }
+
+            @Override
+            public void refresh() {
+                credentials = next();
+            }
+
+            private AwsCredentials next() {
+                return new AwsCredentials("AKID" + fetches.incrementAndGet(), "secret", "token" + fetches.get(), null);
+            }
+        };
+        final AWSIotMqttClient client = AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(ENDPOINT)
+                .clientId("signing")
+                .credentialsProvider(provider)
+                .signingMetrics(metrics)
+                .build();
+        final SigningWebsocketConnection connection = (SigningWebsocketConnection) AwsIotMqttClientBuilder.connectionOf(client);
+
+        final String first = connection.getServerUris().iterator().next();
+        assertTrue(first, first.startsWith("wss://" + ENDPOINT + ":443/mqtt?"));
+        assertTrue(first, first.contains("X-Amz-Credential=AKID1%2F") && first.endsWith("X-Amz-Security-Token=token1"));
+
+        provider.refresh();
+        final String second = connection.getServerUris().iterator().next();
+        assertTrue(second, second.contains("X-Amz-Credential=AKID2%2F") && second.endsWith("X-Amz-Security-Token=token2"));
+        assertNotEquals(first, second);
+        assertEquals(2, metrics.getSignatures());
+    }
+
+    @Test
+    public void authFailuresAreRecognized() {
+        assertTrue(SigningWebsocketConnection.isAuthFailure(new MqttException(MqttException.REASON_CODE_NOT_AUTHORIZED)));
+        assertTrue(SigningWebsocketConnection.isAuthFailure(new MqttException(MqttException.REASON_CODE_FAILED_AUTHENTICATION)));
+        assertTrue(SigningWebsocketConnection.isAuthFailure(
+                new MqttException(new IOException("WebSocket Response header: Incorrect upgrade."))));
+        assertFalse(SigningWebsocketConnection.isAuthFailure(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST)));
+        assertFalse(SigningWebsocketConnection.isAuthFailure(new IOException("Connection refused")));
+    }
+}
@@ -0,0 +1,140 @@
+package com.cleo.amazonaws.services.iot.client;
+
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.core.AwsIotConnectionType;
+import com.amazonaws.services.iot.client.mqtt.AwsIotMqttConnection;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class X509IdentityTest {
+    private static final String ENDPOINT = "example.iot.us-east-1.amazonaws.com";
+
+    @Test
+    public void identityIsReadOnceAndSharesOneContext() throws Exception {
+        final Path directory = Files.createTempDirectory("identity");
+        try {
+            final X509Identity identity = LocalTlsServer.writeIdentity(directory);
+            assertSame(identity, X509Identity.load(directory.resolve("localhost.pem.crt"), directory.resolve("localhost.pem.key")));
+            assertEquals("RSA", identity.getPrivateKey().getAlgorithm());
+            assertEquals(1, identity.getCertificateChain().length);
+            assertSame(SharedSSLContext.forIdentity(identity), SharedSSLContext.forIdentity(identity));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void equalIdentitiesShareAContextWhileItIsUsed() throws Exception {
+        final Path directory = Files.createTempDirectory("identity");
+        try {
+            final X509Identity identity = LocalTlsServer.writeIdentity(directory);
+            final X509Identity copy = new X509Identity(identity.getCertificateChain(), identity.getPrivateKey());
+            assertEquals(identity, copy);
+            final TrustManager[] trustManagers = LocalTlsServer.trustManagers();
+            SSLContext context = SharedSSLContext.forIdentity(identity, trustManagers);
+            assertSame(context, SharedSSLContext.forIdentity(copy, trustManagers));
+
+            final int cached = SharedSSLContext.getIdentityContextCount();
+            context = null;
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (SharedSSLContext.getIdentityContextCount() >= cached && System.nanoTime() < deadline) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertTrue(SharedSSLContext.getIdentityContextCount() < cached);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void serverRequiringClientCertificateAcceptsTheIdentity() throws Exception {
+        final Path directory = Files.createTempDirectory("identity");
+        try (LocalTlsServer server = new LocalTlsServer("TLSv1.2")) {
+            server.setNeedClientAuth(true);
+            final X509Identity identity = LocalTlsServer.writeIdentity(directory);
+            handshake(SharedSSLContext.forIdentity(identity, LocalTlsServer.trustManagers()), server.getPort());
+            try {
+                handshake(SharedSSLContext.newContext(null, LocalTlsServer.trustManagers(), 0, 0), server.getPort());
+                fail("Handshake without a client certificate succeeded");
+            } catch (SSLException expected) {
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void certificateClientsConnectToAwsIotOverMutualTls() throws Exception {
+        final Path directory = Files.createTempDirectory("identity");
+        try {
+            LocalTlsServer.writeIdentity(directory);
+            final AWSIotMqttClient client = AwsIotMqttClientBuilder.builder()
+                    .clientEndpoint(ENDPOINT)
+                    .clientId("mutual-tls")
+                    .certificate(directory.resolve("localhost.pem.crt"))
+                    .privateKey(directory.resolve("localhost.pem.key"))
+                    .build();
+            assertEquals(AwsIotConnectionType.MQTT_OVER_TLS, client.getConnectionType());
+            assertEquals("ssl://" + ENDPOINT + ":8883", ((AwsIotMqttConnection) AwsIotMqttClientBuilder.connectionOf(client)).getMqttClient().getServerURI());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void sslContextClientsConnectToAwsIotOverMutualTls() throws Exception {
+        // The context may hold client key managers, which cannot be inspected.
+        final AWSIotMqttClient client = AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(ENDPOINT)
+                .clientId("context")
+                .sslContext(LocalMqttBroker.clientContext())
+                .build();
+        assertEquals(AwsIotConnectionType.MQTT_OVER_TLS, client.getConnectionType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void awsIotClientsNeedCredentialsOrACertificate() throws Exception {
+        assertFalse(SharedSSLContext.hasSystemKeyStore());
+        AwsIotMqttClientBuilder.builder()
+                .clientEndpoint(ENDPOINT)
+                .clientId("anonymous")
+                .build();
+    }
+
+    private static void handshake(SSLContext context, int port) throws Exception {
+        try (SSLSocket socket = (SSLSocket) new ProxyAwareSSLSocketFactory(context).createSocket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 5000);
+            socket.startHandshake();
+            socket.getOutputStream().write(1);
+            assertEquals(1, socket.getInputStream().read());
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}